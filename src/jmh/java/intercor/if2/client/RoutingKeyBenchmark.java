@@ -0,0 +1,85 @@
+package intercor.if2.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+import quadtree.Points;
+
+/**
+ * Benchmarks of what a producer does for every message before it is handed to
+ * the client library: the routing key of a new {@link Datum}, and the message
+ * properties of a new datum and of a datum that is published again.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingKeyBenchmark {
+
+	private static final String[] PROVIDERS = { "RWS", "NL_NB", "TASS" };
+	private static final String[] SUBTYPES = { "3", "26", "94" };
+
+	@Param({ "18" })
+	int zoom;
+
+	private Points points;
+	private IF2Producer producer;
+	private Datum[] data;
+	private int i;
+
+	@Setup
+	public void setup() {
+		points = Points.load();
+		Map<String, Object> props = new HashMap<>();
+		props.put(IF2Client.VERBOSE, false);
+		props.put(IF2Client.JMX, false);
+		producer = new IF2Producer(props);
+		data = new Datum[points.size()];
+		for (int j = 0; j < data.length; j++)
+			data[j] = datum(j);
+	}
+
+	private Datum datum(int j) {
+		return new Datum(points.lat[j], points.lon[j], zoom, "DENM", "1_2_2", PROVIDERS[j % PROVIDERS.length],
+				SUBTYPES[j % SUBTYPES.length]);
+	}
+
+	private int next() {
+		return i = (i + 1) & points.mask;
+	}
+
+	@Benchmark
+	public String routingKey() {
+		return datum(next()).getRoutingKey();
+	}
+
+	@Benchmark
+	public BasicProperties properties() {
+		return producer.properties(datum(next()));
+	}
+
+	@Benchmark
+	public BasicProperties propertiesCached() {
+		return producer.properties(data[next()]);
+	}
+}
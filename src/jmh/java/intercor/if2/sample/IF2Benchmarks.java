@@ -0,0 +1,46 @@
+package intercor.if2.sample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+/**
+ * Run the benchmarks with JMH, by default with allocation profiling, writing
+ * the results to jmh-result.json. Build with the jmh profile:
+ *
+ * <pre>
+ * mvn -Pjmh package
+ * java -jar target/benchmarks.jar [JMH options] [benchmark regexp]
+ * </pre>
+ *
+ * All JMH options work as usual, e.g. -l lists the benchmarks and -h shows the
+ * options. Profiling and the result format are only added when no -prof or -rf
+ * option is given. Without a regexp, all benchmarks are run. Compare the
+ * gc.alloc.rate.norm column, bytes per operation, between versions next to the
+ * time.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+public class IF2Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<>(Arrays.asList(args));
+		try {
+			CommandLineOptions commandLine = new CommandLineOptions(args);
+			if (commandLine.getProfilers().isEmpty())
+				options.addAll(Arrays.asList("-prof", "gc"));
+			if (!commandLine.getResultFormat().hasValue())
+				options.addAll(Arrays.asList("-rf", "json"));
+			if (commandLine.getIncludes().isEmpty())
+				options.add("(quadtree|intercor\\.if2)\\..*Benchmark");
+		} catch (CommandLineOptionException e) {
+			// JMH reports the error
+		}
+		Main.main(options.toArray(new String[0]));
+	}
+}
@@ -0,0 +1,65 @@
+package quadtree;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Locations for benchmarks, read from points.csv on the classpath. The number
+ * of points is a power of 2, so benchmarks can cycle through them with a mask.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+public final class Points {
+
+	public final double[] lat;
+	public final double[] lon;
+	public final int mask;
+
+	private Points(double[] lat, double[] lon) {
+		this.lat = lat;
+		this.lon = lon;
+		this.mask = lat.length - 1;
+	}
+
+	public int size() {
+		return lat.length;
+	}
+
+	/**
+	 * @return the points of the fixture
+	 */
+	public static Points load() {
+		List<double[]> points = new ArrayList<>();
+		try (InputStream in = Points.class.getResourceAsStream("/points.csv")) {
+			if (in == null)
+				throw new IllegalStateException("points.csv not found on the classpath");
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				int comma = line.indexOf(',');
+				points.add(new double[] { Double.parseDouble(line.substring(0, comma)),
+						Double.parseDouble(line.substring(comma + 1)) });
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int n = Integer.highestOneBit(points.size());
+		double[] lat = new double[n];
+		double[] lon = new double[n];
+		for (int i = 0; i < n; i++) {
+			lat[i] = points.get(i)[0];
+			lon[i] = points.get(i)[1];
+		}
+		return new Points(lat, lon);
+	}
+}
@@ -0,0 +1,110 @@
+package quadtree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the conversions between locations, tiles and quadtree paths.
+ * Every invocation takes the next point of the fixture, so branches and caches
+ * see realistic locations.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuadTreeBenchmark {
+
+	@Param({ "18" })
+	int zoom;
+
+	private Points points;
+	private String[] plain;
+	private String[] separated;
+	private Tile[] tiles;
+	private double[] x;
+	private double[] y;
+	private int i;
+
+	@Setup
+	public void setup() {
+		points = Points.load();
+		int n = points.size();
+		plain = new String[n];
+		separated = new String[n];
+		tiles = new Tile[n];
+		x = new double[n];
+		y = new double[n];
+		for (int j = 0; j < n; j++) {
+			plain[j] = QuadTreeConverter.getQuadTree(zoom, points.lat[j], points.lon[j]);
+			separated[j] = QuadTreeConverter.getQuadTree(zoom, points.lat[j], points.lon[j], ".");
+			tiles[j] = new Tile(plain[j]);
+			x[j] = Mercator.lonToMercatorX(points.lon[j]);
+			y[j] = Mercator.latToMercatorY(points.lat[j]);
+		}
+	}
+
+	private int next() {
+		return i = (i + 1) & points.mask;
+	}
+
+	@Benchmark
+	public String getQuadTree() {
+		int j = next();
+		return QuadTreeConverter.getQuadTree(zoom, points.lat[j], points.lon[j]);
+	}
+
+	@Benchmark
+	public String getQuadTreeSeparator() {
+		int j = next();
+		return QuadTreeConverter.getQuadTree(zoom, points.lat[j], points.lon[j], ".");
+	}
+
+	@Benchmark
+	public long encode() {
+		int j = next();
+		return QuadTreeConverter.encode(zoom, points.lat[j], points.lon[j]);
+	}
+
+	@Benchmark
+	public Tile parseTile() {
+		return new Tile(plain[next()], "");
+	}
+
+	@Benchmark
+	public Tile parseTileSeparator() {
+		return new Tile(separated[next()], ".");
+	}
+
+	@Benchmark
+	public LatLon[] getCorners() {
+		return tiles[next()].getCorners();
+	}
+
+	@Benchmark
+	public MercatorPoint latLonToMercator() {
+		int j = next();
+		return Mercator.latLonToMercator(points.lat[j], points.lon[j]);
+	}
+
+	@Benchmark
+	public LatLon mercatorToLatLon() {
+		int j = next();
+		return Mercator.mercatorToLatLon(x[j], y[j]);
+	}
+}
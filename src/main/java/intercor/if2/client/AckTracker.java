@@ -0,0 +1,149 @@
+package intercor.if2.client;
+
+import java.io.IOException;
+import java.util.TreeMap;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Batched acknowledgement of deliveries that are handled out of order by a
+ * worker pool. A multiple ack acknowledges every delivery up to a tag, so it
+ * can only be sent for the highest tag below which all deliveries are handled.
+ * That tag is tracked here, and acked with multiple=true once it is a batch
+ * ahead of the last ack, or when all deliveries so far are handled, so the
+ * broker never waits for the ack of the tail of a burst.
+ * 
+ * Deliveries whose handling failed are rejected individually, without requeue,
+ * so that a message that cannot be handled does not come back forever.
+ * 
+ * There is one tracker per channel, as delivery tags are per channel. When the
+ * channel is recovered, the broker delivers the unacknowledged messages again.
+ * The client library keeps delivery tags increasing across recovery, above the
+ * highest tag delivered before, and ignores acks of tags of before. The tracker
+ * is reset to continue after the highest tag delivered, and deliveries of
+ * before the reset are not acknowledged anymore.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+class AckTracker {
+
+	private final Channel channel;
+	private final int batch;
+
+	/*
+	 * highest tag delivered
+	 */
+	private long delivered = 0;
+
+	/*
+	 * all tags up to and including this one are handled
+	 */
+	private long handled = 0;
+
+	/*
+	 * highest tag up to handled that was handled successfully, so it can be acked
+	 */
+	private long ackable = 0;
+
+	/*
+	 * highest tag acked
+	 */
+	private long acked = 0;
+
+	/*
+	 * tags above handled that are handled already, with their success
+	 */
+	private final TreeMap<Long, Boolean> outOfOrder = new TreeMap<>();
+
+	/*
+	 * number of resets
+	 */
+	private int generation = 0;
+
+	/**
+	 * @param channel
+	 *            channel the deliveries came in on
+	 * @param batch
+	 *            number of deliveries to ack at once
+	 */
+	AckTracker(Channel channel, int batch) {
+		this.channel = channel;
+		this.batch = Math.max(1, batch);
+	}
+
+	Channel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Register a delivery.
+	 * 
+	 * @return the generation of the delivery, to pass to
+	 *         {@link #handled(int, long, boolean)}
+	 */
+	synchronized int delivered(long tag) {
+		delivered = Math.max(delivered, tag);
+		return generation;
+	}
+
+	/**
+	 * Forget all deliveries, after the channel is recovered. The next delivery
+	 * has a tag above the highest tag delivered so far.
+	 */
+	synchronized void reset() {
+		generation++;
+		handled = ackable = acked = delivered;
+		outOfOrder.clear();
+	}
+
+	/**
+	 * Mark a delivery as handled, unless it was delivered before the last reset.
+	 * 
+	 * @see #handled(long, boolean)
+	 */
+	synchronized void handled(int generation, long tag, boolean success) throws IOException {
+		if (generation == this.generation)
+			handled(tag, success);
+	}
+
+	/**
+	 * Mark a delivery as handled, and send an ack or nack when due.
+	 * 
+	 * @param tag
+	 *            delivery tag
+	 * @param success
+	 *            false when handling failed, the message is then rejected
+	 * @throws IOException
+	 */
+	synchronized void handled(long tag, boolean success) throws IOException {
+		if (!success)
+			channel.basicNack(tag, false, false);
+		if (tag != handled + 1) {
+			outOfOrder.put(tag, success);
+			return;
+		}
+		advance(tag, success);
+		Boolean next;
+		while ((next = outOfOrder.remove(handled + 1)) != null) {
+			advance(handled + 1, next);
+		}
+		if (ackable > acked && (ackable - acked >= batch || handled == delivered)) {
+			channel.basicAck(ackable, true);
+			acked = ackable;
+		}
+	}
+
+	/**
+	 * @return number of deliveries that are not handled yet
+	 */
+	synchronized long unhandled() {
+		return delivered - handled;
+	}
+
+	private void advance(long tag, boolean success) {
+		handled = tag;
+		if (success)
+			ackable = tag;
+	}
+}
@@ -0,0 +1,112 @@
+package intercor.if2.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the batches flushed by a {@link BatchingPublisher}, to tune the
+ * trade-off between batch size and latency.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public class BatchStatistics {
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder lingerNanos = new LongAdder();
+	private final AtomicLong maxBatchSize = new AtomicLong();
+	private final AtomicLong maxLingerNanos = new AtomicLong();
+	private final LongAdder fullFlushes = new LongAdder();
+	private final LongAdder byteFlushes = new LongAdder();
+	private final LongAdder lingerFlushes = new LongAdder();
+
+	enum Cause {
+		FULL, BYTES, LINGER, EXPLICIT
+	}
+
+	void record(int size, long bytes, long linger, Cause cause) {
+		batches.increment();
+		messages.add(size);
+		this.bytes.add(bytes);
+		lingerNanos.add(linger);
+		maxBatchSize.accumulateAndGet(size, Math::max);
+		maxLingerNanos.accumulateAndGet(linger, Math::max);
+		switch (cause) {
+		case FULL:
+			fullFlushes.increment();
+			break;
+		case BYTES:
+			byteFlushes.increment();
+			break;
+		case LINGER:
+			lingerFlushes.increment();
+			break;
+		default:
+			break;
+		}
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	public double getMeanBatchSize() {
+		long n = batches.sum();
+		return n == 0 ? 0 : messages.sum() / (double) n;
+	}
+
+	public long getMaxBatchSize() {
+		return maxBatchSize.get();
+	}
+
+	/**
+	 * @return mean time between the first message of a batch and the flush, in ms
+	 */
+	public double getMeanLingerMillis() {
+		long n = batches.sum();
+		return n == 0 ? 0 : lingerNanos.sum() / 1E6 / n;
+	}
+
+	public double getMaxLingerMillis() {
+		return maxLingerNanos.get() / 1E6;
+	}
+
+	/**
+	 * @return number of batches flushed because the maximum number of messages was
+	 *         reached
+	 */
+	public long getFullFlushes() {
+		return fullFlushes.sum();
+	}
+
+	/**
+	 * @return number of batches flushed because the byte budget was reached
+	 */
+	public long getByteFlushes() {
+		return byteFlushes.sum();
+	}
+
+	/**
+	 * @return number of batches flushed because the linger time passed
+	 */
+	public long getLingerFlushes() {
+		return lingerFlushes.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"BatchStatistics [batches=%d, messages=%d, bytes=%d, meanSize=%.1f, maxSize=%d, meanLinger=%.3fms, maxLinger=%.3fms, full=%d, bytes=%d, linger=%d]",
+				getBatches(), getMessages(), getBytes(), getMeanBatchSize(), getMaxBatchSize(), getMeanLingerMillis(),
+				getMaxLingerMillis(), getFullFlushes(), getByteFlushes(), getLingerFlushes());
+	}
+}
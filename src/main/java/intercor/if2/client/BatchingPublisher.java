@@ -0,0 +1,150 @@
+package intercor.if2.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batching stage in front of an {@link IF2Producer}. Messages are collected,
+ * and published together when the batch is full, when the byte budget is
+ * reached, or when the first message of the batch has waited for the maximum
+ * linger time. Messages of a batch are published on their channel while
+ * holding it only once, and confirmed by the broker in ranges.
+ * 
+ * Batches are published in the order they are flushed, so the order of
+ * messages is kept.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public class BatchingPublisher implements AutoCloseable {
+
+	private final IF2Producer producer;
+	private final int maxMessages;
+	private final long maxBytes;
+	private final long maxLingerNanos;
+	private final ScheduledThreadPoolExecutor timer;
+	private final BatchStatistics statistics = new BatchStatistics();
+
+	/*
+	 * Held while publishing a batch, so that batches are published in order
+	 */
+	private final Object flushLock = new Object();
+
+	private List<OutgoingMessage> batch;
+	private long batchBytes;
+	private long batchStart;
+	private long generation;
+	private ScheduledFuture<?> lingerTimer;
+
+	/**
+	 * @param producer
+	 *            connected producer to publish with
+	 * @param maxMessages
+	 *            maximum number of messages in a batch
+	 * @param maxBytes
+	 *            a batch is flushed when the total size of the message bodies
+	 *            reaches this number of bytes
+	 * @param maxLingerMillis
+	 *            maximum time, in ms, a message waits for the batch to be flushed
+	 */
+	public BatchingPublisher(IF2Producer producer, int maxMessages, long maxBytes, long maxLingerMillis) {
+		this.producer = producer;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+		this.batch = new ArrayList<>(maxMessages);
+		this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "IF2 batch linger");
+			t.setDaemon(true);
+			return t;
+		});
+		// linger timers of batches that are flushed early do not pile up
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Add a message to the current batch.
+	 * 
+	 * @param data
+	 * @return future that completes when the broker confirms the message, and
+	 *         fails when the publisher is closed
+	 */
+	public CompletableFuture<Void> submit(Datum data) {
+		OutgoingMessage message = producer.message(data);
+		BatchStatistics.Cause cause = null;
+		synchronized (this) {
+			if (batch.isEmpty()) {
+				long current = generation;
+				try {
+					lingerTimer = timer.schedule(() -> flush(current, BatchStatistics.Cause.LINGER), maxLingerNanos,
+							TimeUnit.NANOSECONDS);
+				} catch (RejectedExecutionException e) {
+					message.fail(e);
+					return message.future;
+				}
+				batchStart = System.nanoTime();
+			}
+			batch.add(message);
+			batchBytes += message.body.length;
+			if (batch.size() >= maxMessages)
+				cause = BatchStatistics.Cause.FULL;
+			else if (batchBytes >= maxBytes)
+				cause = BatchStatistics.Cause.BYTES;
+		}
+		if (cause != null)
+			flush(-1, cause);
+		return message.future;
+	}
+
+	/**
+	 * Publish the current batch now.
+	 */
+	public void flush() {
+		flush(-1, BatchStatistics.Cause.EXPLICIT);
+	}
+
+	/*
+	 * Flush the current batch, and cancel its linger timer. The linger timer
+	 * passes the generation of the batch it was started for, and does nothing when
+	 * that batch is already flushed.
+	 */
+	private void flush(long expectedGeneration, BatchStatistics.Cause cause) {
+		synchronized (flushLock) {
+			List<OutgoingMessage> flushed;
+			long bytes;
+			long linger;
+			synchronized (this) {
+				if (batch.isEmpty() || (expectedGeneration >= 0 && expectedGeneration != generation))
+					return;
+				flushed = batch;
+				bytes = batchBytes;
+				linger = System.nanoTime() - batchStart;
+				batch = new ArrayList<>(maxMessages);
+				batchBytes = 0;
+				generation++;
+				lingerTimer.cancel(false);
+				lingerTimer = null;
+			}
+			producer.publish(flushed);
+			statistics.record(flushed.size(), bytes, linger, cause);
+		}
+	}
+
+	public BatchStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Flush the current batch, and stop the linger timer.
+	 */
+	@Override
+	public void close() {
+		flush();
+		timer.shutdown();
+	}
+}
@@ -0,0 +1,248 @@
+package intercor.if2.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Minimal set of bindings for a set of routing key filters. Filters of the form
+ * type.version.provider.subtype.q.q.q.# are quadtree filters. A quadtree filter
+ * makes every filter redundant that has the same, or a more specific, leading
+ * fields and a quadtree path below it. Optionally, the filters of all four
+ * children of a tile are merged into the filter of the tile. The merged filter
+ * also matches messages published at the zoom level of the tile itself, so the
+ * consumer should still filter the messages it receives, e.g. with a
+ * {@link TopicMatcher}.
+ *
+ * Every change of the filters returns the bindings to add and remove, so that
+ * only the difference has to be sent to the broker.
+ *
+ * This class is not thread safe.
+ *
+ * @copyright (c) Tass International BV
+ */
+public class BindingSet {
+
+	/**
+	 * Bindings to add and to remove after a change of the filters.
+	 */
+	public static class Change {
+		private final List<String> added;
+		private final List<String> removed;
+
+		Change(List<String> added, List<String> removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+
+		public List<String> getAdded() {
+			return added;
+		}
+
+		public List<String> getRemoved() {
+			return removed;
+		}
+
+		public boolean isEmpty() {
+			return added.isEmpty() && removed.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "+" + added + " -" + removed;
+		}
+	}
+
+	/*
+	 * Parsed routing key filter. Filters that are neither quadtree filters nor
+	 * exact quadtree keys are not parsed.
+	 */
+	private static final class Filter {
+		final String text;
+		final String[] lead;
+		final String leadText;
+		final String digits;
+		final boolean open;
+
+		Filter(String text, String[] lead, String digits, boolean open) {
+			this.text = text;
+			this.lead = lead;
+			this.leadText = String.join(".", lead);
+			this.digits = digits;
+			this.open = open;
+		}
+	}
+
+	private static final int LEAD = 4;
+
+	private final boolean mergeSiblings;
+	private final Set<String> filters = new LinkedHashSet<>();
+	private Set<String> bindings = Collections.emptySet();
+
+	/**
+	 * @param mergeSiblings
+	 *            true to merge the filters of four sibling tiles into the filter of
+	 *            their parent
+	 */
+	public BindingSet(boolean mergeSiblings) {
+		this.mergeSiblings = mergeSiblings;
+	}
+
+	/**
+	 * Add a routing key filter.
+	 *
+	 * @return the bindings to add and remove
+	 */
+	public Change add(String filter) {
+		return filters.add(filter) ? update() : new Change(Collections.emptyList(), Collections.emptyList());
+	}
+
+	/**
+	 * Remove a routing key filter.
+	 *
+	 * @return the bindings to add and remove
+	 */
+	public Change remove(String filter) {
+		return filters.remove(filter) ? update() : new Change(Collections.emptyList(), Collections.emptyList());
+	}
+
+	/**
+	 * @return the current minimal set of bindings
+	 */
+	public Set<String> getBindings() {
+		return Collections.unmodifiableSet(bindings);
+	}
+
+	/**
+	 * @return the filters added
+	 */
+	public Set<String> getFilters() {
+		return Collections.unmodifiableSet(filters);
+	}
+
+	private Change update() {
+		Set<String> next = minimize();
+		List<String> added = new ArrayList<>();
+		List<String> removed = new ArrayList<>();
+		for (String binding : next)
+			if (!bindings.contains(binding))
+				added.add(binding);
+		for (String binding : bindings)
+			if (!next.contains(binding))
+				removed.add(binding);
+		bindings = next;
+		return new Change(added, removed);
+	}
+
+	private Set<String> minimize() {
+		Set<String> result = new LinkedHashSet<>();
+		if (filters.contains("#")) {
+			result.add("#");
+			return result;
+		}
+		Map<String, Filter> parsed = new LinkedHashMap<>();
+		for (String text : filters) {
+			Filter filter = parse(text);
+			if (filter == null)
+				result.add(text);
+			else
+				parsed.put(text, filter);
+		}
+		if (mergeSiblings)
+			merge(parsed);
+		// open filters by quadtree path
+		Map<String, List<Filter>> open = new HashMap<>();
+		for (Filter filter : parsed.values())
+			if (filter.open)
+				open.computeIfAbsent(filter.digits, d -> new ArrayList<>(1)).add(filter);
+		for (Filter filter : parsed.values())
+			if (!dominated(filter, open))
+				result.add(filter.text);
+		return result;
+	}
+
+	/*
+	 * Replace four open sibling filters with the same leading fields by the filter
+	 * of their parent, deepest tiles first, so that merges cascade upwards.
+	 */
+	private static void merge(Map<String, Filter> parsed) {
+		int max = 0;
+		for (Filter filter : parsed.values())
+			if (filter.open)
+				max = Math.max(max, filter.digits.length());
+		for (int length = max; length > 0; length--) {
+			for (Filter filter : new ArrayList<>(parsed.values())) {
+				if (!filter.open || filter.digits.length() != length)
+					continue;
+				String parent = filter.digits.substring(0, length - 1);
+				String parentText = text(filter.leadText, parent);
+				if (parsed.containsKey(parentText))
+					continue;
+				boolean complete = true;
+				for (char d = '0'; d <= '3' && complete; d++)
+					complete = parsed.containsKey(text(filter.leadText, parent + d));
+				if (complete)
+					parsed.put(parentText, new Filter(parentText, filter.lead, parent, true));
+			}
+		}
+	}
+
+	/*
+	 * A filter is dominated by another open filter with leading fields that cover
+	 * its own, and a quadtree path that is a prefix of its own path.
+	 */
+	private static boolean dominated(Filter filter, Map<String, List<Filter>> open) {
+		for (int length = 0; length <= filter.digits.length(); length++) {
+			List<Filter> candidates = open.get(filter.digits.substring(0, length));
+			if (candidates == null)
+				continue;
+			for (Filter candidate : candidates)
+				if (candidate != filter && covers(candidate.lead, filter.lead))
+					return true;
+		}
+		return false;
+	}
+
+	private static boolean covers(String[] wide, String[] narrow) {
+		for (int i = 0; i < LEAD; i++)
+			if (!wide[i].equals("*") && !wide[i].equals(narrow[i]))
+				return false;
+		return true;
+	}
+
+	private static String text(String leadText, String digits) {
+		StringBuilder sb = new StringBuilder(leadText.length() + 2 * digits.length() + 2).append(leadText);
+		for (int i = 0; i < digits.length(); i++)
+			sb.append('.').append(digits.charAt(i));
+		return sb.append(".#").toString();
+	}
+
+	/*
+	 * @return the parsed filter, or null when it is not a quadtree filter or
+	 * quadtree key
+	 */
+	private static Filter parse(String text) {
+		String[] fields = text.split("\\.", -1);
+		if (fields.length < LEAD)
+			return null;
+		for (int i = 0; i < LEAD; i++)
+			if (fields[i].equals("#") || fields[i].isEmpty())
+				return null;
+		boolean open = fields.length > LEAD && fields[fields.length - 1].equals("#");
+		int end = open ? fields.length - 1 : fields.length;
+		StringBuilder digits = new StringBuilder(end - LEAD);
+		for (int i = LEAD; i < end; i++) {
+			String field = fields[i];
+			if (field.length() != 1 || field.charAt(0) < '0' || field.charAt(0) > '3')
+				return null;
+			digits.append(field.charAt(0));
+		}
+		return new Filter(text, Arrays.copyOf(fields, LEAD), digits.toString(), open);
+	}
+}
@@ -1,5 +1,7 @@
 package intercor.if2.client;
 
+import com.rabbitmq.client.AMQP.BasicProperties;
+
 import quadtree.QuadTreeConverter;
 
 /**
@@ -17,6 +19,9 @@ public class Datum {
 	String messageVersion; // message version. The current DENM version is 1.2.1, encoded as 1_2_1
 	String provider; // identifier of the organisation that publishes the message
 	String subtype; // subtype of the message. In case of DENMs, we use the causecode
+	private final String prefix; // routing key up to and including the subtype
+	private String routingKey; // calculated on first use
+	BasicProperties properties; // message properties, built on first publication
 
 	public Datum(double lat, double lon, int zoom, String messageType, String messageVersion, String provider,
 			String subtype) {
@@ -28,14 +33,17 @@ public class Datum {
 		this.messageVersion = messageVersion;
 		this.provider = provider;
 		this.subtype = subtype;
+		this.prefix = RoutingKeyCache.prefix(messageType, messageVersion, provider, subtype);
 	}
 
 	public String getRoutingKey() {
 		// none of the strings in the routing key should contain ".". This should be
 		// checked
 		// No extra "." after the subtype, as the quadtree starts with a "."
-		return messageType + "." + messageVersion + "." + provider + "." + subtype
-				+ QuadTreeConverter.getQuadTree(zoom, lat, lon, ".");
+		String key = routingKey;
+		if (key == null)
+			routingKey = key = RoutingKeyCache.routingKey(prefix, QuadTreeConverter.encode(zoom, lat, lon));
+		return key;
 	}
 
 	@Override
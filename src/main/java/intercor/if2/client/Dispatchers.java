@@ -0,0 +1,45 @@
+package intercor.if2.client;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for the dispatch modes of {@link IF2Consumer} that give every
+ * delivery a thread of its own. This version is for JDKs before 21, and uses a
+ * pool of platform threads that grows with the number of tasks, and shrinks
+ * again when idle. The caller limits the number of tasks. The multi-release jar
+ * contains a version for JDK 21 and later, that uses virtual threads.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+final class Dispatchers {
+
+	private Dispatchers() {
+	}
+
+	/**
+	 * @return true when tasks run on virtual threads
+	 */
+	static boolean isVirtual() {
+		return false;
+	}
+
+	/**
+	 * @param name
+	 *            prefix of the thread names
+	 * @return an executor that starts every task right away
+	 */
+	static ExecutorService perTask(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				r -> {
+					Thread t = new Thread(r, name + " " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+}
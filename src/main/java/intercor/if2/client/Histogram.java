@@ -0,0 +1,110 @@
+package intercor.if2.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. latencies in nanoseconds.
+ * Values are counted in buckets that are linear within every power of 2, with
+ * 64 buckets per power of 2. Percentiles are reported as the middle of their
+ * bucket, so they are accurate to 1% (0.8% exactly). Recording a
+ * value is a single atomic increment, so threads that record values do not
+ * block each other.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Count a value. Negative values are counted as 0.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucket(value));
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+	/**
+	 * @return number of values counted
+	 */
+	public long count() {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			n += counts.get(i);
+		return n;
+	}
+
+	/**
+	 * @return largest value counted, 0 when none
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the middle of the bucket that contains the percentile, at most
+	 *         {@link #max()}, 0 when no values are counted
+	 */
+	public long percentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			n += snapshot[i] = counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(midpoint(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forget all values. Values recorded at the same time may or may not be
+	 * counted.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		max.set(0);
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+	static long midpoint(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		return lowerBound(bucket) + ((1L << (exponent - SUB_BITS)) >>> 1);
+	}
+}
@@ -6,10 +6,15 @@ import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.management.JMException;
+
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
 
 /**
  * 
@@ -56,9 +61,57 @@ abstract public class IF2Client {
 	 */
 	public static final String USESSL = "USESSL";
 
+	/**
+	 * Recover the connection, channel, queues, bindings and consumers
+	 * automatically when the connection to the broker is lost. Defaults to true.
+	 * It should be a Boolean
+	 */
+	public static final String AUTO_RECOVERY = "AUTO_RECOVERY";
+
+	/**
+	 * Time in milliseconds before the first attempt to recover the connection.
+	 * Every next attempt waits twice as long, up to
+	 * {@link #RECOVERY_MAX_INTERVAL}. Defaults to 1000. It should be an Integer
+	 */
+	public static final String RECOVERY_INTERVAL = "RECOVERY_INTERVAL";
+
+	/**
+	 * Maximum time in milliseconds between attempts to recover the connection.
+	 * Defaults to 30000. It should be an Integer
+	 */
+	public static final String RECOVERY_MAX_INTERVAL = "RECOVERY_MAX_INTERVAL";
+
+	/**
+	 * Print what the client does, and the errors it encounters, on the console.
+	 * Defaults to true. It should be a Boolean
+	 */
+	public static final String VERBOSE = "VERBOSE";
+
+	/**
+	 * Register the metrics of the client as MXBean while it is connected. Defaults
+	 * to true. It should be a Boolean
+	 */
+	public static final String JMX = "JMX";
+
+	/**
+	 * Measure the latency of messages from producer to consumer. The producer adds
+	 * the time of publication and a sequence number to the headers of every
+	 * message, the consumer records the latency and lost messages, see
+	 * {@link LatencyProbe}. Defaults to false. It should be a Boolean
+	 */
+	public static final String PROBE = "PROBE";
+
+	/**
+	 * Name of a {@link LocalBroker} in this process to connect to, instead of the
+	 * AMQP broker at {@link #HOST}. Defaults to "", which connects to HOST
+	 */
+	public static final String LOCAL_BROKER = "LOCAL_BROKER";
+
 	protected Connection connection;
 	protected Channel channel;
 	protected Map<String, Object> props = new HashMap<>();
+	protected final IF2Metrics metrics = new IF2Metrics();
+	private volatile boolean verbose = true;
 
 	public IF2Client() {
 		props.put(HOST, "localhost");
@@ -68,6 +121,13 @@ abstract public class IF2Client {
 		props.put(VIRTUALHOST, "test");
 		props.put(EXCHANGE, "SPAT");
 		props.put(USESSL, true);
+		props.put(AUTO_RECOVERY, true);
+		props.put(RECOVERY_INTERVAL, 1000);
+		props.put(RECOVERY_MAX_INTERVAL, 30000);
+		props.put(VERBOSE, true);
+		props.put(JMX, true);
+		props.put(PROBE, false);
+		props.put(LOCAL_BROKER, "");
 	}
 
 	public IF2Client(Map<String, Object> properties) {
@@ -76,6 +136,25 @@ abstract public class IF2Client {
 		if (properties.containsKey(USESSL) && !(Boolean) properties.get(USESSL))
 			props.put(PORT, 5672);
 		this.props.putAll(properties);
+		verbose = booleanProperty(VERBOSE);
+	}
+
+	/**
+	 * Integer value of a property. Values given as string, e.g. on the command
+	 * line, are parsed.
+	 */
+	protected int intProperty(String key) {
+		Object value = props.get(key);
+		return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+	}
+
+	/**
+	 * Boolean value of a property. Values given as string, e.g. on the command
+	 * line, are parsed.
+	 */
+	protected boolean booleanProperty(String key) {
+		Object value = props.get(key);
+		return value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString());
 	}
 
 	private String reconstructUri(ConnectionFactory factory) {
@@ -89,12 +168,12 @@ abstract public class IF2Client {
 	}
 
 	/**
-	 * Connect to the broker, and generate a channel.
+	 * Create a connection factory, based on the properties.
 	 * 
 	 * @throws NoSuchAlgorithmException
 	 * @throws KeyManagementException
 	 */
-	public void connect() throws Exception {
+	protected ConnectionFactory createConnectionFactory() throws NoSuchAlgorithmException, KeyManagementException {
 		ConnectionFactory factory = new ConnectionFactory();
 		factory.setHost(props.get(HOST).toString());
 		factory.setUsername(props.get(USER).toString());
@@ -102,32 +181,147 @@ abstract public class IF2Client {
 		if (props.get(VIRTUALHOST).toString().length() > 0)
 			factory.setVirtualHost(props.get(VIRTUALHOST).toString());
 		factory.setPort(((Number) props.get(PORT)).intValue());
+		if ((Boolean) props.get(USESSL)) {
+			factory.useSslProtocol();
+		}
+		boolean recovery = booleanProperty(AUTO_RECOVERY);
+		factory.setAutomaticRecoveryEnabled(recovery);
+		factory.setTopologyRecoveryEnabled(recovery);
+		if (recovery) {
+			long interval = Math.max(1, intProperty(RECOVERY_INTERVAL));
+			long max = Math.max(interval, intProperty(RECOVERY_MAX_INTERVAL));
+			// exponential backoff, capped at max
+			factory.setRecoveryDelayHandler(attempt -> Math.min(max, interval << Math.min(30, Math.max(0, attempt))));
+		}
+		return factory;
+	}
 
+	/**
+	 * Open another connection to the same broker as {@link #connect()}, the
+	 * {@link LocalBroker} when one is configured.
+	 */
+	protected Connection newConnection() throws Exception {
+		String local = props.get(LOCAL_BROKER).toString();
+		if (local.length() > 0)
+			return LocalBroker.get(local).newConnection();
+		return createConnectionFactory().newConnection();
+	}
+
+	/**
+	 * Connect to the broker, and generate a channel.
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyManagementException
+	 */
+	public void connect() throws Exception {
 		String uri = "not defined yet";
+		verbose = booleanProperty(VERBOSE);
 		try {
-			if ((Boolean) props.get(USESSL)) {
-				factory.useSslProtocol();
+			String local = props.get(LOCAL_BROKER).toString();
+			if (local.length() > 0) {
+				uri = "local://" + local;
+				connection = LocalBroker.get(local).newConnection();
+			} else {
+				ConnectionFactory factory = createConnectionFactory();
+				uri = reconstructUri(factory);
+				connection = factory.newConnection();
 			}
-			final String url = uri = reconstructUri(factory);
-			connection = factory.newConnection();
+			final String url = uri;
 			connection.addShutdownListener((ShutdownSignalException cause) -> {
-				System.out.println("Connection closed to " + url);
+				log("Connection closed to " + url);
 			});
-			System.out.println("Connection opened to " + url);
+			log("Connection opened to " + url);
 			channel = connection.createChannel();
 			channel.addShutdownListener((ShutdownSignalException cause) -> {
-				System.out.println("Channel closed");
+				log("Channel closed");
 			});
-			System.out.println("Channel opened");
+			if (channel instanceof Recoverable) {
+				((Recoverable) channel).addRecoveryListener(new RecoveryListener() {
+
+					@Override
+					public void handleRecoveryStarted(Recoverable recoverable) {
+						log("Recovering channel");
+					}
+
+					@Override
+					public void handleRecovery(Recoverable recoverable) {
+						log("Channel recovered");
+						metrics.reconnected();
+						recovered();
+					}
+				});
+			}
+			if (connection instanceof AutorecoveringConnection) {
+				((AutorecoveringConnection) connection).addQueueRecoveryListener(this::queueRecovered);
+			}
+			log("Channel opened");
+			if (booleanProperty(JMX)) {
+				try {
+					metrics.register(getClass().getSimpleName());
+				} catch (JMException e) {
+					log(e);
+				}
+			}
 
 		} catch (Exception e) {
-			System.out.println("Exception in connect to " + uri);
+			log("Exception in connect to " + uri);
 			disconnect();
 			throw e;
 
 		}
 	}
 
+	/**
+	 * @return the metrics of this client
+	 */
+	public IF2Metrics getMetrics() {
+		return metrics;
+	}
+
+	protected boolean isVerbose() {
+		return verbose;
+	}
+
+	/**
+	 * Print a message on the console, when {@link #VERBOSE}.
+	 */
+	protected void log(String message) {
+		if (verbose)
+			System.out.println(message);
+	}
+
+	/**
+	 * Count an error, and print it on the console, when {@link #VERBOSE}.
+	 */
+	protected void log(Throwable e) {
+		metrics.error();
+		if (verbose)
+			e.printStackTrace();
+	}
+
+	/**
+	 * @return true when the channel is open. While the connection is being
+	 *         recovered, the channel is not open.
+	 */
+	public boolean isConnected() {
+		Channel channel = this.channel;
+		return channel != null && channel.isOpen();
+	}
+
+	/**
+	 * Called when the channel is recovered after the connection to the broker was
+	 * lost. Queues, bindings and consumers are recovered after this call.
+	 */
+	protected void recovered() {
+	}
+
+	/**
+	 * Called when a queue with a name generated by the broker is declared again
+	 * after recovery, and got a new name.
+	 */
+	protected void queueRecovered(String oldName, String newName) {
+	}
+
 	/**
 	 * Close the channel, and disconnect
 	 */
@@ -137,10 +331,15 @@ abstract public class IF2Client {
 				channel.abort();
 			if (connection != null)
 				connection.abort();
-			System.out.println("Disconnected");
+			log("Disconnected");
 		} catch (IOException e) {
-			e.printStackTrace();
+			log(e);
 		} finally {
+			try {
+				metrics.unregister();
+			} catch (JMException e) {
+				log(e);
+			}
 			connection = null;
 			channel = null;
 		}
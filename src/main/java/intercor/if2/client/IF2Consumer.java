@@ -5,25 +5,144 @@ package intercor.if2.client;
  * @copyright (c) Tass International BV
  */
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.AMQP.Queue.DeclareOk;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
 
 public class IF2Consumer extends IF2Client {
 
+	/**
+	 * Maximum number of unacknowledged messages the broker sends to this
+	 * consumer. 0 means no limit. Defaults to 0. It should be an Integer
+	 */
+	public static final String PREFETCH = "PREFETCH";
+
+	/**
+	 * Number of worker threads that handle messages. With 0 workers, messages are
+	 * handled on the dispatch thread of the client, and acknowledged
+	 * automatically on delivery. With 1 or more workers, messages are handled by
+	 * a worker pool, and acknowledged manually after handling, so that
+	 * {@link #PREFETCH} limits the number of messages in progress. Defaults to 0.
+	 * It should be an Integer
+	 */
+	public static final String WORKERS = "WORKERS";
+
+	/**
+	 * Number of handled messages that are acknowledged at once, when
+	 * {@link #WORKERS} is 1 or more. Defaults to 50. It should be an Integer
+	 */
+	public static final String ACK_BATCH = "ACK_BATCH";
+
+	/**
+	 * Whether subscriptions to all four children of a tile are bound to the queue
+	 * as a single binding of the tile. The binding then also matches messages
+	 * published at the zoom level of the tile, which are filtered out again by
+	 * the consumer. Defaults to false. It should be a Boolean
+	 */
+	public static final String MERGE_SIBLINGS = "MERGE_SIBLINGS";
+
+	/**
+	 * Zoom level of the quadtree prefix by which the latency of messages is broken
+	 * down, with {@link #PROBE}. Defaults to 6. It should be an Integer
+	 */
+	public static final String PROBE_ZOOM = "PROBE_ZOOM";
+
+	/**
+	 * How messages are handled: POOL, by the pool of {@link #WORKERS}; VIRTUAL,
+	 * every message on a thread of its own; or VIRTUAL_KEY, every routing key on a
+	 * thread of its own, so messages with the same routing key are handled one at
+	 * a time, in order. The VIRTUAL modes are meant for handlers that block, and
+	 * acknowledge manually, whatever WORKERS is. They use virtual threads on JDK
+	 * 21 and later, and platform threads on older JDKs. Defaults to POOL
+	 */
+	public static final String DISPATCH = "DISPATCH";
+
+	/**
+	 * Maximum number of messages that are handled at the same time, with a
+	 * VIRTUAL {@link #DISPATCH} mode. When it is reached, the next delivery waits,
+	 * which holds up the broker. Defaults to 1000. It should be an Integer
+	 */
+	public static final String MAX_CONCURRENCY = "MAX_CONCURRENCY";
+
+	static final String POOL = "POOL";
+	static final String VIRTUAL = "VIRTUAL";
+	static final String VIRTUAL_KEY = "VIRTUAL_KEY";
+
+	private AckTracker acks;
+	private LatencyProbe probe;
+	private ExecutorService workers;
+
+	/*
+	 * Threads, permits and partitions per routing key of the VIRTUAL dispatch
+	 * modes
+	 */
+	private ExecutorService dispatcher;
+	private Semaphore permits;
+	private KeyedExecutor partitions;
+
+	/*
+	 * Queue shared by all subscriptions, its bindings, the handlers per routing
+	 * key filter, and the trie to find the handlers of a message.
+	 */
+	private String subscriptionQueue;
+	private BindingSet bindings;
+	private final Map<String, List<IF2MessageHandler>> subscriptions = new HashMap<>();
+	private TopicMatcher<IF2MessageHandler> matcher = new TopicMatcher<>();
+	private final ReadWriteLock matcherLock = new ReentrantReadWriteLock();
+
 	public IF2Consumer() {
 		super();
+		setDefaults();
 	}
 
 	public IF2Consumer(Map<String, Object> properties) {
 		super(properties);
+		setDefaults();
+	}
+
+	private void setDefaults() {
+		props.putIfAbsent(PREFETCH, 0);
+		props.putIfAbsent(WORKERS, 0);
+		props.putIfAbsent(ACK_BATCH, 50);
+		props.putIfAbsent(MERGE_SIBLINGS, false);
+		props.putIfAbsent(PROBE_ZOOM, 6);
+		props.putIfAbsent(DISPATCH, POOL);
+		props.putIfAbsent(MAX_CONCURRENCY, 1000);
+		if (booleanProperty(PROBE)) {
+			probe = new LatencyProbe(intProperty(PROBE_ZOOM));
+			metrics.probe(probe);
+		}
 	}
 
+	/**
+	 * Handler that prints every message received. If real ASN.1 messages would be
+	 * transmitted, the message could not be converted to a string like done here.
+	 */
+	public static final IF2MessageHandler PRINT = message -> {
+		ByteBuffer payload = message.getPayload();
+		byte[] body = new byte[payload.remaining()];
+		payload.get(body);
+		System.out.println("Message received from exchange " + message.getExchange() + ":" + new String(body));
+	};
+
 	/**
 	 * Based on the connection and channel opened earlier, create a temporary queue,
 	 * and bind the queue to the correct exchange with the prescribed key. A simple
@@ -33,33 +152,395 @@ public class IF2Consumer extends IF2Client {
 	 *            The routing key to use
 	 */
 	public void startListening(String key) {
+		startListening(key, PRINT);
+	}
+
+	/**
+	 * Based on the connection and channel opened earlier, create a temporary queue,
+	 * and bind the queue to the correct exchange with the prescribed key. Every
+	 * message received is passed to the handler.
+	 * 
+	 * @param key
+	 *            The routing key to use
+	 * @param handler
+	 *            handler of the messages
+	 */
+	public void startListening(String key, IF2MessageHandler handler) {
+		try {
+			String queue = consume(handler);
+			channel.queueBind(queue, props.get(IF2Client.EXCHANGE).toString(), key);
+			log("Waiting for incoming messages...");
+		} catch (Exception ex) {
+			log(ex);
+			disconnect();
+		}
+	}
+
+	/**
+	 * Subscribe to messages with a routing key filter. All subscriptions of this
+	 * consumer share a single temporary queue, which is created on the first
+	 * subscription. The bindings of the queue are kept minimal: a key is not bound
+	 * when another handler subscribed with the same key before, or when a coarser
+	 * quadtree subscription already covers it. Every message received is
+	 * passed once to every handler with a matching subscription.
+	 * 
+	 * @param key
+	 *            The routing key filter to use
+	 * @param handler
+	 *            handler of the messages
+	 * @throws IOException
+	 *             when the queue or binding could not be created
+	 */
+	public synchronized void subscribe(String key, IF2MessageHandler handler) throws IOException {
+		if (subscriptionQueue == null) {
+			subscriptionQueue = consume(this::dispatch);
+			bindings = new BindingSet(booleanProperty(MERGE_SIBLINGS));
+		}
+		List<IF2MessageHandler> handlers = subscriptions.get(key);
+		if (handlers == null) {
+			try {
+				apply(bindings.add(key));
+			} catch (IOException | RuntimeException e) {
+				bindings.remove(key);
+				throw e;
+			}
+			subscriptions.put(key, handlers = new ArrayList<>(1));
+		}
+		handlers.add(handler);
+		matcherLock.writeLock().lock();
+		try {
+			matcher.add(key, handler);
+		} finally {
+			matcherLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove all subscriptions with a routing key filter, and the binding of the
+	 * key to the queue, without reconnecting.
+	 * 
+	 * @param key
+	 *            The routing key filter used to subscribe
+	 * @throws IOException
+	 *             when the binding could not be removed
+	 */
+	public synchronized void unsubscribe(String key) throws IOException {
+		List<IF2MessageHandler> handlers = subscriptions.get(key);
+		if (handlers == null)
+			return;
+		for (IF2MessageHandler handler : new ArrayList<>(handlers))
+			unsubscribe(key, handler);
+	}
+
+	/**
+	 * Remove a single subscription. The binding of the key to the queue is removed
+	 * when this was the last subscription with the key.
+	 * 
+	 * @param key
+	 *            The routing key filter used to subscribe
+	 * @param handler
+	 *            the handler used to subscribe
+	 * @throws IOException
+	 *             when the binding could not be removed
+	 */
+	public synchronized void unsubscribe(String key, IF2MessageHandler handler) throws IOException {
+		List<IF2MessageHandler> handlers = subscriptions.get(key);
+		if (handlers == null || !handlers.contains(handler))
+			return;
+		if (handlers.size() == 1) {
+			try {
+				apply(bindings.remove(key));
+			} catch (IOException | RuntimeException e) {
+				bindings.add(key);
+				throw e;
+			}
+			subscriptions.remove(key);
+		}
+		handlers.remove(handler);
+		matcherLock.writeLock().lock();
+		try {
+			matcher.remove(key, handler);
+		} finally {
+			matcherLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Send a change of the bindings of the subscription queue to the broker. New
+	 * bindings are added before old ones are removed, so that no messages are
+	 * missed in between.
+	 */
+	private void apply(BindingSet.Change change) throws IOException {
+		String exchange = props.get(IF2Client.EXCHANGE).toString();
+		for (String key : change.getAdded())
+			channel.queueBind(subscriptionQueue, exchange, key);
+		for (String key : change.getRemoved())
+			channel.queueUnbind(subscriptionQueue, exchange, key);
+	}
+
+	/*
+	 * Pass a message of the subscription queue to every handler with a matching
+	 * subscription. When handlers fail, the first failure is thrown after all
+	 * handlers have been called. A handler can match more than once, but there are
+	 * only a few, so duplicates are skipped by looking back in a list.
+	 */
+	private void dispatch(IF2Message message) throws Exception {
+		List<IF2MessageHandler> handlers = new ArrayList<>(4);
+		matcherLock.readLock().lock();
+		try {
+			matcher.match(message.getEnvelope().getRoutingKey(), handlers);
+		} finally {
+			matcherLock.readLock().unlock();
+		}
+		Exception failure = null;
+		for (int i = 0; i < handlers.size(); i++) {
+			IF2MessageHandler handler = handlers.get(i);
+			if (indexOf(handlers, handler) < i)
+				continue;
+			try {
+				handler.handle(message);
+			} catch (Exception e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private static int indexOf(List<IF2MessageHandler> handlers, IF2MessageHandler handler) {
+		int i = 0;
+		while (handlers.get(i) != handler)
+			i++;
+		return i;
+	}
+
+	/*
+	 * Create a temporary queue for this consumer.
+	 */
+	private String declareQueue() throws IOException {
 		Map<String, Object> args = new HashMap<String, Object>();
 		// Just to be sure that we do not block the broker, put some limits on queue
 		// length and lifetime of the messages
 		args.put("x-max-length", 1000); // limit queue length to 1000 elements.
 		args.put("x-message-ttl", 60 * 10 * 1000); // limit max time to 10 minutes
+		DeclareOk queueDeclare = channel.queueDeclare("", false, true, true, args);
+		return queueDeclare.getQueue();
+	}
+
+	/*
+	 * Create a temporary queue, and start consuming it, passing every message to
+	 * the handler. The settings are checked before the queue is declared, so that
+	 * a wrong setting does not leave a queue behind.
+	 *
+	 * @return name of the queue
+	 */
+	private String consume(IF2MessageHandler handler) throws IOException {
+		String dispatch = props.get(DISPATCH).toString().toUpperCase();
+		final boolean virtual = dispatch.equals(VIRTUAL) || dispatch.equals(VIRTUAL_KEY);
+		if (virtual)
+			dispatcher(dispatch.equals(VIRTUAL_KEY));
+		else if (!dispatch.equals(POOL))
+			throw new IllegalArgumentException("Unknown " + DISPATCH + " " + dispatch);
+		int prefetch = intProperty(PREFETCH);
+		if (prefetch > 0)
+			channel.basicQos(prefetch);
+		boolean manual = virtual || intProperty(WORKERS) > 0;
+		final AckTracker acks = manual ? ackTracker() : null;
+		final ExecutorService workers = manual && !virtual ? workers() : null;
+		Consumer consumer = new DefaultConsumer(channel) {
+
+			@Override
+			public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties,
+					byte[] body) throws IOException {
+				metrics.consumed(envelope.getExchange(), envelope.getRoutingKey(), body.length);
+				IF2Message message = new IF2Message(envelope, properties, body);
+				if (!manual) {
+					handle(handler, message);
+					return;
+				}
+				long tag = envelope.getDeliveryTag();
+				int generation = acks.delivered(tag);
+				// the message is rejected when the handler throws, even an Error, so later
+				// deliveries can still be acknowledged
+				Runnable task = () -> {
+					boolean success = false;
+					try {
+						success = handle(handler, message);
+					} finally {
+						try {
+							acks.handled(generation, tag, success);
+						} catch (ShutdownSignalException e) {
+							// the channel is closed, the broker delivers the message again
+						} catch (IOException e) {
+							log(e);
+						}
+					}
+				};
+				if (virtual)
+					dispatch(envelope.getRoutingKey(), task);
+				else
+					workers.execute(task);
+			}
+
+		};
+		String queue = declareQueue();
+		channel.basicConsume(queue, !manual, consumer);
+		return queue;
+	}
+
+	/**
+	 * @return the end-to-end latencies of the messages received, null when
+	 *         {@link #PROBE} is off
+	 */
+	public LatencyProbe getProbe() {
+		return probe;
+	}
 
+	/*
+	 * Run a handler, and measure its execution time.
+	 * 
+	 * @return false when the handler failed
+	 */
+	private boolean handle(IF2MessageHandler handler, IF2Message message) {
+		if (probe != null)
+			probe.record(message, LatencyProbe.now());
+		long start = System.nanoTime();
+		boolean success = false;
 		try {
-			DeclareOk queueDeclare = channel.queueDeclare("", false, true, true, args);
-			final String queue = queueDeclare.getQueue();
-			channel.queueBind(queue, props.get(IF2Client.EXCHANGE).toString(), key);
-			Consumer consumer = new DefaultConsumer(channel) {
+			handler.handle(message);
+			success = true;
+		} catch (Exception e) {
+			log(e);
+		} finally {
+			metrics.handled(System.nanoTime() - start, success);
+		}
+		return success;
+	}
+
+	/*
+	 * Deliveries still being handled cannot be acknowledged anymore after
+	 * recovery, as the broker delivers them again with new delivery tags. The
+	 * tracker continues after the highest tag delivered so far.
+	 */
+	@Override
+	protected void recovered() {
+		AckTracker acks;
+		synchronized (this) {
+			acks = this.acks;
+		}
+		if (acks != null)
+			acks.reset();
+	}
 
-				@Override
-				public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties,
-						byte[] body) throws IOException {
-					// If real ASN.1 messages would be transmitted, the message could not be
-					// converted to a string like done here.
-					System.out.println("Message received from exchange " + EXCHANGE + ":" + new String(body));
+	/*
+	 * The subscription queue is declared with a name generated by the broker, and
+	 * gets a new name after recovery.
+	 */
+	@Override
+	protected synchronized void queueRecovered(String oldName, String newName) {
+		if (oldName.equals(subscriptionQueue))
+			subscriptionQueue = newName;
+	}
 
-				}
+	private synchronized AckTracker ackTracker() {
+		if (acks == null || acks.getChannel() != channel)
+			acks = new AckTracker(channel, intProperty(ACK_BATCH));
+		return acks;
+	}
 
-			};
-			String consumertag = channel.basicConsume(queue, true, consumer);
-			System.out.println("Waiting for incoming messages...");
-		} catch (Exception ex) {
-			ex.printStackTrace();
-			disconnect();
+	/*
+	 * Bounded worker pool. The queue holds at least the prefetch count, so it only
+	 * fills up without prefetch limit; then the dispatch thread handles messages
+	 * itself, which slows down delivery.
+	 */
+	private synchronized ExecutorService workers() {
+		if (workers == null) {
+			int n = intProperty(WORKERS);
+			int capacity = Math.max(intProperty(PREFETCH), 1000);
+			AtomicInteger count = new AtomicInteger();
+			workers = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(capacity), r -> {
+				Thread t = new Thread(r, "IF2 consumer worker " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return workers;
+	}
+
+	/*
+	 * Threads of the VIRTUAL dispatch modes, shared by all queues of this consumer
+	 */
+	private synchronized void dispatcher(boolean perKey) {
+		if (dispatcher == null) {
+			dispatcher = Dispatchers.perTask("IF2 consumer dispatch");
+			permits = new Semaphore(Math.max(1, intProperty(MAX_CONCURRENCY)));
+			log("Dispatching on " + (Dispatchers.isVirtual() ? "virtual" : "platform") + " threads");
+		}
+		if (perKey && partitions == null)
+			partitions = new KeyedExecutor(dispatcher);
+	}
+
+	/*
+	 * Run a task on a thread of its own, or of its routing key. Waiting for a
+	 * permit blocks the dispatch thread of the client, so deliveries stop while
+	 * MAX_CONCURRENCY messages are being handled.
+	 */
+	private void dispatch(String key, Runnable task) {
+		ExecutorService dispatcher;
+		Semaphore permits;
+		KeyedExecutor partitions;
+		synchronized (this) {
+			dispatcher = this.dispatcher;
+			permits = this.permits;
+			partitions = this.partitions;
+		}
+		if (dispatcher == null)
+			return;
+		permits.acquireUninterruptibly();
+		Runnable release = () -> {
+			try {
+				task.run();
+			} finally {
+				permits.release();
+			}
+		};
+		try {
+			if (partitions != null)
+				partitions.execute(key, release);
+			else
+				dispatcher.execute(release);
+		} catch (RejectedExecutionException e) {
+			// disconnected; the broker delivers the message again
+			permits.release();
+		}
+	}
+
+	/**
+	 * Close the channel, disconnect, and stop the workers.
+	 */
+	@Override
+	public void disconnect() {
+		super.disconnect();
+		synchronized (this) {
+			subscriptionQueue = null;
+			bindings = null;
+			subscriptions.clear();
+			matcherLock.writeLock().lock();
+			try {
+				matcher = new TopicMatcher<>();
+			} finally {
+				matcherLock.writeLock().unlock();
+			}
+			acks = null;
+			if (workers != null)
+				workers.shutdown();
+			workers = null;
+			if (dispatcher != null)
+				dispatcher.shutdown();
+			dispatcher = null;
+			permits = null;
+			partitions = null;
 		}
 	}
 }
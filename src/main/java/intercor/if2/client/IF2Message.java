@@ -0,0 +1,84 @@
+package intercor.if2.client;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * A message received by an {@link IF2Consumer}. The payload is a read-only view
+ * on the received body, without copying it, so binary (e.g. ASN.1 encoded)
+ * payloads can be decoded directly.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public class IF2Message {
+	private final Envelope envelope;
+	private final BasicProperties properties;
+	private final byte[] body;
+	private RoutingKey routingKey;
+
+	IF2Message(Envelope envelope, BasicProperties properties, byte[] body) {
+		this.envelope = envelope;
+		this.properties = properties;
+		this.body = body;
+	}
+
+	public Envelope getEnvelope() {
+		return envelope;
+	}
+
+	public String getExchange() {
+		return envelope.getExchange();
+	}
+
+	public BasicProperties getProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return the routing key, parsed on first use
+	 */
+	public RoutingKey getRoutingKey() {
+		if (routingKey == null)
+			routingKey = new RoutingKey(envelope.getRoutingKey());
+		return routingKey;
+	}
+
+	/**
+	 * @return latitude from the message headers, or NaN when not available
+	 */
+	public double getLat() {
+		return header("lat");
+	}
+
+	/**
+	 * @return longitude from the message headers, or NaN when not available
+	 */
+	public double getLon() {
+		return header("lon");
+	}
+
+	private double header(String name) {
+		Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+		Object value = headers == null ? null : headers.get(name);
+		return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+	}
+
+	/**
+	 * @return read-only view on the payload. Every call returns a new view, with
+	 *         its own position.
+	 */
+	public ByteBuffer getPayload() {
+		return ByteBuffer.wrap(body).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return size of the payload, in bytes
+	 */
+	public int getPayloadSize() {
+		return body.length;
+	}
+}
@@ -0,0 +1,22 @@
+package intercor.if2.client;
+
+/**
+ * Handler of the messages received by an {@link IF2Consumer}.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+@FunctionalInterface
+public interface IF2MessageHandler {
+
+	/**
+	 * Handle a single message. When {@link IF2Consumer#WORKERS} is 0, this runs
+	 * on the dispatch thread of the client, otherwise on a worker thread, and the
+	 * message is acknowledged when this method returns normally and rejected when
+	 * it throws.
+	 * 
+	 * @param message
+	 * @throws Exception
+	 */
+	void handle(IF2Message message) throws Exception;
+}
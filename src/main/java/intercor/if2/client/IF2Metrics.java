@@ -0,0 +1,497 @@
+package intercor.if2.client;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a producer or consumer. Counters are striped, and histograms are
+ * lock-free, so that threads that publish or handle messages do not contend on
+ * them. Rates and percentiles are only calculated when they are read.
+ *
+ * The metrics can be registered as MXBean, named
+ * intercor.if2:type=IF2Producer,id=1 or similar.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+public class IF2Metrics implements IF2MetricsMXBean {
+
+	private static final AtomicInteger ids = new AtomicInteger();
+	private static final LongSupplier ZERO = () -> 0;
+
+	/*
+	 * Counter with a rate, that is calculated over at least a second.
+	 */
+	private static final class Meter {
+		final LongAdder count = new LongAdder();
+		private long lastTime = System.nanoTime();
+		private long lastCount = 0;
+		private double rate = 0;
+
+		synchronized double rate() {
+			long now = System.nanoTime();
+			long elapsed = now - lastTime;
+			if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+				long count = this.count.sum();
+				rate = (count - lastCount) * 1e9 / elapsed;
+				lastCount = count;
+				lastTime = now;
+			}
+			return rate;
+		}
+	}
+
+	/*
+	 * Counters per provider, the third field of the routing key. A counter is
+	 * looked up by the region of the key, without creating a string for it, in an
+	 * open addressing table with linear probing. The table is copied when a
+	 * provider is added, which is rare, so that lookups need no lock.
+	 */
+	private static final class ProviderCounts {
+		private static final class Entry {
+			final String provider;
+			final LongAdder count;
+
+			Entry(String provider, LongAdder count) {
+				this.provider = provider;
+				this.count = count;
+			}
+		}
+
+		final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+		private volatile Entry[] table = new Entry[16];
+
+		void increment(String key) {
+			int start = providerStart(key);
+			int end = providerEnd(key, start);
+			Entry[] table = this.table;
+			int mask = table.length - 1;
+			int length = end - start;
+			for (int i = index(key, start, end, mask);; i = (i + 1) & mask) {
+				Entry entry = table[i];
+				if (entry == null) {
+					add(key.substring(start, end)).increment();
+					return;
+				}
+				if (entry.provider.length() == length && entry.provider.regionMatches(0, key, start, length)) {
+					entry.count.increment();
+					return;
+				}
+			}
+		}
+
+		private synchronized LongAdder add(String provider) {
+			LongAdder count = counts.get(provider);
+			if (count != null)
+				return count;
+			count = new LongAdder();
+			counts.put(provider, count);
+			Entry[] table = new Entry[this.table.length * (counts.size() * 2 > this.table.length ? 2 : 1)];
+			for (Map.Entry<String, LongAdder> entry : counts.entrySet())
+				insert(table, new Entry(entry.getKey(), entry.getValue()));
+			this.table = table;
+			return count;
+		}
+
+		private static void insert(Entry[] table, Entry entry) {
+			int mask = table.length - 1;
+			int i = index(entry.provider, 0, entry.provider.length(), mask);
+			while (table[i] != null)
+				i = (i + 1) & mask;
+			table[i] = entry;
+		}
+
+		/*
+		 * The hash code of the string of a region, spread over the table.
+		 */
+		private static int index(String key, int start, int end, int mask) {
+			int h = 0;
+			for (int i = start; i < end; i++)
+				h = 31 * h + key.charAt(i);
+			return (h ^ (h >>> 16)) & mask;
+		}
+	}
+
+	private final Meter published = new Meter();
+	private final Meter publishedBytes = new Meter();
+	private final Meter consumed = new Meter();
+	private final Meter consumedBytes = new Meter();
+	private final LongAdder confirmed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder handlerFailures = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final Histogram confirmLatency = new Histogram();
+	private final Histogram handlerTime = new Histogram();
+	private final Map<String, LongAdder> publishedPerExchange = new ConcurrentHashMap<>();
+	private final ProviderCounts publishedPerProvider = new ProviderCounts();
+	private final Map<String, LongAdder> consumedPerExchange = new ConcurrentHashMap<>();
+	private final ProviderCounts consumedPerProvider = new ProviderCounts();
+
+	private volatile LongSupplier inFlight = ZERO;
+	private volatile LongSupplier buffered = ZERO;
+	private volatile LongSupplier dropped = ZERO;
+	private volatile LongSupplier journalPending = ZERO;
+
+	private volatile LatencyProbe probe;
+
+	private ObjectName name;
+
+	/**
+	 * Count a published message.
+	 */
+	void published(String exchange, String key, int bytes) {
+		published.count.increment();
+		publishedBytes.count.add(bytes);
+		count(publishedPerExchange, exchange);
+		publishedPerProvider.increment(key);
+	}
+
+	/**
+	 * Count a message confirmed by the broker.
+	 *
+	 * @param nanos
+	 *            time between publication and confirmation
+	 */
+	void confirmed(long nanos) {
+		confirmed.increment();
+		confirmLatency.record(nanos);
+	}
+
+	void rejected() {
+		rejected.increment();
+	}
+
+	/**
+	 * Count a received message.
+	 */
+	void consumed(String exchange, String key, int bytes) {
+		consumed.count.increment();
+		consumedBytes.count.add(bytes);
+		count(consumedPerExchange, exchange);
+		consumedPerProvider.increment(key);
+	}
+
+	/**
+	 * Count a message handled by a handler.
+	 *
+	 * @param nanos
+	 *            execution time of the handler
+	 * @param success
+	 *            false when the handler failed
+	 */
+	void handled(long nanos, boolean success) {
+		handlerTime.record(nanos);
+		if (!success)
+			handlerFailures.increment();
+	}
+
+	void reconnected() {
+		reconnects.increment();
+	}
+
+	void error() {
+		errors.increment();
+	}
+
+	/**
+	 * Set the functions that give the current state of a producer.
+	 */
+	void gauges(LongSupplier inFlight, LongSupplier buffered, LongSupplier dropped, LongSupplier journalPending) {
+		this.inFlight = inFlight;
+		this.buffered = buffered;
+		this.dropped = dropped;
+		this.journalPending = journalPending;
+	}
+
+	/**
+	 * Set the probe of a consumer.
+	 */
+	void probe(LatencyProbe probe) {
+		this.probe = probe;
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server, once.
+	 *
+	 * @param type
+	 *            type in the name of the MXBean
+	 */
+	synchronized void register(String type) throws JMException {
+		if (name != null)
+			return;
+		ObjectName name = new ObjectName("intercor.if2:type=" + type + ",id=" + ids.incrementAndGet());
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		this.name = name;
+	}
+
+	synchronized void unregister() throws JMException {
+		if (name == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+		name = null;
+	}
+
+	/**
+	 * @return name of the MXBean, null when not registered
+	 */
+	public synchronized ObjectName getName() {
+		return name;
+	}
+
+	/*
+	 * The provider is the third field of the routing key.
+	 */
+	static String provider(String key) {
+		int start = providerStart(key);
+		return key.substring(start, providerEnd(key, start));
+	}
+
+	/*
+	 * Start of the provider in the routing key, the length of the key when it has
+	 * no provider.
+	 */
+	private static int providerStart(String key) {
+		int first = key.indexOf('.');
+		int second = first < 0 ? -1 : key.indexOf('.', first + 1);
+		return second < 0 ? key.length() : second + 1;
+	}
+
+	private static int providerEnd(String key, int start) {
+		int end = key.indexOf('.', start);
+		return end < 0 ? key.length() : end;
+	}
+
+	private static void count(Map<String, LongAdder> counts, String key) {
+		LongAdder count = counts.get(key);
+		if (count == null)
+			count = counts.computeIfAbsent(key, k -> new LongAdder());
+		count.increment();
+	}
+
+	private static Map<String, Long> snapshot(Map<String, LongAdder> counts) {
+		Map<String, Long> result = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : counts.entrySet())
+			result.put(entry.getKey(), entry.getValue().sum());
+		return result;
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	@Override
+	public long getPublishedMessages() {
+		return published.count.sum();
+	}
+
+	@Override
+	public long getPublishedBytes() {
+		return publishedBytes.count.sum();
+	}
+
+	@Override
+	public double getPublishRate() {
+		return published.rate();
+	}
+
+	@Override
+	public double getPublishByteRate() {
+		return publishedBytes.rate();
+	}
+
+	@Override
+	public long getConfirmed() {
+		return confirmed.sum();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	@Override
+	public long getConfirmLatency50() {
+		return micros(confirmLatency.percentile(50));
+	}
+
+	@Override
+	public long getConfirmLatency99() {
+		return micros(confirmLatency.percentile(99));
+	}
+
+	@Override
+	public long getConfirmLatency999() {
+		return micros(confirmLatency.percentile(99.9));
+	}
+
+	@Override
+	public long getConfirmLatencyMax() {
+		return micros(confirmLatency.max());
+	}
+
+	@Override
+	public long getInFlight() {
+		return inFlight.getAsLong();
+	}
+
+	@Override
+	public long getBuffered() {
+		return buffered.getAsLong();
+	}
+
+	@Override
+	public long getDropped() {
+		return dropped.getAsLong();
+	}
+
+	@Override
+	public long getJournalPending() {
+		return journalPending.getAsLong();
+	}
+
+	@Override
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	@Override
+	public long getConsumedMessages() {
+		return consumed.count.sum();
+	}
+
+	@Override
+	public long getConsumedBytes() {
+		return consumedBytes.count.sum();
+	}
+
+	@Override
+	public double getConsumeRate() {
+		return consumed.rate();
+	}
+
+	@Override
+	public double getConsumeByteRate() {
+		return consumedBytes.rate();
+	}
+
+	@Override
+	public long getHandlerTime50() {
+		return micros(handlerTime.percentile(50));
+	}
+
+	@Override
+	public long getHandlerTime99() {
+		return micros(handlerTime.percentile(99));
+	}
+
+	@Override
+	public long getHandlerTimeMax() {
+		return micros(handlerTime.max());
+	}
+
+	@Override
+	public long getHandlerFailures() {
+		return handlerFailures.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public Map<String, Long> getPublishedPerExchange() {
+		return snapshot(publishedPerExchange);
+	}
+
+	@Override
+	public Map<String, Long> getPublishedPerProvider() {
+		return snapshot(publishedPerProvider.counts);
+	}
+
+	@Override
+	public Map<String, Long> getConsumedPerExchange() {
+		return snapshot(consumedPerExchange);
+	}
+
+	@Override
+	public Map<String, Long> getConsumedPerProvider() {
+		return snapshot(consumedPerProvider.counts);
+	}
+
+	@Override
+	public long getProbeReceived() {
+		LatencyProbe probe = this.probe;
+		return probe == null ? 0 : probe.count();
+	}
+
+	@Override
+	public long getProbeLatency50() {
+		return probeLatency(50);
+	}
+
+	@Override
+	public long getProbeLatency99() {
+		return probeLatency(99);
+	}
+
+	@Override
+	public long getProbeLatency999() {
+		return probeLatency(99.9);
+	}
+
+	@Override
+	public long getProbeLatencyMax() {
+		LatencyProbe probe = this.probe;
+		return probe == null ? 0 : micros(probe.max());
+	}
+
+	@Override
+	public Map<String, Long> getProbeLatency99PerArea() {
+		LatencyProbe probe = this.probe;
+		Map<String, Long> result = new TreeMap<>();
+		if (probe != null)
+			for (Map.Entry<String, Long> entry : probe.percentiles(99).entrySet())
+				result.put(entry.getKey(), micros(entry.getValue()));
+		return result;
+	}
+
+	@Override
+	public long getProbeLost() {
+		LatencyProbe probe = this.probe;
+		return probe == null ? 0 : probe.lost();
+	}
+
+	@Override
+	public long getProbeLate() {
+		LatencyProbe probe = this.probe;
+		return probe == null ? 0 : probe.late();
+	}
+
+	private long probeLatency(double percentile) {
+		LatencyProbe probe = this.probe;
+		return probe == null ? 0 : micros(probe.percentile(percentile));
+	}
+
+	@Override
+	public void resetHistograms() {
+		confirmLatency.reset();
+		handlerTime.reset();
+		LatencyProbe probe = this.probe;
+		if (probe != null)
+			probe.reset();
+	}
+}
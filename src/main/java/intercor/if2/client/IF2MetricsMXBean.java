@@ -0,0 +1,94 @@
+package intercor.if2.client;
+
+import java.util.Map;
+
+/**
+ * Metrics of a producer or consumer, as exposed over JMX. Rates are per second,
+ * averaged since the previous time the rate was read, at least one second ago.
+ * Latencies and handler times are in microseconds.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public interface IF2MetricsMXBean {
+
+	long getPublishedMessages();
+
+	long getPublishedBytes();
+
+	double getPublishRate();
+
+	double getPublishByteRate();
+
+	long getConfirmed();
+
+	long getRejected();
+
+	long getConfirmLatency50();
+
+	long getConfirmLatency99();
+
+	long getConfirmLatency999();
+
+	long getConfirmLatencyMax();
+
+	long getInFlight();
+
+	long getBuffered();
+
+	long getDropped();
+
+	long getJournalPending();
+
+	long getReconnects();
+
+	long getConsumedMessages();
+
+	long getConsumedBytes();
+
+	double getConsumeRate();
+
+	double getConsumeByteRate();
+
+	long getHandlerTime50();
+
+	long getHandlerTime99();
+
+	long getHandlerTimeMax();
+
+	long getHandlerFailures();
+
+	long getErrors();
+
+	Map<String, Long> getPublishedPerExchange();
+
+	Map<String, Long> getPublishedPerProvider();
+
+	Map<String, Long> getConsumedPerExchange();
+
+	Map<String, Long> getConsumedPerProvider();
+
+	long getProbeReceived();
+
+	long getProbeLatency50();
+
+	long getProbeLatency99();
+
+	long getProbeLatency999();
+
+	long getProbeLatencyMax();
+
+	/**
+	 * 99th percentile of the end-to-end latency per exchange and quadtree prefix
+	 */
+	Map<String, Long> getProbeLatency99PerArea();
+
+	long getProbeLost();
+
+	long getProbeLate();
+
+	/**
+	 * Reset the histograms, including the latencies of the probe
+	 */
+	void resetHistograms();
+}
@@ -5,21 +5,196 @@ package intercor.if2.client;
  * @copyright (c) Tass International BV
  */
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.AMQP.BasicProperties.Builder;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
 
 public class IF2Producer extends IF2Client {
 
+	/**
+	 * Maximum number of messages published with {@link #publishAsync(Datum)} that
+	 * are not yet confirmed by the broker. Defaults to 1000. It should be an
+	 * Integer
+	 */
+	public static final String CONFIRM_WINDOW = "CONFIRM_WINDOW";
+
+	/**
+	 * Number of channels used for publishing. With more than 1 channel, messages
+	 * can be published from multiple threads in parallel. Defaults to 1, which
+	 * publishes on the client channel. It should be an Integer
+	 */
+	public static final String CHANNELS = "CHANNELS";
+
+	/**
+	 * Number of connections the publishing channels are spread over. Defaults to
+	 * 1. It should be an Integer
+	 */
+	public static final String CONNECTIONS = "CONNECTIONS";
+
+	/**
+	 * How messages are assigned to channels when {@link #CHANNELS} is more than 1:
+	 * QUADTREE (hash of the quadtree prefix, which keeps the order of messages per
+	 * area) or ROUND_ROBIN. Defaults to QUADTREE
+	 */
+	public static final String CHANNEL_ASSIGNMENT = "CHANNEL_ASSIGNMENT";
+
+	/**
+	 * Zoom level of the quadtree prefix used for QUADTREE channel assignment.
+	 * Messages in the same tile at this level keep their order. Defaults to 10.
+	 * It should be an Integer
+	 */
+	public static final String ASSIGNMENT_ZOOM = "ASSIGNMENT_ZOOM";
+
+	/**
+	 * Number of messages kept while the connection is being recovered, to publish
+	 * them in order once the channel is back. 0 disables buffering. Only used with
+	 * {@link #AUTO_RECOVERY}. Defaults to 10000. It should be an Integer
+	 */
+	public static final String BUFFER_SIZE = "BUFFER_SIZE";
+
+	/**
+	 * What happens to a message when the buffer is full: DROP_OLDEST (the oldest
+	 * buffered message is dropped), DROP_NEWEST (the new message is dropped) or
+	 * BLOCK (wait until there is room). Defaults to DROP_OLDEST
+	 */
+	public static final String BUFFER_OVERFLOW = "BUFFER_OVERFLOW";
+
+	/**
+	 * Directory of the journal of messages published with
+	 * {@link #publishAsync(Datum)}. Messages that are not confirmed by the broker
+	 * are kept in the journal, also when the producer is restarted, and published
+	 * again. Defaults to "", which disables the journal
+	 */
+	public static final String JOURNAL_DIR = "JOURNAL_DIR";
+
+	/**
+	 * Size in bytes of a journal segment file. Defaults to 16777216 (16 MB). It
+	 * should be an Integer
+	 */
+	public static final String JOURNAL_SEGMENT_SIZE = "JOURNAL_SEGMENT_SIZE";
+
+	/**
+	 * Maximum number of messages per second published again from the journal.
+	 * Defaults to 1000. It should be an Integer
+	 */
+	public static final String JOURNAL_REPLAY_RATE = "JOURNAL_REPLAY_RATE";
+
+	private volatile PublisherConfirms confirms;
+	private volatile PublisherPool pool;
+
+	/*
+	 * Messages waiting for the channel to come back, the flag of the thread that
+	 * publishes them, and the messages that thread could not publish yet, per
+	 * channel.
+	 */
+	private volatile PublishBuffer buffer;
+	private final AtomicBoolean draining = new AtomicBoolean();
+	private final Map<Channel, Queue<OutgoingMessage>> stalled = new ConcurrentHashMap<>();
+	private final AtomicInteger stalledCount = new AtomicInteger();
+
+	private volatile PublishJournal journal;
+
+	/*
+	 * Source id and sequence numbers per routing key of the latency probe, source
+	 * is null when probing is off
+	 */
+	private String probeSource;
+	private final Map<String, AtomicLong> probeSequences = new ConcurrentHashMap<>();
+	private static final AtomicInteger instances = new AtomicInteger();
+	private final AtomicBoolean replaying = new AtomicBoolean();
+
 	public IF2Producer() {
 		super();
+		setDefaults();
 	}
 
 	public IF2Producer(Map<String, Object> properties) {
 		super(properties);
+		setDefaults();
+	}
+
+	private void setDefaults() {
+		metrics.gauges(this::getInFlight, this::getBuffered, this::getDropped, this::getJournalPending);
+		if (booleanProperty(PROBE))
+			probeSource = ManagementFactory.getRuntimeMXBean().getName() + "/" + instances.incrementAndGet();
+		props.putIfAbsent(CONFIRM_WINDOW, 1000);
+		props.putIfAbsent(CHANNELS, 1);
+		props.putIfAbsent(CONNECTIONS, 1);
+		props.putIfAbsent(CHANNEL_ASSIGNMENT, PublisherPool.QUADTREE);
+		props.putIfAbsent(ASSIGNMENT_ZOOM, 10);
+		props.putIfAbsent(BUFFER_SIZE, 10000);
+		props.putIfAbsent(BUFFER_OVERFLOW, PublishBuffer.DROP_OLDEST);
+		props.putIfAbsent(JOURNAL_DIR, "");
+		props.putIfAbsent(JOURNAL_SEGMENT_SIZE, 16 << 20);
+		props.putIfAbsent(JOURNAL_REPLAY_RATE, 1000);
+	}
+
+	/**
+	 * Connect to the broker, and generate a channel. When more than one channel
+	 * or connection is configured, also open the pool of publishing channels.
+	 * With automatic recovery, messages published while the connection is lost
+	 * are buffered. With a journal, messages of an earlier run that were not
+	 * confirmed are published again.
+	 */
+	@Override
+	public void connect() throws Exception {
+		super.connect();
+		if (booleanProperty(AUTO_RECOVERY) && intProperty(BUFFER_SIZE) > 0) {
+			try {
+				buffer = new PublishBuffer(intProperty(BUFFER_SIZE), props.get(BUFFER_OVERFLOW).toString().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				disconnect();
+				throw e;
+			}
+		}
+		int channels = intProperty(CHANNELS);
+		int connections = intProperty(CONNECTIONS);
+		if (channels > 1 || connections > 1) {
+			try {
+				this.pool = new PublisherPool(connection, this::newConnection, connections, channels,
+						intProperty(CONFIRM_WINDOW), props.get(CHANNEL_ASSIGNMENT).toString().toUpperCase(),
+						intProperty(ASSIGNMENT_ZOOM), metrics, this::recovered);
+				if (buffer != null)
+					pool.requeueOnShutdown(this::requeue);
+				log("Opened " + channels + " publishing channels");
+			} catch (Exception e) {
+				disconnect();
+				throw e;
+			}
+		}
+		String dir = props.get(JOURNAL_DIR).toString();
+		if (dir.length() > 0) {
+			try {
+				journal = new PublishJournal(new File(dir), intProperty(JOURNAL_SEGMENT_SIZE));
+				journal.onUnreadable(this::log);
+				log("Opened journal in " + dir + ", " + journal.pendingCount() + " messages to publish");
+			} catch (IOException e) {
+				disconnect();
+				throw e;
+			}
+			replay();
+		}
 	}
 
 	/**
@@ -37,22 +212,432 @@ public class IF2Producer extends IF2Client {
 
 		// Use the message type as exchange name to publish the message to.
 		String exchange = data.messageType;
+		Channel channel = channelFor(data.lat, data.lon, data.zoom);
+		PublishBuffer buffer = this.buffer;
+		if (buffer != null && (channel == null || !channel.isOpen() || buffering(buffer) || stalled(channel))) {
+			buffer(buffer, unconfirmed(data));
+			return;
+		}
 		try {
 			if (channel != null && channel.isOpen()) {
-				// fill the properties that go along with the message
-				BasicProperties.Builder builder = new Builder();
-				HashMap<String, Object> headers = new HashMap<>();
-				headers.put("lat", data.lat);
-				headers.put("lon", data.lon);
-				BasicProperties props = builder.headers(headers).expiration("10000").build();
-				channel.basicPublish(exchange, key, props, message.getBytes());
-				System.out.println("published message " + message);
+				byte[] body = message.getBytes();
+				synchronized (channel) {
+					channel.basicPublish(exchange, key, probe(properties(data), key), body);
+				}
+				metrics.published(exchange, key, body.length);
+				if (isVerbose())
+					log("published message " + message);
 			} else {
-				System.out.println("Cannot publish, no channel available");
+				log("Cannot publish, no channel available");
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		} catch (IOException | ShutdownSignalException e) {
+			if (buffer != null) {
+				buffer(buffer, unconfirmed(data));
+				return;
+			}
+			log(e);
 			disconnect();
 		}
 	}
+
+	/**
+	 * Publish a message to an previously opened connection and channel, without
+	 * waiting for the broker. The channel is put in confirm mode, and the returned
+	 * future completes when the broker confirms the message. It fails when the
+	 * message could not be sent, the broker rejects the message, or the channel
+	 * closes before the message is confirmed. When {@link #CONFIRM_WINDOW} messages
+	 * are waiting for confirmation, this call blocks.
+	 * 
+	 * @param data
+	 * @return future that completes on confirmation by the broker
+	 */
+	public CompletableFuture<Void> publishAsync(Datum data) {
+		return publish(message(data));
+	}
+
+	/*
+	 * Publish a message on the channel selected for its location.
+	 */
+	CompletableFuture<Void> publish(OutgoingMessage message) {
+		journal(message);
+		PublishBuffer buffer = this.buffer;
+		if (buffer != null) {
+			if (buffering(buffer) || stalled(channelFor(message.lat, message.lon, message.zoom)) || !send(message))
+				buffer(buffer, message);
+			return message.future;
+		}
+		try {
+			return confirms(message.lat, message.lon, message.zoom).publish(message);
+		} catch (IOException e) {
+			message.fail(e);
+			return message.future;
+		}
+	}
+
+	/*
+	 * Publish a batch of messages. Messages for the same channel are published
+	 * together, in order.
+	 */
+	void publish(List<OutgoingMessage> batch) {
+		for (OutgoingMessage message : batch)
+			journal(message);
+		PublishBuffer buffer = this.buffer;
+		if (buffer != null && buffering(buffer)) {
+			for (OutgoingMessage message : batch)
+				buffer.add(message);
+			drain();
+			return;
+		}
+		Map<PublisherConfirms, List<OutgoingMessage>> perChannel = new LinkedHashMap<>();
+		boolean buffered = false;
+		for (OutgoingMessage message : batch) {
+			try {
+				PublisherConfirms confirms = confirms(message.lat, message.lon, message.zoom);
+				if (buffer != null && (!confirms.getChannel().isOpen() || stalled(confirms.getChannel()))) {
+					buffer.add(message);
+					buffered = true;
+					continue;
+				}
+				perChannel.computeIfAbsent(confirms, c -> new ArrayList<>(batch.size())).add(message);
+			} catch (IOException e) {
+				if (buffer == null) {
+					message.fail(e);
+				} else {
+					buffer.add(message);
+					buffered = true;
+				}
+			}
+		}
+		for (Map.Entry<PublisherConfirms, List<OutgoingMessage>> entry : perChannel.entrySet()) {
+			entry.getKey().publish(entry.getValue());
+		}
+		if (buffered)
+			drain();
+	}
+
+	/**
+	 * @return number of messages waiting for the connection to be recovered
+	 */
+	public int getBuffered() {
+		PublishBuffer buffer = this.buffer;
+		return buffer == null ? 0 : buffer.size() + stalledCount.get();
+	}
+
+	/**
+	 * @return number of messages dropped because the buffer was full
+	 */
+	public long getDropped() {
+		PublishBuffer buffer = this.buffer;
+		return buffer == null ? 0 : buffer.dropped();
+	}
+
+	/*
+	 * Messages are buffered while earlier messages are still waiting, to keep them
+	 * in order.
+	 */
+	private boolean buffering(PublishBuffer buffer) {
+		return draining.get() || !buffer.isEmpty();
+	}
+
+	/*
+	 * Messages for a channel that is not back yet are buffered behind the ones
+	 * already waiting for it. Other channels go on publishing.
+	 */
+	private boolean stalled(Channel channel) {
+		return channel != null && stalled.containsKey(channel);
+	}
+
+	private void buffer(PublishBuffer buffer, OutgoingMessage message) {
+		buffer.add(message);
+		drain();
+	}
+
+	/*
+	 * Messages that were not confirmed when their channel closed are published
+	 * again after recovery. The buffer may already be full, as the channel closes
+	 * at the start of an outage that is unlikely.
+	 */
+	private void requeue(OutgoingMessage message) {
+		PublishBuffer buffer = this.buffer;
+		if (buffer == null || !buffer.offer(message))
+			message.fail(new IOException("Channel closed before the message was confirmed"));
+	}
+
+	/*
+	 * Publish the buffered messages in order, per channel, as long as their
+	 * channel is available. Only one thread publishes buffered messages at a time.
+	 * Messages that cannot be published are kept aside per channel, so that a
+	 * channel that is down does not hold up the others. Once as many messages are
+	 * kept aside as fit in the buffer, the rest stays in the buffer until a
+	 * channel comes back.
+	 */
+	private void drain() {
+		PublishBuffer buffer = this.buffer;
+		if (buffer == null)
+			return;
+		while (draining.compareAndSet(false, true)) {
+			try {
+				for (Iterator<Queue<OutgoingMessage>> i = stalled.values().iterator(); i.hasNext();) {
+					Queue<OutgoingMessage> queue = i.next();
+					OutgoingMessage message;
+					while ((message = queue.peek()) != null && send(message)) {
+						queue.poll();
+						stalledCount.decrementAndGet();
+					}
+					if (queue.isEmpty())
+						i.remove();
+				}
+				OutgoingMessage message;
+				while (stalledCount.get() < buffer.capacity() && (message = buffer.poll()) != null) {
+					Channel channel = channelFor(message.lat, message.lon, message.zoom);
+					if (channel == null) {
+						message.fail(new IOException("Cannot publish, no channel available"));
+						continue;
+					}
+					Queue<OutgoingMessage> queue = stalled.get(channel);
+					if (queue == null) {
+						if (send(message))
+							continue;
+						queue = new ConcurrentLinkedQueue<>();
+						stalled.put(channel, queue);
+					}
+					queue.add(message);
+					stalledCount.incrementAndGet();
+				}
+			} finally {
+				draining.set(false);
+			}
+			// messages buffered while this thread was draining were left to it
+			if (buffer.isEmpty() || stalledCount.get() >= buffer.capacity())
+				return;
+		}
+	}
+
+	/*
+	 * Publish a message when a channel is available for it.
+	 * 
+	 * @return false when no channel is available
+	 */
+	private boolean send(OutgoingMessage message) {
+		if (message.confirm) {
+			PublisherConfirms confirms;
+			try {
+				confirms = confirms(message.lat, message.lon, message.zoom);
+			} catch (IOException e) {
+				return false;
+			}
+			if (!confirms.getChannel().isOpen())
+				return false;
+			confirms.publish(message);
+			return true;
+		}
+		PublisherPool pool = this.pool;
+		Channel channel = pool != null ? pool.select(message.lat, message.lon, message.zoom).getChannel() : this.channel;
+		if (channel == null || !channel.isOpen())
+			return false;
+		try {
+			synchronized (channel) {
+				channel.basicPublish(message.exchange, message.key, message.properties, message.body);
+			}
+		} catch (IOException | ShutdownSignalException e) {
+			return false;
+		}
+		metrics.published(message.exchange, message.key, message.body.length);
+		message.future.complete(null);
+		return true;
+	}
+
+	/*
+	 * Append a message to the journal, once, and track its outcome. Messages that
+	 * are confirmed or rejected by the broker are done, other failures are
+	 * published again from the journal.
+	 */
+	private void journal(OutgoingMessage message) {
+		PublishJournal journal = this.journal;
+		if (journal == null || !message.confirm)
+			return;
+		if (message.journalSeq < 0) {
+			try {
+				journal.append(message);
+			} catch (IOException | IllegalArgumentException e) {
+				log(e);
+				return;
+			}
+		}
+		message.future.whenComplete((v, e) -> {
+			if (e == null || e instanceof PublisherConfirms.RejectedException)
+				journal.done(message);
+			else
+				journal.failed(message);
+		});
+	}
+
+	/*
+	 * Publish the pending messages of the journal again, at most
+	 * JOURNAL_REPLAY_RATE per second, in the background. Replay stops when the
+	 * channel is lost, and starts again after recovery.
+	 */
+	private void replay() {
+		PublishJournal journal = this.journal;
+		if (journal == null || journal.pendingCount() == 0 || !replaying.compareAndSet(false, true))
+			return;
+		long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, intProperty(JOURNAL_REPLAY_RATE));
+		Thread thread = new Thread(() -> {
+			try {
+				long next = System.nanoTime();
+				OutgoingMessage message;
+				while (this.journal == journal && isConnected() && (message = journal.nextPending()) != null) {
+					long delay = next - System.nanoTime();
+					if (delay > 0)
+						LockSupport.parkNanos(delay);
+					next = Math.max(next, System.nanoTime() - interval) + interval;
+					publish(message);
+				}
+			} finally {
+				replaying.set(false);
+			}
+		}, "IF2 journal replay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return number of messages in the journal waiting to be published again
+	 */
+	public int getJournalPending() {
+		PublishJournal journal = this.journal;
+		return journal == null ? 0 : journal.pendingCount();
+	}
+
+	/*
+	 * Publish the buffered and journaled messages once the channel is back, without
+	 * holding up the recovery of the connection.
+	 */
+	@Override
+	protected void recovered() {
+		if (buffer != null)
+			ForkJoinPool.commonPool().execute(this::drain);
+		replay();
+	}
+
+	/*
+	 * As message, we transmit a string representation of the fake data. Normally,
+	 * this would be the ASN.1 encoded message. The message type is used as exchange
+	 * name.
+	 */
+	OutgoingMessage message(Datum data) {
+		String key = data.getRoutingKey();
+		return new OutgoingMessage(data.messageType, key, probe(properties(data), key), data.toString().getBytes(),
+				data.lat, data.lon, data.zoom);
+	}
+
+	private OutgoingMessage unconfirmed(Datum data) {
+		OutgoingMessage message = message(data);
+		message.confirm = false;
+		return message;
+	}
+
+	/**
+	 * @return number of messages published with {@link #publishAsync(Datum)} that
+	 *         are not yet confirmed
+	 */
+	public int getInFlight() {
+		PublisherPool pool = this.pool;
+		if (pool != null)
+			return pool.inFlight();
+		PublisherConfirms confirms = this.confirms;
+		return confirms == null ? 0 : confirms.inFlight();
+	}
+
+	private Channel channelFor(double lat, double lon, int zoom) {
+		PublisherPool pool = this.pool;
+		return pool != null ? pool.select(lat, lon, zoom).getChannel() : channel;
+	}
+
+	/*
+	 * Select the channel from the pool, or put the current channel in confirm
+	 * mode, on first use.
+	 */
+	private PublisherConfirms confirms(double lat, double lon, int zoom) throws IOException {
+		PublisherPool pool = this.pool;
+		if (pool != null)
+			return pool.select(lat, lon, zoom);
+		PublisherConfirms confirms = this.confirms;
+		Channel channel = this.channel;
+		if (confirms != null && confirms.getChannel() == channel)
+			return confirms;
+		synchronized (this) {
+			channel = this.channel;
+			if (channel == null || !channel.isOpen())
+				throw new IOException("Cannot publish, no channel available");
+			if (this.confirms == null || this.confirms.getChannel() != channel) {
+				this.confirms = new PublisherConfirms(channel, intProperty(CONFIRM_WINDOW), metrics);
+				if (buffer != null)
+					this.confirms.requeueOnShutdown(this::requeue);
+			}
+			return this.confirms;
+		}
+	}
+
+	/*
+	 * Properties that go along with the message. They only depend on the datum, so
+	 * they are built once and reused for every publication of the same datum.
+	 */
+	BasicProperties properties(Datum data) {
+		BasicProperties props = data.properties;
+		if (props == null) {
+			BasicProperties.Builder builder = new Builder();
+			HashMap<String, Object> headers = new HashMap<>();
+			headers.put("lat", data.lat);
+			headers.put("lon", data.lon);
+			data.properties = props = builder.headers(headers).expiration("10000").build();
+		}
+		return props;
+	}
+
+	/*
+	 * Add the headers of the latency probe, when probing. The sequence numbers
+	 * are per routing key, so a consumer can detect lost messages whatever it
+	 * subscribed to. Probing is meant for tests, as every routing key that is
+	 * published keeps a counter.
+	 */
+	private BasicProperties probe(BasicProperties properties, String key) {
+		String source = probeSource;
+		if (source == null)
+			return properties;
+		AtomicLong sequence = probeSequences.get(key);
+		if (sequence == null)
+			sequence = probeSequences.computeIfAbsent(key, k -> new AtomicLong());
+		return LatencyProbe.stamp(properties, source, sequence.incrementAndGet());
+	}
+
+	@Override
+	public void disconnect() {
+		PublisherPool pool = this.pool;
+		this.pool = null;
+		if (pool != null)
+			pool.close();
+		synchronized (this) {
+			confirms = null;
+		}
+		PublishBuffer buffer = this.buffer;
+		this.buffer = null;
+		if (buffer != null) {
+			IOException cause = new IOException("Disconnected");
+			for (Queue<OutgoingMessage> queue : stalled.values()) {
+				OutgoingMessage message;
+				while ((message = queue.poll()) != null) {
+					stalledCount.decrementAndGet();
+					message.fail(cause);
+				}
+			}
+			stalled.clear();
+			buffer.clear(cause);
+		}
+		super.disconnect();
+		PublishJournal journal = this.journal;
+		this.journal = null;
+		if (journal != null)
+			journal.close();
+	}
 }
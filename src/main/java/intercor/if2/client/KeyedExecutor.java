@@ -0,0 +1,97 @@
+package intercor.if2.client;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on an executor one at a time per key, in the order they are
+ * submitted. Tasks with different keys run concurrently. A key only occupies a
+ * thread while it has tasks, so the number of keys is not limited.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+class KeyedExecutor {
+
+	private final Executor executor;
+
+	/*
+	 * Tasks per key that has tasks. The first task is the one running.
+	 */
+	private final Map<String, ArrayDeque<Runnable>> partitions = new HashMap<>();
+
+	KeyedExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	void execute(String key, Runnable task) {
+		boolean start;
+		synchronized (partitions) {
+			ArrayDeque<Runnable> tasks = partitions.get(key);
+			start = tasks == null;
+			if (start) {
+				tasks = new ArrayDeque<>(2);
+				partitions.put(key, tasks);
+			}
+			tasks.add(task);
+		}
+		if (start) {
+			try {
+				executor.execute(() -> drain(key));
+			} catch (RuntimeException e) {
+				synchronized (partitions) {
+					partitions.remove(key);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return number of keys with tasks
+	 */
+	int partitions() {
+		synchronized (partitions) {
+			return partitions.size();
+		}
+	}
+
+	private void drain(String key) {
+		Runnable task;
+		synchronized (partitions) {
+			task = partitions.get(key).peek();
+		}
+		while (task != null) {
+			boolean completed = false;
+			try {
+				task.run();
+				completed = true;
+			} catch (RuntimeException e) {
+				completed = true;
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			} finally {
+				task = next(key);
+				// an Error ends this thread, the tasks after it run on another one
+				if (!completed && task != null)
+					executor.execute(() -> drain(key));
+			}
+		}
+	}
+
+	/*
+	 * Remove the task that ran, and remove the key when it has no more tasks.
+	 */
+	private Runnable next(String key) {
+		synchronized (partitions) {
+			ArrayDeque<Runnable> tasks = partitions.get(key);
+			tasks.poll();
+			Runnable task = tasks.peek();
+			if (task == null)
+				partitions.remove(key);
+			return task;
+		}
+	}
+}
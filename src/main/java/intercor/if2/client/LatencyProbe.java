@@ -0,0 +1,235 @@
+package intercor.if2.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * End-to-end latency of messages, from publication by a producer until a
+ * consumer handler is called. With {@link IF2Client#PROBE}, the producer puts
+ * the time of publication, its source id and a sequence number per routing key
+ * in the headers of every message. The consumer records the latency of every
+ * message in a histogram, in total and per area: the exchange and the quadtree
+ * prefix of the routing key at a fixed zoom level.
+ *
+ * Times are wall clock nanoseconds, advanced with {@link System#nanoTime()}, so
+ * latencies between processes are as accurate as the synchronisation of their
+ * clocks, and latencies within a process are as accurate as nanoTime.
+ *
+ * The sequence numbers are per routing key, as a binding either matches all
+ * messages with a routing key, or none. A sequence number that skips ahead
+ * means that messages were lost, e.g. because the queue was full or messages
+ * expired. A sequence number that is not higher than the last one is late: the
+ * message was reordered, or delivered twice.
+ *
+ * Probing is meant for tests, as the consumer keeps a counter for every source
+ * and routing key it receives, like the producer does for every routing key it
+ * publishes.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+public class LatencyProbe {
+
+	static final String TIMESTAMP = "if2-ts";
+	static final String SEQUENCE = "if2-seq";
+	static final String SOURCE = "if2-src";
+
+	private static final long BASE_NANOS = System.nanoTime();
+	private static final long BASE_EPOCH_NANOS = System.currentTimeMillis() * 1_000_000L;
+
+	/**
+	 * @return wall clock time in nanoseconds since the epoch, that increases
+	 *         monotonically within this process
+	 */
+	public static long now() {
+		return BASE_EPOCH_NANOS + (System.nanoTime() - BASE_NANOS);
+	}
+
+	/**
+	 * @return the properties with the probe headers added
+	 */
+	static BasicProperties stamp(BasicProperties properties, String source, long sequence) {
+		Map<String, Object> headers = properties.getHeaders() == null ? new HashMap<>()
+				: new HashMap<>(properties.getHeaders());
+		headers.put(TIMESTAMP, now());
+		headers.put(SEQUENCE, sequence);
+		headers.put(SOURCE, source);
+		return properties.builder().headers(headers).build();
+	}
+
+	private final int zoom;
+	private final Histogram total = new Histogram();
+	private final Map<String, Histogram> perArea = new ConcurrentHashMap<>();
+	private final Map<Object, Map<String, Stream>> streams = new ConcurrentHashMap<>();
+	private final LongAdder missing = new LongAdder();
+	private final LongAdder late = new LongAdder();
+
+	/**
+	 * @param zoom
+	 *            zoom level of the quadtree prefix of the areas
+	 */
+	public LatencyProbe(int zoom) {
+		this.zoom = zoom;
+	}
+
+	/**
+	 * Record the latency and sequence number of a message.
+	 *
+	 * @param now
+	 *            time the message is handled, see {@link #now()}
+	 * @return false when the message has no probe headers
+	 */
+	public boolean record(IF2Message message, long now) {
+		BasicProperties properties = message.getProperties();
+		Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+		if (headers == null)
+			return false;
+		Object timestamp = headers.get(TIMESTAMP);
+		Object sequence = headers.get(SEQUENCE);
+		Object source = headers.get(SOURCE);
+		if (!(timestamp instanceof Number) || !(sequence instanceof Number) || source == null)
+			return false;
+		long latency = now - ((Number) timestamp).longValue();
+		long seq = ((Number) sequence).longValue();
+		String exchange = message.getExchange();
+		String key = message.getEnvelope().getRoutingKey();
+		total.record(latency);
+		Stream stream = stream(source, exchange, key, seq);
+		Histogram histogram = exchange.equals(stream.exchange) ? stream.area : histogram(exchange, key);
+		histogram.record(latency);
+		sequence(stream.last, seq);
+		return true;
+	}
+
+	/*
+	 * The stream of a source and routing key, without building a string for
+	 * every message.
+	 */
+	private Stream stream(Object source, String exchange, String key, long seq) {
+		Map<String, Stream> bySource = streams.get(source);
+		if (bySource == null)
+			bySource = streams.computeIfAbsent(source, s -> new ConcurrentHashMap<>());
+		Stream stream = bySource.get(key);
+		if (stream == null) {
+			// the first message seen may not be the first one published
+			stream = bySource.computeIfAbsent(key, k -> new Stream(exchange, histogram(exchange, k), seq - 1));
+		}
+		return stream;
+	}
+
+	private Histogram histogram(String exchange, String key) {
+		return perArea.computeIfAbsent(area(exchange, key, zoom), a -> new Histogram());
+	}
+
+	private void sequence(AtomicLong last, long seq) {
+		long previous;
+		do {
+			previous = last.get();
+			if (seq <= previous) {
+				late.increment();
+				return;
+			}
+		} while (!last.compareAndSet(previous, seq));
+		if (seq > previous + 1)
+			missing.add(seq - previous - 1);
+	}
+
+	/*
+	 * Exchange and quadtree prefix of the routing key, e.g. DENM:120
+	 */
+	static String area(String exchange, String key, int zoom) {
+		StringBuilder sb = new StringBuilder(exchange.length() + 1 + zoom).append(exchange).append(':');
+		int fields = 0;
+		int digits = 0;
+		for (int i = 0; i < key.length() && digits < zoom; i++) {
+			char c = key.charAt(i);
+			if (c == '.')
+				fields++;
+			else if (fields >= 4 && c >= '0' && c <= '3') {
+				sb.append(c);
+				digits++;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return number of messages with probe headers
+	 */
+	public long count() {
+		return total.count();
+	}
+
+	/**
+	 * @return latency percentile, in nanoseconds
+	 */
+	public long percentile(double percentile) {
+		return total.percentile(percentile);
+	}
+
+	/**
+	 * @return maximum latency, in nanoseconds
+	 */
+	public long max() {
+		return total.max();
+	}
+
+	/**
+	 * @return latency percentile per area, in nanoseconds
+	 */
+	public Map<String, Long> percentiles(double percentile) {
+		Map<String, Long> result = new TreeMap<>();
+		for (Map.Entry<String, Histogram> entry : perArea.entrySet()) {
+			if (entry.getValue().count() > 0)
+				result.put(entry.getKey(), entry.getValue().percentile(percentile));
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of messages that were skipped by the sequence numbers, minus
+	 *         the late ones, as they may have filled a gap
+	 */
+	public long lost() {
+		return Math.max(0, missing.sum() - late.sum());
+	}
+
+	/**
+	 * @return number of messages that arrived after a message with a higher
+	 *         sequence number
+	 */
+	public long late() {
+		return late.sum();
+	}
+
+	/**
+	 * Forget the latencies. Sequence numbers are kept.
+	 */
+	public void reset() {
+		total.reset();
+		for (Histogram histogram : perArea.values())
+			histogram.reset();
+	}
+
+	/*
+	 * Messages of a source with a routing key: the last sequence number, and the
+	 * histogram of their area
+	 */
+	private static class Stream {
+		final String exchange;
+		final Histogram area;
+		final AtomicLong last;
+
+		Stream(String exchange, Histogram area, long last) {
+			this.exchange = exchange;
+			this.area = area;
+			this.last = new AtomicLong(last);
+		}
+	}
+}
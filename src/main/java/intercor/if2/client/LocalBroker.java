@@ -0,0 +1,800 @@
+package intercor.if2.client;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+
+/**
+ * In-process stand-in for an AMQP broker with topic exchanges. Producers and
+ * consumers connect to it with {@link IF2Client#LOCAL_BROKER}, and use the
+ * same API as with a real broker. It is meant for tests and benchmarks that
+ * should not depend on a broker, and for fan-out between services in the same
+ * process.
+ *
+ * The broker implements the part of AMQP that the IF2 clients use:
+ * <ul>
+ * <li>topic exchanges, that exist as soon as a queue is bound to them. Routing
+ * uses a {@link TopicMatcher} per exchange, so the cost of routing a message
+ * does not grow with the number of bindings</li>
+ * <li>queues with x-max-length, dropping the oldest message when full, and
+ * x-message-ttl. The expiration property of a message is honoured as well.
+ * Messages expire when they reach the head of the queue, like in RabbitMQ</li>
+ * <li>exclusive queues, that are deleted with their connection, and auto-delete
+ * queues, that are deleted when their last consumer is cancelled</li>
+ * <li>consumers with automatic or manual acknowledgement, prefetch, and requeue
+ * of unacknowledged messages when their channel is closed</li>
+ * <li>publisher confirms, which are sent before basicPublish returns, as routing
+ * is synchronous</li>
+ * </ul>
+ * Every channel delivers its messages on its own thread, in order, like the
+ * client library does. Messages wait in their queue until that thread takes
+ * them, so queue limits apply to slow consumers. Message bodies are shared
+ * between the producer and all consumers, and should not be modified.
+ *
+ * Brokers are identified by name within the process.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+public class LocalBroker {
+
+	private static final Map<String, LocalBroker> brokers = new ConcurrentHashMap<>();
+
+	/*
+	 * Maximum number of messages delivered to one consumer before other consumers
+	 * of the same channel get their turn.
+	 */
+	private static final int BATCH = 64;
+
+	/**
+	 * @return the broker with the name, created on first use
+	 */
+	public static LocalBroker get(String name) {
+		return brokers.computeIfAbsent(name, LocalBroker::new);
+	}
+
+	private final String name;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, TopicMatcher<Queue>> exchanges = new HashMap<>();
+	private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+	private final Set<LocalConnection> connections = ConcurrentHashMap.newKeySet();
+	private final AtomicLong ids = new AtomicLong();
+	private final LongAdder published = new LongAdder();
+	private final LongAdder unroutable = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+
+	private LocalBroker(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return a new connection to this broker
+	 */
+	public Connection newConnection() {
+		LocalConnection connection = new LocalConnection();
+		connections.add(connection);
+		return connection.proxy;
+	}
+
+	/**
+	 * Close all connections, and forget the broker. A broker with the same name
+	 * that is requested later is a new one.
+	 */
+	public void close() {
+		brokers.remove(name, this);
+		for (LocalConnection connection : new ArrayList<>(connections))
+			connection.close(true);
+	}
+
+	/**
+	 * @return number of open connections
+	 */
+	public int connections() {
+		return connections.size();
+	}
+
+	/**
+	 * @return number of messages published
+	 */
+	public long published() {
+		return published.sum();
+	}
+
+	/**
+	 * @return number of messages that did not match any binding
+	 */
+	public long unroutable() {
+		return unroutable.sum();
+	}
+
+	/**
+	 * @return number of messages dropped from the head of a queue that was full
+	 */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return number of messages that expired in a queue
+	 */
+	public long expired() {
+		return expired.sum();
+	}
+
+	/**
+	 * @return number of messages ready in the queue, -1 when it does not exist
+	 */
+	public int queueSize(String queue) {
+		Queue q = queues.get(queue);
+		return q == null ? -1 : q.size();
+	}
+
+	/**
+	 * @return number of queues
+	 */
+	public int queues() {
+		return queues.size();
+	}
+
+	/**
+	 * @return number of bindings of all exchanges
+	 */
+	public int bindings() {
+		lock.readLock().lock();
+		try {
+			int n = 0;
+			for (TopicMatcher<Queue> matcher : exchanges.values())
+				n += matcher.size();
+			return n;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Route a message to every queue with a matching binding, once. The queues are
+	 * collected in targets, which is empty again afterwards.
+	 */
+	private void publish(String exchange, String key, BasicProperties properties, byte[] body, Set<Queue> targets) {
+		published.increment();
+		try {
+			lock.readLock().lock();
+			try {
+				TopicMatcher<Queue> matcher = exchanges.get(exchange);
+				if (matcher != null)
+					matcher.match(key, targets);
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (targets.isEmpty()) {
+				unroutable.increment();
+				return;
+			}
+			Message message = new Message(exchange, key, properties, body);
+			for (Queue queue : targets)
+				queue.offer(message);
+		} finally {
+			targets.clear();
+		}
+	}
+
+	private Queue declare(String name, boolean exclusive, boolean autoDelete, Map<String, Object> args,
+			LocalConnection owner) {
+		if (name == null || name.isEmpty())
+			name = "amq.gen-" + ids.incrementAndGet();
+		Object maxLength = args == null ? null : args.get("x-max-length");
+		Object ttl = args == null ? null : args.get("x-message-ttl");
+		Queue queue = new Queue(name, maxLength instanceof Number ? ((Number) maxLength).intValue() : -1,
+				ttl instanceof Number ? ((Number) ttl).longValue() : -1, autoDelete, exclusive ? owner : null);
+		Queue existing = queues.putIfAbsent(name, queue);
+		return existing == null ? queue : existing;
+	}
+
+	private boolean bind(String queue, String exchange, String key, boolean bind) {
+		Queue q = queues.get(queue);
+		if (q == null)
+			return false;
+		lock.writeLock().lock();
+		try {
+			String binding = exchange + '\u0000' + key;
+			if (bind) {
+				if (q.bindings.add(binding))
+					exchanges.computeIfAbsent(exchange, e -> new TopicMatcher<>()).add(key, q);
+			} else if (q.bindings.remove(binding)) {
+				exchanges.get(exchange).remove(key, q);
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private int delete(Queue queue) {
+		if (!queues.remove(queue.name, queue))
+			return 0;
+		lock.writeLock().lock();
+		try {
+			for (String binding : queue.bindings) {
+				int i = binding.indexOf('\u0000');
+				exchanges.get(binding.substring(0, i)).remove(binding.substring(i + 1), queue);
+			}
+			queue.bindings.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		for (LocalConsumer consumer : queue.consumers)
+			consumer.cancelled = true;
+		return queue.size();
+	}
+
+	/*
+	 * A published message, shared by all queues it is routed to.
+	 */
+	private static final class Message {
+		final String exchange;
+		final String key;
+		final BasicProperties properties;
+		final byte[] body;
+		final long ttl;
+
+		Message(String exchange, String key, BasicProperties properties, byte[] body) {
+			this.exchange = exchange;
+			this.key = key;
+			this.properties = properties;
+			this.body = body;
+			long ttl = -1;
+			String expiration = properties == null ? null : properties.getExpiration();
+			if (expiration != null) {
+				try {
+					ttl = Long.parseLong(expiration);
+				} catch (NumberFormatException e) {
+					// ignored, like an invalid expiration is by RabbitMQ
+				}
+			}
+			this.ttl = ttl;
+		}
+	}
+
+	/*
+	 * A message in a queue.
+	 */
+	private static final class Entry {
+		final Message message;
+		final long deadline;
+		final boolean redelivered;
+
+		Entry(Message message, long deadline, boolean redelivered) {
+			this.message = message;
+			this.deadline = deadline;
+			this.redelivered = redelivered;
+		}
+	}
+
+	private final class Queue {
+		final String name;
+		final int maxLength;
+		final long ttl;
+		final boolean autoDelete;
+		final LocalConnection owner;
+		final List<LocalConsumer> consumers = new CopyOnWriteArrayList<>();
+		// guarded by the broker lock
+		final Set<String> bindings = new HashSet<>();
+		private final ArrayDeque<Entry> messages = new ArrayDeque<>();
+
+		Queue(String name, int maxLength, long ttl, boolean autoDelete, LocalConnection owner) {
+			this.name = name;
+			this.maxLength = maxLength;
+			this.ttl = ttl;
+			this.autoDelete = autoDelete;
+			this.owner = owner;
+		}
+
+		void offer(Message message) {
+			long now = System.nanoTime();
+			long ttl = this.ttl < 0 ? message.ttl : message.ttl < 0 ? this.ttl : Math.min(this.ttl, message.ttl);
+			long deadline = ttl < 0 ? Long.MAX_VALUE : now + TimeUnit.MILLISECONDS.toNanos(ttl);
+			synchronized (this) {
+				expire(now);
+				if (maxLength == 0) {
+					dropped.increment();
+					return;
+				}
+				messages.addLast(new Entry(message, deadline, false));
+				if (maxLength > 0 && messages.size() > maxLength) {
+					messages.pollFirst();
+					dropped.increment();
+				}
+			}
+			wake();
+		}
+
+		/*
+		 * Take the next message for the consumer, null when there is none, or the
+		 * consumer has too many unacknowledged messages.
+		 */
+		synchronized Entry take(LocalConsumer consumer) {
+			expire(System.nanoTime());
+			if (messages.isEmpty() || !consumer.hasCredit())
+				return null;
+			consumer.taken();
+			return messages.pollFirst();
+		}
+
+		synchronized boolean ready(LocalConsumer consumer) {
+			return !messages.isEmpty() && consumer.hasCredit();
+		}
+
+		void requeue(Entry entry) {
+			synchronized (this) {
+				messages.addFirst(new Entry(entry.message, entry.deadline, true));
+			}
+			wake();
+		}
+
+		synchronized int size() {
+			expire(System.nanoTime());
+			return messages.size();
+		}
+
+		boolean isDeleted() {
+			return queues.get(name) != this;
+		}
+
+		private void expire(long now) {
+			Entry head;
+			while ((head = messages.peekFirst()) != null && head.deadline - now <= 0) {
+				messages.pollFirst();
+				expired.increment();
+			}
+		}
+
+		void wake() {
+			for (LocalConsumer consumer : consumers)
+				consumer.wake();
+		}
+	}
+
+	private static final class LocalConsumer {
+		final String tag;
+		final Queue queue;
+		final Consumer consumer;
+		final boolean autoAck;
+		final int prefetch;
+		final LocalChannel channel;
+		final AtomicInteger unacked = new AtomicInteger();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		volatile boolean cancelled;
+
+		LocalConsumer(String tag, Queue queue, Consumer consumer, boolean autoAck, int prefetch,
+				LocalChannel channel) {
+			this.tag = tag;
+			this.queue = queue;
+			this.consumer = consumer;
+			this.autoAck = autoAck;
+			this.prefetch = prefetch;
+			this.channel = channel;
+		}
+
+		boolean hasCredit() {
+			return autoAck || prefetch <= 0 || unacked.get() < prefetch;
+		}
+
+		void taken() {
+			if (!autoAck)
+				unacked.incrementAndGet();
+		}
+
+		void wake() {
+			if (!cancelled && scheduled.compareAndSet(false, true))
+				channel.execute(this::drain);
+		}
+
+		/*
+		 * Deliver messages on the thread of the channel.
+		 */
+		void drain() {
+			for (int i = 0; i < BATCH; i++) {
+				Entry entry = cancelled ? null : queue.take(this);
+				if (entry == null) {
+					scheduled.set(false);
+					// a message may have arrived after take, and before its wake up was skipped
+					if (!cancelled && queue.ready(this))
+						wake();
+					return;
+				}
+				channel.deliver(this, entry);
+			}
+			scheduled.set(false);
+			wake();
+		}
+	}
+
+	private static final class Unacked {
+		final LocalConsumer consumer;
+		final Entry entry;
+
+		Unacked(LocalConsumer consumer, Entry entry) {
+			this.consumer = consumer;
+			this.entry = entry;
+		}
+	}
+
+	private final class LocalConnection implements InvocationHandler {
+		final Connection proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, this);
+		final Set<LocalChannel> channels = ConcurrentHashMap.newKeySet();
+		final List<ShutdownListener> listeners = new CopyOnWriteArrayList<>();
+		final AtomicInteger channelNumbers = new AtomicInteger();
+		final AtomicBoolean closed = new AtomicBoolean();
+		final long id = ids.incrementAndGet();
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "createChannel":
+				if (closed.get())
+					throw new AlreadyClosedException(signal(true));
+				LocalChannel channel = new LocalChannel(this, channelNumbers.incrementAndGet());
+				channels.add(channel);
+				return channel.proxy;
+			case "isOpen":
+				return !closed.get();
+			case "close":
+			case "abort":
+				close(true);
+				return null;
+			case "addShutdownListener":
+				listeners.add((ShutdownListener) args[0]);
+				return null;
+			case "removeShutdownListener":
+				listeners.remove(args[0]);
+				return null;
+			case "getCloseReason":
+				return closed.get() ? signal(true) : null;
+			case "getClientProvidedName":
+			case "getId":
+				return "local-" + id;
+			case "getAddress":
+				return null;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "local://" + name + "/" + id;
+			default:
+				throw new UnsupportedOperationException(
+						method.getName() + " is not supported by " + LocalBroker.class.getSimpleName());
+			}
+		}
+
+		void close(boolean byApplication) {
+			if (!closed.compareAndSet(false, true))
+				return;
+			for (LocalChannel channel : new ArrayList<>(channels))
+				channel.close(signal(byApplication));
+			for (Queue queue : queues.values())
+				if (queue.owner == this)
+					delete(queue);
+			connections.remove(this);
+			ShutdownSignalException signal = signal(byApplication);
+			for (ShutdownListener listener : listeners)
+				listener.shutdownCompleted(signal);
+		}
+
+		ShutdownSignalException signal(boolean byApplication) {
+			return new ShutdownSignalException(true, byApplication, null, proxy);
+		}
+	}
+
+	private final class LocalChannel implements InvocationHandler {
+		final Channel proxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+				new Class<?>[] { Channel.class }, this);
+		final LocalConnection connection;
+		final int number;
+		final List<ShutdownListener> listeners = new CopyOnWriteArrayList<>();
+		final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<>();
+		final Map<String, LocalConsumer> consumers = new ConcurrentHashMap<>();
+		final ConcurrentNavigableMap<Long, Unacked> unacked = new ConcurrentSkipListMap<>();
+		final AtomicLong deliveryTags = new AtomicLong();
+		final AtomicLong consumerTags = new AtomicLong();
+		/*
+		 * Only guards the confirm sequence and the calls to the confirm listeners,
+		 * routing and deliveries happen outside of it
+		 */
+		private final Object confirmLock = new Object();
+		/*
+		 * Queues a message is routed to, reused for every message of the channel
+		 */
+		private final Set<Queue> targets = new HashSet<>(4);
+		private final ExecutorService executor;
+		private volatile ShutdownSignalException closeReason;
+		private volatile int prefetch;
+		private boolean confirm;
+		private long publishSeqNo = 1;
+
+		LocalChannel(LocalConnection connection, int number) {
+			this.connection = connection;
+			this.number = number;
+			// the thread is only started with the first task
+			this.executor = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "LocalBroker " + connection.proxy + "#" + number);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			switch (name) {
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return connection.proxy + "#" + number;
+			case "isOpen":
+				return closeReason == null;
+			case "getCloseReason":
+				return closeReason;
+			case "getChannelNumber":
+				return number;
+			case "getConnection":
+				return connection.proxy;
+			case "addShutdownListener":
+				listeners.add((ShutdownListener) args[0]);
+				return null;
+			case "removeShutdownListener":
+				listeners.remove(args[0]);
+				return null;
+			case "close":
+			case "abort":
+				close(new ShutdownSignalException(false, true, null, proxy));
+				return null;
+			case "getNextPublishSeqNo":
+				synchronized (confirmLock) {
+					return confirm ? publishSeqNo : 0L;
+				}
+			case "addConfirmListener":
+				if (!(args[0] instanceof ConfirmListener))
+					break;
+				confirmListeners.add((ConfirmListener) args[0]);
+				return args[0];
+			case "removeConfirmListener":
+				return confirmListeners.remove(args[0]);
+			default:
+			}
+			ShutdownSignalException reason = closeReason;
+			if (reason != null)
+				throw new AlreadyClosedException(reason);
+			switch (name) {
+			case "basicPublish":
+				publish((String) args[0], (String) args[1], (BasicProperties) args[args.length - 2],
+						(byte[]) args[args.length - 1]);
+				return null;
+			case "confirmSelect":
+				synchronized (confirmLock) {
+					confirm = true;
+				}
+				return new AMQImpl.Confirm.SelectOk();
+			case "basicQos":
+				prefetch = (Integer) args[args.length == 3 ? 1 : 0];
+				return null;
+			case "queueDeclare": {
+				Queue queue = args == null ? declare("", true, true, null, connection)
+						: declare((String) args[0], (Boolean) args[2], (Boolean) args[3],
+								(Map<String, Object>) args[4], connection);
+				return new AMQImpl.Queue.DeclareOk(queue.name, queue.size(), queue.consumers.size());
+			}
+			case "queueBind":
+			case "queueUnbind":
+				if (!bind((String) args[0], (String) args[1], (String) args[2], name.equals("queueBind")))
+					throw error(404, "no queue '" + args[0] + "'");
+				return name.equals("queueBind") ? new AMQImpl.Queue.BindOk() : new AMQImpl.Queue.UnbindOk();
+			case "queueDelete": {
+				Queue queue = queues.get(args[0]);
+				return new AMQImpl.Queue.DeleteOk(queue == null ? 0 : delete(queue));
+			}
+			case "basicConsume":
+				return consume(args);
+			case "basicCancel":
+				cancel((String) args[0]);
+				return null;
+			case "basicAck":
+				settle((Long) args[0], (Boolean) args[1], false, false);
+				return null;
+			case "basicNack":
+				settle((Long) args[0], (Boolean) args[1], true, (Boolean) args[2]);
+				return null;
+			case "basicReject":
+				settle((Long) args[0], false, true, (Boolean) args[1]);
+				return null;
+			default:
+			}
+			throw new UnsupportedOperationException(
+					name + " is not supported by " + LocalBroker.class.getSimpleName());
+		}
+
+		/*
+		 * Route the message, and confirm it. Routing wakes up consumers on other
+		 * channels, which takes no lock, so only the set of targets is locked.
+		 */
+		private void publish(String exchange, String key, BasicProperties properties, byte[] body)
+				throws IOException {
+			synchronized (targets) {
+				LocalBroker.this.publish(exchange, key, properties, body, targets);
+			}
+			synchronized (confirmLock) {
+				if (confirm) {
+					long seq = publishSeqNo++;
+					for (ConfirmListener listener : confirmListeners)
+						listener.handleAck(seq, false);
+				}
+			}
+		}
+
+		private String consume(Object[] args) throws IOException {
+			String queueName = (String) args[0];
+			boolean autoAck = args.length > 2 && args[1] instanceof Boolean && (Boolean) args[1];
+			if (!(args[args.length - 1] instanceof Consumer))
+				throw new UnsupportedOperationException("basicConsume is only supported with a Consumer");
+			Consumer callback = (Consumer) args[args.length - 1];
+			String tag = args.length > 3 && args[2] instanceof String && !((String) args[2]).isEmpty()
+					? (String) args[2]
+					: "amq.ctag-" + number + "-" + consumerTags.incrementAndGet();
+			Queue queue = queues.get(queueName);
+			if (queue == null)
+				throw error(404, "no queue '" + queueName + "'");
+			LocalConsumer consumer = new LocalConsumer(tag, queue, callback, autoAck, prefetch, this);
+			consumers.put(tag, consumer);
+			// consumeOk is handled before the first delivery, as the thread is shared
+			execute(() -> callback.handleConsumeOk(tag));
+			queue.consumers.add(consumer);
+			consumer.wake();
+			return tag;
+		}
+
+		private void cancel(String tag) {
+			LocalConsumer consumer = consumers.remove(tag);
+			if (consumer == null)
+				return;
+			remove(consumer);
+			execute(() -> consumer.consumer.handleCancelOk(tag));
+		}
+
+		private void remove(LocalConsumer consumer) {
+			consumer.cancelled = true;
+			Queue queue = consumer.queue;
+			queue.consumers.remove(consumer);
+			if (queue.autoDelete && queue.consumers.isEmpty())
+				delete(queue);
+		}
+
+		/*
+		 * Acknowledge, or reject, one message or all messages up to the tag.
+		 */
+		private void settle(long tag, boolean multiple, boolean reject, boolean requeue) throws IOException {
+			if (!unacked.containsKey(tag))
+				throw error(406, "unknown delivery tag " + tag);
+			List<Unacked> settled = new ArrayList<>();
+			if (multiple) {
+				Map.Entry<Long, Unacked> e;
+				while ((e = unacked.firstEntry()) != null && e.getKey() <= tag) {
+					if (unacked.remove(e.getKey()) != null)
+						settled.add(e.getValue());
+				}
+			} else {
+				Unacked u = unacked.remove(tag);
+				if (u != null)
+					settled.add(u);
+			}
+			// requeue the last one first, so the messages keep their order at the head
+			for (int i = settled.size() - 1; i >= 0; i--) {
+				Unacked u = settled.get(i);
+				u.consumer.unacked.decrementAndGet();
+				if (reject && requeue && !u.consumer.queue.isDeleted())
+					u.consumer.queue.requeue(u.entry);
+				else
+					u.consumer.wake();
+			}
+		}
+
+		void deliver(LocalConsumer consumer, Entry entry) {
+			if (closeReason != null) {
+				consumer.queue.requeue(entry);
+				return;
+			}
+			long tag = deliveryTags.incrementAndGet();
+			if (!consumer.autoAck)
+				unacked.put(tag, new Unacked(consumer, entry));
+			Message message = entry.message;
+			try {
+				consumer.consumer.handleDelivery(consumer.tag,
+						new Envelope(tag, entry.redelivered, message.exchange, message.key), message.properties,
+						message.body);
+			} catch (Throwable e) {
+				// the client library closes the channel when a consumer fails
+				close(new ShutdownSignalException(false, false,
+						new AMQImpl.Channel.Close(541, "consumer " + consumer.tag + " failed: " + e, 0, 0), proxy,
+						null, e));
+			}
+		}
+
+		void execute(Runnable task) {
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				// the channel is closed
+			}
+		}
+
+		private IOException error(int code, String text) {
+			ShutdownSignalException signal = new ShutdownSignalException(false, false,
+					new AMQImpl.Channel.Close(code, text, 0, 0), proxy);
+			close(signal);
+			return new IOException(text, signal);
+		}
+
+		void close(ShutdownSignalException reason) {
+			synchronized (this) {
+				if (closeReason != null)
+					return;
+				closeReason = reason;
+			}
+			for (LocalConsumer consumer : new ArrayList<>(consumers.values()))
+				remove(consumer);
+			Map.Entry<Long, Unacked> e;
+			while ((e = unacked.pollLastEntry()) != null) {
+				Queue queue = e.getValue().consumer.queue;
+				if (!queue.isDeleted())
+					queue.requeue(e.getValue().entry);
+			}
+			connection.channels.remove(this);
+			for (LocalConsumer consumer : consumers.values())
+				consumer.consumer.handleShutdownSignal(consumer.tag, reason);
+			consumers.clear();
+			for (ShutdownListener listener : listeners)
+				listener.shutdownCompleted(reason);
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package intercor.if2.client;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A message ready to be published, with the future that completes when the
+ * broker confirms it. The location is kept to select the publishing channel.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+final class OutgoingMessage {
+	final String exchange;
+	final String key;
+	final BasicProperties properties;
+	final byte[] body;
+	final double lat;
+	final double lon;
+	final int zoom;
+	final CompletableFuture<Void> future = new CompletableFuture<>();
+
+	/*
+	 * false for messages published without publisher confirms, their future
+	 * completes when they are sent
+	 */
+	boolean confirm = true;
+
+	/*
+	 * sequence number and position of the record in the journal, -1 when the
+	 * message is not journaled
+	 */
+	long journalSeq = -1;
+	long journalPosition = -1;
+
+	/*
+	 * time of the last publication, to measure the confirm latency
+	 */
+	long sent;
+
+	OutgoingMessage(String exchange, String key, BasicProperties properties, byte[] body, double lat, double lon,
+			int zoom) {
+		this.exchange = exchange;
+		this.key = key;
+		this.properties = properties;
+		this.body = body;
+		this.lat = lat;
+		this.lon = lon;
+		this.zoom = zoom;
+	}
+
+	/**
+	 * @return a new message with the same content, and a new future
+	 */
+	OutgoingMessage copy() {
+		OutgoingMessage copy = new OutgoingMessage(exchange, key, properties, body, lat, lon, zoom);
+		copy.confirm = confirm;
+		return copy;
+	}
+
+	void fail(Throwable cause) {
+		future.completeExceptionally(cause);
+	}
+}
@@ -0,0 +1,173 @@
+package intercor.if2.client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded buffer of messages that cannot be published while the connection to
+ * the broker is down. Messages are taken out in the order they were put in.
+ *
+ * The buffer is a lock-free ring, so that publishing threads never wait for
+ * each other. Every slot has a sequence number, that tells whether the slot is
+ * free for the producer at that position, or filled for the consumer at that
+ * position. Producers and consumers claim a position with a compare and set on
+ * the tail and head.
+ *
+ * When the buffer is full, the overflow policy decides what happens to a new
+ * message: {@link #DROP_OLDEST} fails the oldest message in the buffer to make
+ * room, {@link #DROP_NEWEST} fails the new message, and {@link #BLOCK} waits
+ * until there is room.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+class PublishBuffer {
+
+	/**
+	 * When full, fail the oldest message to make room for the new one
+	 */
+	static final String DROP_OLDEST = "DROP_OLDEST";
+
+	/**
+	 * When full, fail the new message
+	 */
+	static final String DROP_NEWEST = "DROP_NEWEST";
+
+	/**
+	 * When full, wait until there is room
+	 */
+	static final String BLOCK = "BLOCK";
+
+	private static final long PARK_NANOS = 100_000;
+
+	private final AtomicReferenceArray<OutgoingMessage> slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final String overflow;
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            minimum number of messages, rounded up to a power of 2
+	 * @param overflow
+	 *            {@link #DROP_OLDEST}, {@link #DROP_NEWEST} or {@link #BLOCK}
+	 */
+	PublishBuffer(int capacity, String overflow) {
+		if (!DROP_OLDEST.equals(overflow) && !DROP_NEWEST.equals(overflow) && !BLOCK.equals(overflow))
+			throw new IllegalArgumentException("Unknown overflow policy " + overflow);
+		int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		this.slots = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.mask = size - 1;
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Put a message in the buffer, applying the overflow policy when the buffer
+	 * is full. A message that is dropped fails.
+	 */
+	void add(OutgoingMessage message) {
+		while (!offer(message)) {
+			if (DROP_NEWEST.equals(overflow)) {
+				drop(message);
+				return;
+			} else if (DROP_OLDEST.equals(overflow)) {
+				OutgoingMessage oldest = poll();
+				if (oldest != null)
+					drop(oldest);
+			} else {
+				if (Thread.currentThread().isInterrupted()) {
+					message.fail(new InterruptedException());
+					return;
+				}
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Put a message in the buffer, if there is room.
+	 *
+	 * @return false when the buffer is full
+	 */
+	boolean offer(OutgoingMessage message) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long diff = sequences.get(index) - position;
+			if (diff == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.set(index, message);
+					sequences.set(index, position + 1);
+					return true;
+				}
+			} else if (diff < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest message, or null when the buffer is empty
+	 */
+	OutgoingMessage poll() {
+		while (true) {
+			long position = head.get();
+			int index = (int) position & mask;
+			long diff = sequences.get(index) - (position + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					OutgoingMessage message = slots.getAndSet(index, null);
+					sequences.set(index, position + mask + 1);
+					return message;
+				}
+			} else if (diff < 0) {
+				return null;
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return number of messages in the buffer
+	 */
+	int size() {
+		return (int) Math.max(0, Math.min(tail.get() - head.get(), mask + 1));
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return number of messages dropped because the buffer was full
+	 */
+	long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Fail all messages in the buffer.
+	 */
+	void clear(Throwable cause) {
+		OutgoingMessage message;
+		while ((message = poll()) != null)
+			message.fail(cause);
+	}
+
+	private void drop(OutgoingMessage message) {
+		dropped.increment();
+		message.fail(new IOException("Publish buffer full, message dropped"));
+	}
+}
@@ -0,0 +1,527 @@
+package intercor.if2.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Write-ahead journal of published messages, so that messages that are not
+ * confirmed by the broker survive a long outage or a restart of the process.
+ *
+ * Messages are appended to memory-mapped segment files, so an append is a copy
+ * into memory. The operating system writes the pages to disk, so the journal
+ * survives a crash of the process, but not a crash of the machine. When a
+ * segment is full, the next one is started. A segment is deleted once every
+ * record in it is confirmed.
+ *
+ * Every record gets a sequence number. Confirmations come out of order, so the
+ * journal tracks the highest sequence number up to which all records are done,
+ * the watermark, and stores it in a checkpoint file. When the journal is
+ * opened, every record above the watermark is pending, and has to be published
+ * again. Records that could not be published, e.g. because the connection was
+ * lost, become pending as well. Messages may therefore be published twice.
+ *
+ * Record layout: length (int, written last, so that 0 ends a segment),
+ * sequence number (long), exchange, routing key, lat, lon (double), zoom
+ * (byte), properties, and body (int length and bytes). Strings are stored as
+ * a short length and UTF-8 bytes, with length -1 for null.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+class PublishJournal implements Closeable {
+
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".seg";
+	private static final String CHECKPOINT = "journal.checkpoint";
+
+	/*
+	 * Flags of the properties stored in a record
+	 */
+	private static final int CONTENT_TYPE = 1;
+	private static final int HEADERS = 1 << 1;
+	private static final int DELIVERY_MODE = 1 << 2;
+	private static final int PRIORITY = 1 << 3;
+	private static final int EXPIRATION = 1 << 4;
+	private static final int MESSAGE_ID = 1 << 5;
+	private static final int TIMESTAMP = 1 << 6;
+	private static final int APP_ID = 1 << 7;
+
+	/*
+	 * Types of header values
+	 */
+	private static final byte STRING = 0;
+	private static final byte INTEGER = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+	private static final byte FLOAT = 4;
+	private static final byte BOOLEAN = 5;
+
+	private static final class Segment {
+		final int index;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		volatile long lastSeq = -1;
+
+		Segment(int index, File file, int size) throws IOException {
+			this.index = index;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			if (raf.length() < size)
+				raf.setLength(size);
+			this.buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, raf.length());
+		}
+
+		void delete() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+			}
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+	}
+
+	private final File dir;
+	private final int segmentSize;
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	private final RandomAccessFile checkpointFile;
+	private final MappedByteBuffer checkpoint;
+
+	/*
+	 * guarded by this
+	 */
+	private volatile Segment active;
+	private long nextSeq;
+
+	/*
+	 * guarded by done
+	 */
+	private long watermark;
+	private final TreeSet<Long> done = new TreeSet<>();
+
+	/*
+	 * positions of the records to publish again, by sequence number
+	 */
+	private final ConcurrentSkipListMap<Long, Long> pending = new ConcurrentSkipListMap<>();
+
+	private volatile boolean closed = false;
+	private volatile Consumer<Exception> unreadable;
+
+	/**
+	 * Open the journal in a directory. Records of an earlier run that were not
+	 * confirmed are pending.
+	 *
+	 * @param dir
+	 *            directory of the segment files, created when needed
+	 * @param segmentSize
+	 *            size of a segment file in bytes
+	 * @throws IOException
+	 */
+	PublishJournal(File dir, int segmentSize) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create journal directory " + dir);
+		checkpointFile = new RandomAccessFile(new File(dir, CHECKPOINT), "rw");
+		if (checkpointFile.length() < 8)
+			checkpointFile.setLength(8);
+		checkpoint = checkpointFile.getChannel().map(MapMode.READ_WRITE, 0, 8);
+		watermark = checkpoint.getLong(0);
+		nextSeq = watermark + 1;
+		int last = -1;
+		File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			int index = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+			Segment segment = new Segment(index, file, 0);
+			scan(segment);
+			last = Math.max(last, index);
+			nextSeq = Math.max(nextSeq, segment.lastSeq + 1);
+			if (segment.lastSeq <= watermark)
+				segment.delete();
+			else
+				segments.put(index, segment);
+		}
+		active = newSegment(last + 1);
+	}
+
+	/**
+	 * Report the failure to read a record, e.g. of a damaged file, to listener.
+	 * Such a record is dropped, and counts as done.
+	 */
+	void onUnreadable(Consumer<Exception> listener) {
+		this.unreadable = listener;
+	}
+
+	/**
+	 * Append a message, and store the sequence number and position of its record
+	 * in the message.
+	 *
+	 * @throws IOException
+	 *             when the message does not fit in a segment, or a segment cannot
+	 *             be created
+	 * @throws IllegalArgumentException
+	 *             when a string of the message is longer than 32767 bytes
+	 */
+	synchronized void append(OutgoingMessage message) throws IOException {
+		if (closed)
+			throw new IOException("Journal closed");
+		Segment segment = active;
+		int start = segment.buffer.position();
+		if (!write(segment.buffer, start, nextSeq, message)) {
+			segment = active = newSegment(segment.index + 1);
+			start = 0;
+			if (!write(segment.buffer, start, nextSeq, message))
+				throw new IOException("Message does not fit in a journal segment");
+		}
+		message.journalSeq = nextSeq;
+		message.journalPosition = position(segment.index, start);
+		segment.lastSeq = nextSeq++;
+	}
+
+	/**
+	 * Mark a record as done, because it is confirmed or rejected by the broker.
+	 * Segments with only records that are done are deleted.
+	 */
+	void done(OutgoingMessage message) {
+		done(message.journalSeq);
+	}
+
+	private void done(long seq) {
+		if (closed || seq < 0)
+			return;
+		synchronized (done) {
+			if (seq <= watermark)
+				return;
+			done.add(seq);
+			while (!done.isEmpty() && done.first() == watermark + 1)
+				watermark = done.pollFirst();
+			checkpoint.putLong(0, watermark);
+			Segment segment;
+			while ((segment = firstSegment()) != null && segment != active && segment.lastSeq <= watermark) {
+				segments.remove(segment.index);
+				segment.delete();
+			}
+		}
+	}
+
+	/**
+	 * Mark a record as not published, so that it is published again.
+	 */
+	void failed(OutgoingMessage message) {
+		if (!closed && message.journalSeq >= 0)
+			pending.put(message.journalSeq, message.journalPosition);
+	}
+
+	/**
+	 * Take the oldest pending record. Records that cannot be read are skipped.
+	 *
+	 * @return the message of the record, with its position, or null when no
+	 *         records are pending
+	 */
+	OutgoingMessage nextPending() {
+		Map.Entry<Long, Long> entry;
+		while (!closed && (entry = pending.pollFirstEntry()) != null) {
+			OutgoingMessage message = read(entry.getKey(), entry.getValue());
+			if (message != null)
+				return message;
+			done(entry.getKey());
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of records to publish again
+	 */
+	int pendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return number of segment files
+	 */
+	int segmentCount() {
+		return segments.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		synchronized (done) {
+			checkpoint.force();
+			for (Segment segment : segments.values()) {
+				segment.buffer.force();
+				try {
+					segment.raf.close();
+				} catch (IOException e) {
+				}
+			}
+			segments.clear();
+			try {
+				checkpointFile.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private Segment firstSegment() {
+		Map.Entry<Integer, Segment> entry = segments.firstEntry();
+		return entry == null ? null : entry.getValue();
+	}
+
+	private Segment newSegment(int index) throws IOException {
+		File file = new File(dir, String.format("%s%010d%s", PREFIX, index, SUFFIX));
+		Segment segment = new Segment(index, file, segmentSize);
+		segments.put(index, segment);
+		return segment;
+	}
+
+	/*
+	 * Find the records of a segment of an earlier run, and mark the ones above the
+	 * watermark as pending.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		while (offset + 4 <= buffer.limit()) {
+			int length = buffer.getInt(offset);
+			if (length <= 0 || offset + 4 + length > buffer.limit())
+				break;
+			long seq = buffer.getLong(offset + 4);
+			segment.lastSeq = seq;
+			if (seq > watermark)
+				pending.put(seq, position(segment.index, offset));
+			offset += 4 + length;
+		}
+		buffer.position(offset);
+	}
+
+	private static long position(int index, int offset) {
+		return ((long) index << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	/*
+	 * Write a record at start, and move the position of the buffer after it. When
+	 * the record cannot be written, the bytes written so far are cleared, so that
+	 * a scan does not find a partial record after the last one, and the position
+	 * stays at start.
+	 *
+	 * @return false when the record does not fit
+	 * @throws IllegalArgumentException when the record cannot be written, e.g.
+	 *             because a string is too long
+	 */
+	private static boolean write(ByteBuffer buffer, int start, long seq, OutgoingMessage message) {
+		try {
+			buffer.position(start + 4);
+			buffer.putLong(seq);
+			putString(buffer, message.exchange);
+			putString(buffer, message.key);
+			buffer.putDouble(message.lat);
+			buffer.putDouble(message.lon);
+			buffer.put((byte) message.zoom);
+			putProperties(buffer, message.properties);
+			buffer.putInt(message.body.length);
+			buffer.put(message.body);
+			if (buffer.remaining() < 4)
+				throw new BufferOverflowException();
+		} catch (RuntimeException e) {
+			for (int i = buffer.position() - 1; i >= start; i--)
+				buffer.put(i, (byte) 0);
+			buffer.position(start);
+			if (e instanceof BufferOverflowException)
+				return false;
+			throw e;
+		}
+		int end = buffer.position();
+		buffer.putInt(start, end - start - 4);
+		return true;
+	}
+
+	/*
+	 * @return the message of the record at position, or null when the record
+	 * cannot be read
+	 */
+	private OutgoingMessage read(long seq, long position) {
+		Segment segment = segments.get((int) (position >>> 32));
+		if (segment == null)
+			return null;
+		ByteBuffer buffer = segment.buffer.duplicate();
+		try {
+			buffer.position((int) position + 12);
+			String exchange = getString(buffer);
+			String key = getString(buffer);
+			double lat = buffer.getDouble();
+			double lon = buffer.getDouble();
+			int zoom = buffer.get();
+			BasicProperties properties = getProperties(buffer);
+			byte[] body = new byte[buffer.getInt()];
+			buffer.get(body);
+			OutgoingMessage message = new OutgoingMessage(exchange, key, properties, body, lat, lon, zoom);
+			message.journalSeq = seq;
+			message.journalPosition = position;
+			return message;
+		} catch (RuntimeException e) {
+			Consumer<Exception> unreadable = this.unreadable;
+			if (unreadable != null)
+				unreadable.accept(e);
+			return null;
+		}
+	}
+
+	private static void putProperties(ByteBuffer buffer, BasicProperties properties) {
+		if (properties == null) {
+			buffer.put((byte) 0);
+			return;
+		}
+		int flags = (properties.getContentType() != null ? CONTENT_TYPE : 0)
+				| (properties.getHeaders() != null ? HEADERS : 0)
+				| (properties.getDeliveryMode() != null ? DELIVERY_MODE : 0)
+				| (properties.getPriority() != null ? PRIORITY : 0)
+				| (properties.getExpiration() != null ? EXPIRATION : 0)
+				| (properties.getMessageId() != null ? MESSAGE_ID : 0)
+				| (properties.getTimestamp() != null ? TIMESTAMP : 0)
+				| (properties.getAppId() != null ? APP_ID : 0);
+		buffer.put((byte) flags);
+		if ((flags & CONTENT_TYPE) != 0)
+			putString(buffer, properties.getContentType());
+		if ((flags & HEADERS) != 0) {
+			Map<String, Object> headers = properties.getHeaders();
+			buffer.putShort((short) headers.size());
+			for (Map.Entry<String, Object> header : headers.entrySet()) {
+				putString(buffer, header.getKey());
+				putValue(buffer, header.getValue());
+			}
+		}
+		if ((flags & DELIVERY_MODE) != 0)
+			buffer.put(properties.getDeliveryMode().byteValue());
+		if ((flags & PRIORITY) != 0)
+			buffer.put(properties.getPriority().byteValue());
+		if ((flags & EXPIRATION) != 0)
+			putString(buffer, properties.getExpiration());
+		if ((flags & MESSAGE_ID) != 0)
+			putString(buffer, properties.getMessageId());
+		if ((flags & TIMESTAMP) != 0)
+			buffer.putLong(properties.getTimestamp().getTime());
+		if ((flags & APP_ID) != 0)
+			putString(buffer, properties.getAppId());
+	}
+
+	private static BasicProperties getProperties(ByteBuffer buffer) {
+		int flags = buffer.get() & 0xFF;
+		if (flags == 0)
+			return null;
+		BasicProperties.Builder builder = new BasicProperties.Builder();
+		if ((flags & CONTENT_TYPE) != 0)
+			builder.contentType(getString(buffer));
+		if ((flags & HEADERS) != 0) {
+			int n = buffer.getShort();
+			Map<String, Object> headers = new HashMap<>();
+			for (int i = 0; i < n; i++)
+				headers.put(getString(buffer), getValue(buffer));
+			builder.headers(headers);
+		}
+		if ((flags & DELIVERY_MODE) != 0)
+			builder.deliveryMode((int) buffer.get());
+		if ((flags & PRIORITY) != 0)
+			builder.priority((int) buffer.get());
+		if ((flags & EXPIRATION) != 0)
+			builder.expiration(getString(buffer));
+		if ((flags & MESSAGE_ID) != 0)
+			builder.messageId(getString(buffer));
+		if ((flags & TIMESTAMP) != 0)
+			builder.timestamp(new Date(buffer.getLong()));
+		if ((flags & APP_ID) != 0)
+			builder.appId(getString(buffer));
+		return builder.build();
+	}
+
+	/*
+	 * Header values of other types are stored as string
+	 */
+	private static void putValue(ByteBuffer buffer, Object value) {
+		if (value instanceof Integer) {
+			buffer.put(INTEGER).putInt((Integer) value);
+		} else if (value instanceof Long) {
+			buffer.put(LONG).putLong((Long) value);
+		} else if (value instanceof Double) {
+			buffer.put(DOUBLE).putDouble((Double) value);
+		} else if (value instanceof Float) {
+			buffer.put(FLOAT).putFloat((Float) value);
+		} else if (value instanceof Boolean) {
+			buffer.put(BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+		} else {
+			buffer.put(STRING);
+			putString(buffer, value == null ? null : value.toString());
+		}
+	}
+
+	private static Object getValue(ByteBuffer buffer) {
+		byte type = buffer.get();
+		switch (type) {
+		case INTEGER:
+			return buffer.getInt();
+		case LONG:
+			return buffer.getLong();
+		case DOUBLE:
+			return buffer.getDouble();
+		case FLOAT:
+			return buffer.getFloat();
+		case BOOLEAN:
+			return buffer.get() != 0;
+		case STRING:
+			return getString(buffer);
+		default:
+			throw new IllegalArgumentException("Unknown header type " + type);
+		}
+	}
+
+	private static void putString(ByteBuffer buffer, String s) {
+		if (s == null) {
+			buffer.putShort((short) -1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > Short.MAX_VALUE)
+			throw new IllegalArgumentException("String too long for the journal");
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getShort();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Used by tests, to list the sequence numbers of the pending records
+	 */
+	List<Long> pendingSequences() {
+		return new ArrayList<>(pending.keySet());
+	}
+}
@@ -0,0 +1,205 @@
+package intercor.if2.client;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Asynchronous publishing on a channel in confirm mode. Every published
+ * message gets a future, that completes when the broker confirms the message,
+ * or fails when the broker rejects it or the channel closes before it is
+ * confirmed. The broker confirms ranges of delivery tags at once, which
+ * completes all futures in the range.
+ * 
+ * The number of unconfirmed messages is limited to a window. When the window is
+ * full, publishing blocks until the broker confirms earlier messages.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+class PublisherConfirms implements ConfirmListener, ShutdownListener {
+
+	/**
+	 * Failure of a message that is rejected by the broker
+	 */
+	static class RejectedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RejectedException() {
+			super("Message rejected by the broker");
+		}
+	}
+
+	private final Channel channel;
+	private final Semaphore window;
+	private final ConcurrentNavigableMap<Long, OutgoingMessage> outstanding = new ConcurrentSkipListMap<>();
+	private volatile Consumer<OutgoingMessage> requeue;
+	private final IF2Metrics metrics;
+
+	/**
+	 * Put the channel in confirm mode.
+	 * 
+	 * @param channel
+	 * @param window
+	 *            maximum number of unconfirmed messages
+	 * @throws IOException
+	 */
+	PublisherConfirms(Channel channel, int window) throws IOException {
+		this(channel, window, new IF2Metrics());
+	}
+
+	/**
+	 * Put the channel in confirm mode.
+	 * 
+	 * @param channel
+	 * @param window
+	 *            maximum number of unconfirmed messages
+	 * @param metrics
+	 *            metrics to count publications and confirmations in
+	 * @throws IOException
+	 */
+	PublisherConfirms(Channel channel, int window, IF2Metrics metrics) throws IOException {
+		this.channel = channel;
+		this.metrics = metrics;
+		this.window = new Semaphore(window);
+		channel.confirmSelect();
+		channel.addConfirmListener(this);
+		channel.addShutdownListener(this);
+	}
+
+	/**
+	 * Hand messages that are not confirmed when the channel closes to requeue,
+	 * e.g. to publish them again after recovery, instead of failing them.
+	 */
+	void requeueOnShutdown(Consumer<OutgoingMessage> requeue) {
+		this.requeue = requeue;
+	}
+
+	Channel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return number of published, but not yet confirmed messages
+	 */
+	int inFlight() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Publish a message. Blocks while the window is full.
+	 * 
+	 * @return future of the message, that completes when the broker confirms the
+	 *         message
+	 */
+	CompletableFuture<Void> publish(OutgoingMessage message) {
+		// the sequence number and the publication should match, and channels are not
+		// thread safe
+		synchronized (channel) {
+			send(message);
+		}
+		return message.future;
+	}
+
+	/**
+	 * Publish a batch of messages, in order, while holding the channel only once.
+	 * Blocks while the window is full.
+	 */
+	void publish(List<OutgoingMessage> messages) {
+		synchronized (channel) {
+			for (OutgoingMessage message : messages)
+				send(message);
+		}
+	}
+
+	/*
+	 * Publish a single message. The caller holds the channel lock. The confirm
+	 * listener does not need that lock, so waiting for the window here cannot
+	 * block confirmation.
+	 */
+	private void send(OutgoingMessage message) {
+		try {
+			window.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			message.fail(e);
+			return;
+		}
+		long seq = channel.getNextPublishSeqNo();
+		message.sent = System.nanoTime();
+		outstanding.put(seq, message);
+		try {
+			channel.basicPublish(message.exchange, message.key, message.properties, message.body);
+			metrics.published(message.exchange, message.key, message.body.length);
+		} catch (Exception e) {
+			if (outstanding.remove(seq) != null)
+				window.release();
+			Consumer<OutgoingMessage> requeue = this.requeue;
+			if (requeue != null && !channel.isOpen())
+				requeue.accept(message);
+			else
+				message.fail(e);
+		}
+	}
+
+	@Override
+	public void handleAck(long deliveryTag, boolean multiple) {
+		complete(deliveryTag, multiple, null);
+	}
+
+	@Override
+	public void handleNack(long deliveryTag, boolean multiple) {
+		complete(deliveryTag, multiple, new RejectedException());
+	}
+
+	@Override
+	public void shutdownCompleted(ShutdownSignalException cause) {
+		Consumer<OutgoingMessage> requeue = this.requeue;
+		Map.Entry<Long, OutgoingMessage> entry;
+		while ((entry = outstanding.pollFirstEntry()) != null) {
+			window.release();
+			if (requeue != null)
+				requeue.accept(entry.getValue());
+			else
+				entry.getValue().fail(cause);
+		}
+	}
+
+	private void complete(long deliveryTag, boolean multiple, Exception failure) {
+		long now = System.nanoTime();
+		if (multiple) {
+			Map.Entry<Long, OutgoingMessage> entry;
+			ConcurrentNavigableMap<Long, OutgoingMessage> range = outstanding.headMap(deliveryTag, true);
+			while ((entry = range.pollFirstEntry()) != null) {
+				window.release();
+				complete(entry.getValue(), failure, now);
+			}
+		} else {
+			OutgoingMessage message = outstanding.remove(deliveryTag);
+			if (message != null) {
+				window.release();
+				complete(message, failure, now);
+			}
+		}
+	}
+
+	private void complete(OutgoingMessage message, Exception failure, long now) {
+		if (failure == null) {
+			metrics.confirmed(now - message.sent);
+			message.future.complete(null);
+		} else {
+			metrics.rejected();
+			message.future.completeExceptionally(failure);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package intercor.if2.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+
+import quadtree.QuadTreeConverter;
+
+/**
+ * Pool of publishing channels, spread over one or more connections, so that
+ * multiple threads can publish in parallel. Every channel is in confirm mode,
+ * with its own window of unconfirmed messages.
+ * 
+ * Messages are assigned to a channel based on a hash of the tile at the
+ * assignment zoom level, so that all messages from the same area go through
+ * the same channel and keep their order. Alternatively, channels can be
+ * assigned round robin, when order does not matter.
+ * 
+ * With automatic recovery, every connection and channel of the pool recovers
+ * on its own. A reconnect is counted for the extra connections, the primary
+ * one is counted by the client, and the producer is told when a channel is
+ * back.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+class PublisherPool {
+
+	/**
+	 * Assign channels by hash of the quadtree prefix of the message
+	 */
+	static final String QUADTREE = "QUADTREE";
+
+	/**
+	 * Assign channels round robin
+	 */
+	static final String ROUND_ROBIN = "ROUND_ROBIN";
+
+	private final List<Connection> connections = new ArrayList<>();
+	private final PublisherConfirms[] channels;
+	private final boolean roundRobin;
+	private final int assignmentZoom;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param primary
+	 *            connection that is already open, used as first connection
+	 * @param connector
+	 *            opens the other connections, to the same broker
+	 * @param connections
+	 *            total number of connections, including the primary one
+	 * @param channels
+	 *            total number of channels, spread round robin over the connections
+	 * @param window
+	 *            confirm window per channel
+	 * @param assignment
+	 *            {@link #QUADTREE} or {@link #ROUND_ROBIN}
+	 * @param assignmentZoom
+	 *            zoom level of the quadtree prefix used for assignment
+	 * @param metrics
+	 *            metrics of the producer
+	 * @param recovered
+	 *            called when a channel of the pool is recovered
+	 */
+	PublisherPool(Connection primary, Callable<Connection> connector, int connections, int channels, int window,
+			String assignment, int assignmentZoom, IF2Metrics metrics, Runnable recovered) throws Exception {
+		if (!QUADTREE.equals(assignment) && !ROUND_ROBIN.equals(assignment))
+			throw new IllegalArgumentException("Unknown channel assignment " + assignment);
+		this.roundRobin = ROUND_ROBIN.equals(assignment);
+		this.assignmentZoom = assignmentZoom;
+		this.channels = new PublisherConfirms[Math.max(1, channels)];
+		try {
+			this.connections.add(primary);
+			for (int i = 1; i < connections; i++) {
+				Connection connection = connector.call();
+				this.connections.add(connection);
+				onRecovery(connection, metrics::reconnected);
+			}
+			for (int i = 0; i < this.channels.length; i++) {
+				Connection connection = this.connections.get(i % this.connections.size());
+				this.channels[i] = new PublisherConfirms(connection.createChannel(), window, metrics);
+				onRecovery(this.channels[i].getChannel(), recovered);
+			}
+		} catch (Exception e) {
+			close();
+			throw e;
+		}
+	}
+
+	private static void onRecovery(Object recoverable, Runnable action) {
+		if (recoverable instanceof Recoverable) {
+			((Recoverable) recoverable).addRecoveryListener(new RecoveryListener() {
+
+				@Override
+				public void handleRecoveryStarted(Recoverable recoverable) {
+				}
+
+				@Override
+				public void handleRecovery(Recoverable recoverable) {
+					action.run();
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the channel to publish the message on
+	 */
+	PublisherConfirms select(double lat, double lon, int zoom) {
+		int i;
+		if (roundRobin) {
+			i = next.getAndIncrement() & 0x7FFFFFFF;
+		} else {
+			long tile = QuadTreeConverter.encode(Math.min(assignmentZoom, zoom), lat, lon);
+			i = (int) ((tile * 0x9E3779B97F4A7C15L) >>> 33);
+		}
+		return channels[i % channels.length];
+	}
+
+	/**
+	 * @return total number of unconfirmed messages
+	 */
+	int inFlight() {
+		int n = 0;
+		for (PublisherConfirms c : channels) {
+			if (c != null)
+				n += c.inFlight();
+		}
+		return n;
+	}
+
+	/**
+	 * @see PublisherConfirms#requeueOnShutdown(Consumer)
+	 */
+	void requeueOnShutdown(Consumer<OutgoingMessage> requeue) {
+		for (PublisherConfirms c : channels)
+			c.requeueOnShutdown(requeue);
+	}
+
+	/**
+	 * Close all channels and all connections, except the primary one.
+	 */
+	void close() {
+		for (PublisherConfirms c : channels) {
+			try {
+				if (c != null)
+					c.getChannel().abort();
+			} catch (IOException e) {
+			}
+		}
+		for (int i = 1; i < connections.size(); i++) {
+			connections.get(i).abort();
+		}
+	}
+}
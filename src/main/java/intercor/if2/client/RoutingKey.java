@@ -0,0 +1,92 @@
+package intercor.if2.client;
+
+import quadtree.PackedTile;
+import quadtree.QuadKey;
+import quadtree.QuadTreeParser;
+
+/**
+ * Parsed routing key of a received message:
+ * 
+ * &lt;message type&gt;.&lt;message version&gt;.&lt;provider&gt;.&lt;subtype
+ * id&gt;{.quadtree digit}
+ * 
+ * The key is scanned once for the positions of the first four fields. The
+ * fields are only extracted when asked for, and the quadtree path is decoded
+ * without creating objects (see {@link QuadTreeParser}).
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public final class RoutingKey {
+	private final String key;
+	/*
+	 * positions of the "." after message type, version, provider and subtype.
+	 * The last one is the length of the key when there is no quadtree.
+	 */
+	private final int[] ends = new int[4];
+
+	/**
+	 * @param key
+	 *            routing key
+	 * @throws IllegalArgumentException
+	 *             when the key has less than 4 fields
+	 */
+	public RoutingKey(String key) {
+		this.key = key;
+		int pos = -1;
+		for (int i = 0; i < 4; i++) {
+			int dot = key.indexOf('.', pos + 1);
+			if (dot < 0) {
+				if (i < 3)
+					throw new IllegalArgumentException(key + " is not a valid routing key");
+				dot = key.length();
+			}
+			ends[i] = pos = dot;
+		}
+	}
+
+	private String field(int i) {
+		return key.substring(i == 0 ? 0 : ends[i - 1] + 1, ends[i]);
+	}
+
+	public String getMessageType() {
+		return field(0);
+	}
+
+	public String getMessageVersion() {
+		return field(1);
+	}
+
+	public String getProvider() {
+		return field(2);
+	}
+
+	public String getSubtype() {
+		return field(3);
+	}
+
+	/**
+	 * @return the tile of the quadtree path, packed (see {@link PackedTile})
+	 * @throws quadtree.InvalidQuadTreeException
+	 *             when the quadtree part is not a valid quadtree path
+	 */
+	public long getTile() {
+		return QuadTreeParser.parse(key, ends[3], key.length(), '.');
+	}
+
+	public QuadKey getQuadKey() {
+		return QuadKey.fromPacked(getTile());
+	}
+
+	/**
+	 * @return zoom level of the quadtree path
+	 */
+	public int getZoom() {
+		return (key.length() - ends[3]) / 2;
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+}
@@ -0,0 +1,71 @@
+package intercor.if2.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import quadtree.PackedTile;
+
+/**
+ * Cache of routing keys, so that publishing from the same few tiles does not
+ * build the same strings over and over again. The routing key prefix
+ * (message type, version, provider and subtype) is made canonical once per
+ * {@link Datum}, and the complete routing keys are kept in a fixed size, direct
+ * mapped cache, keyed by prefix and packed tile. A miss simply overwrites the
+ * slot, so the cache never grows.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+class RoutingKeyCache {
+
+	private static final int SIZE = 4096;
+
+	private static final ConcurrentHashMap<String, String> PREFIXES = new ConcurrentHashMap<>();
+
+	/*
+	 * Entries are immutable, so a slot can be replaced without locking
+	 */
+	private static final Entry[] ENTRIES = new Entry[SIZE];
+
+	private static class Entry {
+		final String prefix;
+		final long tile;
+		final String key;
+
+		Entry(String prefix, long tile, String key) {
+			this.prefix = prefix;
+			this.tile = tile;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * @return the canonical instance of the routing key prefix, without a trailing
+	 *         "."
+	 */
+	static String prefix(String messageType, String messageVersion, String provider, String subtype) {
+		String prefix = messageType + "." + messageVersion + "." + provider + "." + subtype;
+		String canonical = PREFIXES.putIfAbsent(prefix, prefix);
+		return canonical == null ? prefix : canonical;
+	}
+
+	/**
+	 * @param prefix
+	 *            canonical prefix, see
+	 *            {@link #prefix(String, String, String, String)}
+	 * @param tile
+	 *            packed tile
+	 * @return the routing key, prefix followed by the "." separated quadtree path
+	 */
+	static String routingKey(String prefix, long tile) {
+		int slot = (int) ((prefix.hashCode() * 31L + tile) * 0x9E3779B97F4A7C15L >>> 52);
+		Entry entry = ENTRIES[slot];
+		if (entry != null && entry.prefix == prefix && entry.tile == tile)
+			return entry.key;
+		char[] buf = new char[prefix.length() + 2 * PackedTile.zoom(tile)];
+		prefix.getChars(0, prefix.length(), buf, 0);
+		PackedTile.writeQuadTree(tile, '.', buf, prefix.length());
+		String key = new String(buf);
+		ENTRIES[slot] = new Entry(prefix, tile, key);
+		return key;
+	}
+}
@@ -0,0 +1,271 @@
+package intercor.if2.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Trie of AMQP topic patterns, to find the values bound to the patterns that
+ * match a routing key. Patterns and keys consist of words separated by ".".
+ * In a pattern, "*" matches exactly one word, and "#" matches zero or more
+ * words, the same as a topic exchange of the broker.
+ * 
+ * Matching walks the trie word by word, so the cost depends on the length of
+ * the key and the number of wildcards, not on the number of patterns. The words
+ * of the key are looked up in place, matching does not allocate.
+ * 
+ * This class is not thread safe.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ * @param <T>
+ *            type of the values bound to the patterns
+ */
+public class TopicMatcher<T> {
+
+	private static class Node<T> {
+		final Children<T> children = new Children<>();
+		Node<T> star;
+		Node<T> hash;
+		final List<T> values = new ArrayList<>(1);
+
+		boolean isEmpty() {
+			return values.isEmpty() && children.isEmpty() && star == null && hash == null;
+		}
+	}
+
+	/*
+	 * Children of a node by word, in an open addressing table with linear probing.
+	 * A word can be looked up by its region of the routing key, without creating a
+	 * string for it. The hash of a region is the hash code of the same string.
+	 */
+	private static final class Children<T> {
+		private String[] words;
+		private Node<T>[] nodes;
+		private int size;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		Node<T> get(String word) {
+			return get(word, 0, word.length());
+		}
+
+		Node<T> get(String key, int start, int end) {
+			if (size == 0)
+				return null;
+			int mask = words.length - 1;
+			int length = end - start;
+			for (int i = index(hash(key, start, end), mask);; i = (i + 1) & mask) {
+				String word = words[i];
+				if (word == null)
+					return null;
+				if (word.length() == length && word.regionMatches(0, key, start, length))
+					return nodes[i];
+			}
+		}
+
+		Node<T> computeIfAbsent(String word) {
+			Node<T> node = get(word);
+			if (node == null) {
+				if (words == null || (size + 1) * 3 > words.length * 2)
+					resize();
+				insert(word, node = new Node<>());
+				size++;
+			}
+			return node;
+		}
+
+		void remove(String word) {
+			if (size == 0)
+				return;
+			int mask = words.length - 1;
+			int i = index(word.hashCode(), mask);
+			while (words[i] != null && !words[i].equals(word))
+				i = (i + 1) & mask;
+			if (words[i] == null)
+				return;
+			words[i] = null;
+			nodes[i] = null;
+			size--;
+			// move the words after it back, so that no word is behind an empty slot
+			for (int j = (i + 1) & mask; words[j] != null; j = (j + 1) & mask) {
+				int home = index(words[j].hashCode(), mask);
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					words[i] = words[j];
+					nodes[i] = nodes[j];
+					words[j] = null;
+					nodes[j] = null;
+					i = j;
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void resize() {
+			String[] oldWords = words;
+			Node<T>[] oldNodes = nodes;
+			int capacity = oldWords == null ? 4 : oldWords.length * 2;
+			words = new String[capacity];
+			nodes = (Node<T>[]) new Node<?>[capacity];
+			if (oldWords != null) {
+				for (int i = 0; i < oldWords.length; i++) {
+					if (oldWords[i] != null)
+						insert(oldWords[i], oldNodes[i]);
+				}
+			}
+		}
+
+		private void insert(String word, Node<T> node) {
+			int mask = words.length - 1;
+			int i = index(word.hashCode(), mask);
+			while (words[i] != null)
+				i = (i + 1) & mask;
+			words[i] = word;
+			nodes[i] = node;
+		}
+
+		private static int hash(String key, int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; i++)
+				h = 31 * h + key.charAt(i);
+			return h;
+		}
+
+		private static int index(int hash, int mask) {
+			return (hash ^ (hash >>> 16)) & mask;
+		}
+	}
+
+	private final Node<T> root = new Node<>();
+	private int size = 0;
+
+	/**
+	 * Bind a value to a pattern. A value can be bound more than once to the same
+	 * pattern.
+	 */
+	public void add(String pattern, T value) {
+		Node<T> node = root;
+		int start = 0;
+		while (true) {
+			int dot = pattern.indexOf('.', start);
+			String word = pattern.substring(start, dot < 0 ? pattern.length() : dot);
+			node = child(node, word);
+			if (dot < 0)
+				break;
+			start = dot + 1;
+		}
+		node.values.add(value);
+		size++;
+	}
+
+	/**
+	 * Remove one binding of a value to a pattern.
+	 * 
+	 * @return true when the binding existed
+	 */
+	public boolean remove(String pattern, T value) {
+		List<Node<T>> path = new ArrayList<>();
+		List<String> words = new ArrayList<>();
+		Node<T> node = root;
+		int start = 0;
+		while (node != null) {
+			int dot = pattern.indexOf('.', start);
+			String word = pattern.substring(start, dot < 0 ? pattern.length() : dot);
+			path.add(node);
+			words.add(word);
+			node = word.equals("*") ? node.star : word.equals("#") ? node.hash : node.children.get(word);
+			if (dot < 0)
+				break;
+			start = dot + 1;
+		}
+		if (node == null || !node.values.remove(value))
+			return false;
+		size--;
+		// prune empty nodes
+		for (int i = path.size() - 1; i >= 0 && node.isEmpty(); i--) {
+			Node<T> parent = path.get(i);
+			String word = words.get(i);
+			if (word.equals("*"))
+				parent.star = null;
+			else if (word.equals("#"))
+				parent.hash = null;
+			else
+				parent.children.remove(word);
+			node = parent;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of bindings
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Add the values bound to every pattern that matches the routing key to
+	 * result. Use a set as result, to get every value only once.
+	 */
+	public void match(String key, Collection<? super T> result) {
+		match(root, key, 0, result);
+	}
+
+	/**
+	 * @return true when at least one pattern matches the routing key
+	 */
+	public boolean matches(String key) {
+		List<T> result = new ArrayList<>();
+		match(key, result);
+		return !result.isEmpty();
+	}
+
+	/*
+	 * Match the words of key from position start (key.length() + 1 when all words
+	 * are consumed) against the subtree of node.
+	 */
+	private void match(Node<T> node, String key, int start, Collection<? super T> result) {
+		if (node.hash != null) {
+			// # matches zero or more of the remaining words
+			int s = start;
+			while (true) {
+				match(node.hash, key, s, result);
+				if (s > key.length())
+					break;
+				int dot = key.indexOf('.', s);
+				s = dot < 0 ? key.length() + 1 : dot + 1;
+			}
+		}
+		if (start > key.length()) {
+			// not addAll, which copies the values to an array first
+			for (int i = 0; i < node.values.size(); i++)
+				result.add(node.values.get(i));
+			return;
+		}
+		int dot = key.indexOf('.', start);
+		int end = dot < 0 ? key.length() : dot;
+		int next = end + 1;
+		if (node.star != null)
+			match(node.star, key, next, result);
+		Node<T> child = node.children.get(key, start, end);
+		if (child != null)
+			match(child, key, next, result);
+	}
+
+	private Node<T> child(Node<T> node, String word) {
+		switch (word) {
+		case "*":
+			if (node.star == null)
+				node.star = new Node<>();
+			return node.star;
+		case "#":
+			if (node.hash == null)
+				node.hash = new Node<>();
+			return node.hash;
+		default:
+			return node.children.computeIfAbsent(word);
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package intercor.if2.sample;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import intercor.if2.client.Datum;
+import intercor.if2.client.IF2Client;
+import intercor.if2.client.IF2Consumer;
+import intercor.if2.client.IF2Metrics;
+import intercor.if2.client.IF2Producer;
+import intercor.if2.client.LatencyProbe;
+import intercor.if2.client.LocalBroker;
+
+/**
+ * Load generator for an IF2 broker. It publishes synthetic DENM-like messages
+ * from a number of producers at a fixed total rate, receives them with a number
+ * of consumers, and reports the throughput, the confirm latency, the end-to-end
+ * latency and the number of lost messages every second, and at the end.
+ *
+ * The schedule is open loop: messages are due at fixed times, whether or not
+ * the broker keeps up, so that a slow broker shows up as latency, and not as a
+ * lower rate only. With SCHEDULE=POISSON the times between messages are random,
+ * with the same average rate.
+ *
+ * Parameters are given on the command line as key=value, like for
+ * {@link IF2Sample}. Next to the parameters of {@link IF2Client}, these are
+ * available:
+ * <ul>
+ * <li>RATE: total number of messages per second, default 1000</li>
+ * <li>DURATION: seconds to publish, default 10</li>
+ * <li>SCHEDULE: FIXED or POISSON, default FIXED</li>
+ * <li>DISTRIBUTION: UNIFORM (in BBOX), HOTSPOTS (around cities) or ROADS (along
+ * motorways), default HOTSPOTS</li>
+ * <li>BBOX: minLat,minLon,maxLat,maxLon for UNIFORM, default the
+ * Netherlands</li>
+ * <li>ZOOMS: comma separated zoom levels of the routing keys, default 18</li>
+ * <li>TYPE, VERSION: message type and version, default DENM and 1_2_2</li>
+ * <li>PROVIDERS, SUBTYPES: comma separated, default RWS,NL_NB,TASS and
+ * 3,26,94</li>
+ * <li>PRODUCERS, CONSUMERS: number of each, default 1 and 1</li>
+ * <li>SUBSCRIPTION: routing key filter of the consumers, default #</li>
+ * <li>SEED: seed of the random generators, default 1</li>
+ * </ul>
+ * Unless given otherwise, the exchange is the message type, console output of
+ * the clients is off, and the latency probe is on.
+ *
+ * With LOCAL_BROKER=name, the clients connect to a {@link LocalBroker} in this
+ * process instead of an AMQP broker, to measure the clients without network
+ * and broker.
+ *
+ * @copyright (c) Tass International BV
+ */
+public class IF2LoadGenerator {
+
+	/*
+	 * Cities for the HOTSPOTS distribution: lat, lon, relative weight
+	 */
+	private static final double[][] CITIES = { { 52.3702, 4.8952, 5 }, // Amsterdam
+			{ 51.9244, 4.4777, 4 }, // Rotterdam
+			{ 52.0705, 4.3007, 3 }, // The Hague
+			{ 52.0907, 5.1214, 3 }, // Utrecht
+			{ 51.4416, 5.4697, 2 }, // Eindhoven
+			{ 51.4793, 5.6570, 1 }, // Helmond
+	};
+
+	/*
+	 * Motorways for the ROADS distribution, as lat, lon pairs
+	 */
+	private static final double[][] ROADS = {
+			// A2 Amsterdam - Utrecht - Eindhoven
+			{ 52.3250, 4.9000, 52.0600, 5.0400, 51.8400, 5.3000, 51.6900, 5.3000, 51.4700, 5.4000 },
+			// A270 Eindhoven - Helmond
+			{ 51.4520, 5.5200, 51.4700, 5.6500 },
+			// A4 Amsterdam - The Hague - Rotterdam
+			{ 52.3300, 4.8200, 52.1600, 4.5000, 52.0400, 4.3600, 51.9400, 4.4000 },
+			// A12 The Hague - Utrecht
+			{ 52.0700, 4.3500, 52.0300, 4.7000, 52.0700, 5.0700 }, };
+
+	private static final double HOTSPOT_SIGMA = 0.04;
+	private static final double ROAD_JITTER = 0.0003;
+
+	/**
+	 * Location of the next message.
+	 */
+	private interface Points {
+		void next(SplittableRandom random, double[] point);
+	}
+
+	private final Map<String, Object> properties;
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder confirmed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final AtomicLong maxBehind = new AtomicLong();
+	private final AtomicLong finished = new AtomicLong();
+
+	public IF2LoadGenerator(Map<String, Object> properties) {
+		this.properties = properties;
+		properties.putIfAbsent("RATE", 1000);
+		properties.putIfAbsent("DURATION", 10);
+		properties.putIfAbsent("SCHEDULE", "FIXED");
+		properties.putIfAbsent("DISTRIBUTION", "HOTSPOTS");
+		properties.putIfAbsent("BBOX", "50.75,3.36,53.55,7.23");
+		properties.putIfAbsent("ZOOMS", "18");
+		properties.putIfAbsent("TYPE", "DENM");
+		properties.putIfAbsent("VERSION", "1_2_2");
+		properties.putIfAbsent("PROVIDERS", "RWS,NL_NB,TASS");
+		properties.putIfAbsent("SUBTYPES", "3,26,94");
+		properties.putIfAbsent("PRODUCERS", 1);
+		properties.putIfAbsent("CONSUMERS", 1);
+		properties.putIfAbsent("SUBSCRIPTION", "#");
+		properties.putIfAbsent("SEED", 1);
+		properties.putIfAbsent(IF2Client.EXCHANGE, properties.get("TYPE"));
+		properties.putIfAbsent(IF2Client.VERBOSE, false);
+		properties.putIfAbsent(IF2Client.PROBE, true);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new IF2LoadGenerator(parseCommand(args)).run();
+		System.exit(0);
+	}
+
+	/**
+	 * Connect the consumers and producers, publish for the duration, wait for the
+	 * last messages, and report.
+	 */
+	public void run() throws Exception {
+		int rate = intValue("RATE");
+		int seconds = intValue("DURATION");
+		List<IF2Consumer> consumers = new ArrayList<>();
+		for (int i = 0; i < intValue("CONSUMERS"); i++) {
+			IF2Consumer consumer = new IF2Consumer(new HashMap<>(properties));
+			consumer.connect();
+			consumer.subscribe(properties.get("SUBSCRIPTION").toString(), message -> received.increment());
+			consumers.add(consumer);
+		}
+		int n = Math.max(1, intValue("PRODUCERS"));
+		List<IF2Producer> producers = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		for (int i = 0; i < n; i++) {
+			IF2Producer producer = new IF2Producer(new HashMap<>(properties));
+			producer.connect();
+			producers.add(producer);
+			SplittableRandom random = new SplittableRandom(intValue("SEED") * 1000003L + i);
+			double share = rate / (double) n;
+			Thread thread = new Thread(() -> publish(producer, random, share, start, end), "IF2 load " + i);
+			threads.add(thread);
+		}
+		System.out.println("Publishing " + rate + " messages/s for " + seconds + " s with " + n + " producers and "
+				+ consumers.size() + " consumers");
+		threads.forEach(Thread::start);
+
+		long[] last = new long[3];
+		long previous = System.nanoTime();
+		while (threads.stream().anyMatch(Thread::isAlive)) {
+			Thread.sleep(1000);
+			long now = System.nanoTime();
+			report(now - previous, last, producers, consumers, false);
+			previous = now;
+		}
+		// wait for the last confirmations and deliveries
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (System.nanoTime() < deadline
+				&& (inFlight(producers) > 0 || received.sum() < sent.sum() * consumers.size())) {
+			Thread.sleep(50);
+		}
+		// rates over the time of publishing, counts including the last deliveries
+		report(finished.get() - start, new long[3], producers, consumers, true);
+		for (IF2Producer producer : producers)
+			producer.disconnect();
+		for (IF2Consumer consumer : consumers)
+			consumer.disconnect();
+	}
+
+	/*
+	 * Publish messages at their scheduled times, catching up when behind.
+	 */
+	private void publish(IF2Producer producer, SplittableRandom random, double rate, long start, long end) {
+		Points points = points(properties.get("DISTRIBUTION").toString().toUpperCase());
+		boolean poisson = "POISSON".equalsIgnoreCase(properties.get("SCHEDULE").toString());
+		int[] zooms = ints(properties.get("ZOOMS").toString());
+		String[] providers = properties.get("PROVIDERS").toString().split(",");
+		String[] subtypes = properties.get("SUBTYPES").toString().split(",");
+		String type = properties.get("TYPE").toString();
+		String version = properties.get("VERSION").toString();
+		double interval = 1e9 / rate;
+		double[] point = new double[2];
+		double due = start;
+		while (due < end) {
+			long now = System.nanoTime();
+			if (due > now) {
+				LockSupport.parkNanos(Math.min((long) due - now, 1_000_000));
+				continue;
+			}
+			long behind = now - (long) due;
+			long max;
+			while (behind > (max = maxBehind.get()) && !maxBehind.compareAndSet(max, behind))
+				;
+			points.next(random, point);
+			Datum datum = new Datum(point[0], point[1], zooms[random.nextInt(zooms.length)], type, version,
+					providers[random.nextInt(providers.length)], subtypes[random.nextInt(subtypes.length)]);
+			producer.publishAsync(datum).whenComplete((v, e) -> {
+				if (e == null)
+					confirmed.increment();
+				else
+					failed.increment();
+			});
+			sent.increment();
+			due += poisson ? -Math.log(1 - random.nextDouble()) * interval : interval;
+		}
+		long now = System.nanoTime();
+		long last;
+		while (now > (last = finished.get()) && !finished.compareAndSet(last, now))
+			;
+	}
+
+	private void report(long nanos, long[] last, List<IF2Producer> producers, List<IF2Consumer> consumers,
+			boolean total) {
+		long sent = this.sent.sum();
+		long confirmed = this.confirmed.sum();
+		long received = this.received.sum();
+		double seconds = nanos / 1e9;
+		long confirm50 = 0, confirm99 = 0;
+		for (IF2Producer producer : producers) {
+			IF2Metrics metrics = producer.getMetrics();
+			confirm50 = Math.max(confirm50, metrics.getConfirmLatency50());
+			confirm99 = Math.max(confirm99, metrics.getConfirmLatency99());
+		}
+		long latency50 = 0, latency99 = 0, lost = 0;
+		for (IF2Consumer consumer : consumers) {
+			LatencyProbe probe = consumer.getProbe();
+			if (probe != null) {
+				latency50 = Math.max(latency50, probe.percentile(50) / 1000);
+				latency99 = Math.max(latency99, probe.percentile(99) / 1000);
+				lost += probe.lost();
+			}
+		}
+		StringBuilder sb = new StringBuilder(total ? "Total: " : "");
+		sb.append(String.format("sent %.0f/s, confirmed %.0f/s, received %.0f/s", (sent - last[0]) / seconds,
+				(confirmed - last[1]) / seconds, (received - last[2]) / seconds));
+		sb.append(String.format(", confirm latency %d/%d us, end-to-end latency %d/%d us (50%%/99%%)", confirm50,
+				confirm99, latency50, latency99));
+		sb.append(", lost ").append(lost);
+		if (total) {
+			sb.append(String.format("%nsent %d, confirmed %d, failed %d, received %d of %d, max %d ms behind schedule",
+					sent, confirmed, failed.sum(), received, sent * consumers.size(),
+					TimeUnit.NANOSECONDS.toMillis(maxBehind.get())));
+		}
+		System.out.println(sb);
+		last[0] = sent;
+		last[1] = confirmed;
+		last[2] = received;
+	}
+
+	private static int inFlight(List<IF2Producer> producers) {
+		int n = 0;
+		for (IF2Producer producer : producers)
+			n += producer.getInFlight();
+		return n;
+	}
+
+	private Points points(String distribution) {
+		switch (distribution) {
+		case "UNIFORM":
+			double[] box = doubles(properties.get("BBOX").toString());
+			return (random, point) -> {
+				point[0] = box[0] + random.nextDouble() * (box[2] - box[0]);
+				point[1] = box[1] + random.nextDouble() * (box[3] - box[1]);
+			};
+		case "HOTSPOTS":
+			double totalWeight = 0;
+			for (double[] city : CITIES)
+				totalWeight += city[2];
+			double weights = totalWeight;
+			return (random, point) -> {
+				double pick = random.nextDouble() * weights;
+				double[] city = CITIES[CITIES.length - 1];
+				for (double[] c : CITIES) {
+					if ((pick -= c[2]) < 0) {
+						city = c;
+						break;
+					}
+				}
+				point[0] = city[0] + gaussian(random) * HOTSPOT_SIGMA;
+				point[1] = city[1] + gaussian(random) * HOTSPOT_SIGMA * 1.6;
+			};
+		case "ROADS":
+			List<double[]> segments = new ArrayList<>();
+			double length = 0;
+			for (double[] road : ROADS) {
+				for (int i = 0; i + 3 < road.length; i += 2) {
+					double l = Math.hypot(road[i + 2] - road[i], (road[i + 3] - road[i + 1]) * 0.62);
+					segments.add(new double[] { road[i], road[i + 1], road[i + 2], road[i + 3], l });
+					length += l;
+				}
+			}
+			double roads = length;
+			return (random, point) -> {
+				double pick = random.nextDouble() * roads;
+				double[] segment = segments.get(segments.size() - 1);
+				for (double[] s : segments) {
+					if ((pick -= s[4]) < 0) {
+						segment = s;
+						break;
+					}
+				}
+				double f = random.nextDouble();
+				point[0] = segment[0] + f * (segment[2] - segment[0]) + gaussian(random) * ROAD_JITTER;
+				point[1] = segment[1] + f * (segment[3] - segment[1]) + gaussian(random) * ROAD_JITTER;
+			};
+		default:
+			throw new IllegalArgumentException("Unknown distribution " + distribution);
+		}
+	}
+
+	private static double gaussian(SplittableRandom random) {
+		// Box-Muller
+		return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+	}
+
+	private int intValue(String key) {
+		Object value = properties.get(key);
+		return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+	}
+
+	private static int[] ints(String list) {
+		String[] parts = list.split(",");
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			result[i] = Integer.parseInt(parts[i].trim());
+		return result;
+	}
+
+	private static double[] doubles(String list) {
+		String[] parts = list.split(",");
+		double[] result = new double[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			result[i] = Double.parseDouble(parts[i].trim());
+		return result;
+	}
+
+	private static Map<String, Object> parseCommand(String[] args) {
+		HashMap<String, Object> properties = new HashMap<>();
+		for (String s : args) {
+			int i = s.indexOf("=");
+			if (i > 0) {
+				String key = s.substring(0, i).toUpperCase();
+				String val = s.substring(i + 1);
+				if (key.equals(IF2Client.USESSL)) {
+					properties.put(key, Boolean.parseBoolean(val));
+				} else if (key.equals(IF2Client.PORT)) {
+					properties.put(key, Integer.parseInt(val));
+				} else {
+					properties.put(key, val);
+				}
+			}
+		}
+		return properties;
+	}
+}
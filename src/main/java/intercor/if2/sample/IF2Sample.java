@@ -8,6 +8,7 @@ import intercor.if2.client.Datum;
 import intercor.if2.client.IF2Client;
 import intercor.if2.client.IF2Consumer;
 import intercor.if2.client.IF2Producer;
+import intercor.if2.client.LatencyProbe;
 
 /**
  *         This is a basic example implementation of the Intercor IF2 interface.
@@ -196,6 +197,14 @@ public class IF2Sample {
 		}
 		consumer.disconnect();
 		publisher.disconnect();
+
+		// With probe=true on the command line, the end-to-end latency is measured
+		LatencyProbe probe = consumer.getProbe();
+		if (probe != null) {
+			System.out.println("Latency of " + probe.count() + " messages: median " + probe.percentile(50) / 1000
+					+ " us, 99% " + probe.percentile(99) / 1000 + " us, max " + probe.max() / 1000 + " us, lost "
+					+ probe.lost());
+		}
 	}
 
 	private static Map<String,Object> parseCommand(String[] args) {
@@ -0,0 +1,153 @@
+package quadtree;
+
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Conversion of large arrays of lat/lon locations to tiles or quadtree paths.
+ * The result is exactly the same as calling
+ * {@link QuadTreeConverter#encode(int, double, double)} or
+ * {@link QuadTreeConverter#getQuadTree(int, double, double)} for every point,
+ * but the conversion runs in a tight loop over the arrays without creating
+ * objects, and large arrays are split over the common {@link ForkJoinPool}.
+ * Buffers are copied into arrays first, unless they wrap an array exactly.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public class BulkQuadTreeConverter {
+
+	/**
+	 * Arrays with at least this number of points are converted in parallel.
+	 */
+	public static final int PARALLEL_THRESHOLD = 1 << 15;
+
+	/*
+	 * Number of points converted by a single fork/join task.
+	 */
+	private static final int CHUNK_SIZE = 1 << 13;
+
+	/**
+	 * Convert every lat/lon pair into a packed tile.
+	 * 
+	 * @param zoom
+	 *            Map zoom level
+	 * @param lat
+	 *            Latitudes, in degrees
+	 * @param lon
+	 *            Longitudes, in degrees, same length as lat
+	 * @param tiles
+	 *            Packed tiles (see {@link PackedTile}), at least as long as lat
+	 */
+	public static void encode(int zoom, double[] lat, double[] lon, long[] tiles) {
+		int n = checkLength(lat.length, lon.length, tiles.length);
+		run(n, (from, to) -> encode(zoom, lat, lon, tiles, from, to));
+	}
+
+	/**
+	 * Convert the remaining lat/lon pairs of two buffers into packed tiles. The
+	 * positions of the buffers are not changed.
+	 */
+	public static void encode(int zoom, DoubleBuffer lat, DoubleBuffer lon, long[] tiles) {
+		checkLength(lat.remaining(), lon.remaining(), tiles.length);
+		encode(zoom, toArray(lat), toArray(lon), tiles);
+	}
+
+	/**
+	 * Convert every lat/lon pair into a quadtree path of exactly zoom ASCII digits.
+	 * The path of point i starts at position i * zoom of the digits array.
+	 * 
+	 * @param zoom
+	 *            Map zoom level
+	 * @param lat
+	 *            Latitudes, in degrees
+	 * @param lon
+	 *            Longitudes, in degrees, same length as lat
+	 * @param digits
+	 *            destination, at least lat.length * zoom bytes long
+	 */
+	public static void quadTrees(int zoom, double[] lat, double[] lon, byte[] digits) {
+		int n = checkLength(lat.length, lon.length, zoom == 0 ? lat.length : digits.length / zoom);
+		run(n, (from, to) -> quadTrees(zoom, lat, lon, digits, from, to));
+	}
+
+	private static void encode(int zoom, double[] lat, double[] lon, long[] tiles, int from, int to) {
+		double res = ImageMapPoint.resolution(zoom);
+		boolean fast = QuadTreeConverter.isFastProjection();
+		for (int i = from; i < to; i++) {
+			tiles[i] = QuadTreeConverter.encode(zoom, res, lat[i], lon[i], fast);
+		}
+	}
+
+	private static void quadTrees(int zoom, double[] lat, double[] lon, byte[] digits, int from, int to) {
+		double res = ImageMapPoint.resolution(zoom);
+		boolean fast = QuadTreeConverter.isFastProjection();
+		for (int i = from; i < to; i++) {
+			PackedTile.writeQuadTree(QuadTreeConverter.encode(zoom, res, lat[i], lon[i], fast), digits, i * zoom);
+		}
+	}
+
+	/*
+	 * The remaining values of a buffer as an array: the backing array when it holds
+	 * exactly these values, a copy otherwise.
+	 */
+	private static double[] toArray(DoubleBuffer buffer) {
+		if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0
+				&& buffer.array().length == buffer.remaining())
+			return buffer.array();
+		double[] values = new double[buffer.remaining()];
+		buffer.duplicate().get(values);
+		return values;
+	}
+
+	private static int checkLength(int lat, int lon, int out) {
+		if (lat != lon)
+			throw new IllegalArgumentException("lat and lon should have the same length: " + lat + " != " + lon);
+		if (out < lat)
+			throw new IllegalArgumentException("output too small for " + lat + " points");
+		return lat;
+	}
+
+	private static void run(int n, Converter converter) {
+		if (n < PARALLEL_THRESHOLD) {
+			converter.convert(0, n);
+		} else {
+			ForkJoinPool.commonPool().invoke(new BulkTask(converter, 0, n));
+		}
+	}
+
+	/*
+	 * Conversion of the points in the range [from, to)
+	 */
+	private interface Converter {
+		void convert(int from, int to);
+	}
+
+	/*
+	 * Fork/join task that splits a range of points in halves, until the range is
+	 * at most CHUNK_SIZE points.
+	 */
+	private static class BulkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final transient Converter converter;
+		private final int from;
+		private final int to;
+
+		BulkTask(Converter converter, int from, int to) {
+			this.converter = converter;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK_SIZE) {
+				converter.convert(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new BulkTask(converter, from, mid), new BulkTask(converter, mid, to));
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package quadtree;
+
+/**
+ * Fast calculation of the tile row that contains a latitude. The Mercator y
+ * projection, ln(tan(pi/4 + lat/2)), is linearly interpolated in a table with
+ * 128 points per degree, instead of calculated with log and tan.
+ * 
+ * The error of linear interpolation of a function f over an interval of width h
+ * is at most h^2/8 * max|f''|. For the Mercator projection f'' = sec(lat) *
+ * tan(lat), which grows with |lat|, so the maximum is at the end of the
+ * interval furthest from the equator. This bound, plus a margin for rounding,
+ * is stored per interval. When the interpolated position is further than the
+ * bound from a tile edge, the exact position is in the same tile. Otherwise,
+ * and for latitudes outside the table, the exact projection is used. The
+ * result is therefore always the same tile row as the exact calculation in
+ * {@link QuadTreeConverter#encode(int, double, double)}.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public final class FastMercator {
+
+	private static final double MIN_LAT = -86;
+	private static final double MAX_LAT = 86;
+	private static final int STEPS_PER_DEGREE = 128;
+	private static final int SIZE = (int) ((MAX_LAT - MIN_LAT) * STEPS_PER_DEGREE) + 1;
+
+	/*
+	 * Margin for the rounding errors in the table, the interpolation and the exact
+	 * calculation, in radians of the projection.
+	 */
+	private static final double ROUNDING = 1E-12;
+
+	private static final double INV_TWO_PI = 1 / (2 * Math.PI);
+
+	/*
+	 * Projection ln(tan(pi/4 + lat/2)) at every table point
+	 */
+	private static final double[] Y = new double[SIZE];
+
+	/*
+	 * Maximum error, in tiles at zoom level 0, of the interpolation in every
+	 * interval
+	 */
+	private static final double[] ERROR = new double[SIZE - 1];
+
+	static {
+		for (int i = 0; i < SIZE; i++) {
+			double lat = Math.toRadians(MIN_LAT + i / (double) STEPS_PER_DEGREE);
+			Y[i] = Math.log(Math.tan(Math.PI / 4 + lat / 2));
+		}
+		double h = Math.toRadians(1. / STEPS_PER_DEGREE);
+		for (int i = 0; i < SIZE - 1; i++) {
+			double a = Math.abs(MIN_LAT + i / (double) STEPS_PER_DEGREE);
+			double b = Math.abs(MIN_LAT + (i + 1) / (double) STEPS_PER_DEGREE);
+			double lat = Math.toRadians(Math.max(a, b));
+			double f2 = Math.tan(lat) / Math.cos(lat);
+			ERROR[i] = (h * h / 8 * f2 * 1.01 + ROUNDING) * INV_TWO_PI;
+		}
+	}
+
+	private FastMercator() {
+	}
+
+	/**
+	 * Tile row that contains a latitude, at a zoom level.
+	 * 
+	 * @param zoom
+	 *            Map zoom level, at most {@link PackedTile#MAX_ZOOM}
+	 * @param lat
+	 *            Latitude, in degrees
+	 * @return the row, the same as the y of
+	 *         {@link QuadTreeConverter#encode(int, double, double)}
+	 */
+	public static int tileY(int zoom, double lat) {
+		double t = (lat - MIN_LAT) * STEPS_PER_DEGREE;
+		// also false for NaN
+		if (t >= 0 && t < SIZE - 1) {
+			int i = (int) t;
+			double y = Y[i] + (Y[i + 1] - Y[i]) * (t - i);
+			double scale = 1L << zoom;
+			double p = (y * INV_TWO_PI + 0.5) * scale;
+			double row = Math.floor(p);
+			double d = p - row;
+			double margin = (ERROR[i] + 1E-14) * scale;
+			if (d > margin && d < 1 - margin)
+				return (int) row;
+		}
+		return exactTileY(zoom, lat);
+	}
+
+	static int exactTileY(int zoom, double lat) {
+		return ImageMapPoint
+				.tileIndex((Mercator.latToMercatorY(lat) - Mercator.Y0) / ImageMapPoint.resolution(zoom));
+	}
+}
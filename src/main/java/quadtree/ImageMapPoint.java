@@ -21,7 +21,7 @@ class ImageMapPoint {
 
 	public ImageMapPoint(int zoom, MercatorPoint m) {
 		this.zoom = zoom;
-		double res = resolution();
+		double res = resolution(zoom);
 		x = (m.x - Mercator.X0) / res;
 		y = (m.y - Mercator.Y0) / res;
 	}
@@ -30,19 +30,34 @@ class ImageMapPoint {
 	 * Distance on the mercator map per pixel.
 	 */
 	private double resolution() {
-		int NoOfPix = Mercator.TILE_SIZE * (1 << zoom);
+		return resolution(zoom);
+	}
+
+	/*
+	 * Distance on the mercator map per pixel, at a specific zoom level. The number
+	 * of pixels is calculated as a double, as it does not fit an int above zoom
+	 * level 22.
+	 */
+	static double resolution(int zoom) {
+		double NoOfPix = Mercator.TILE_SIZE * (double) (1L << zoom);
 		return Mercator.MERCATOR_SIZE / NoOfPix;
 	}
 
+	/*
+	 * Index of the tile that contains a pixel coordinate. A pixel exactly on a
+	 * tile edge belongs to the lower tile.
+	 */
+	static int tileIndex(double pixel) {
+		return (int) (Math.ceil(pixel / (1. * Mercator.TILE_SIZE)) - 1);
+	}
+
 	@Override
 	public String toString() {
 		return String.format("[%8.8f, %8.8f (%d, args)]",x,y,zoom);
 	}
 
 	public Tile getContainingTile() {
-		int tx = (int) (Math.ceil(x / (1. * Mercator.TILE_SIZE)) - 1);
-		int ty = (int) (Math.ceil(y / (1. * Mercator.TILE_SIZE)) - 1);
-		return new Tile(zoom, tx, ty);
+		return new Tile(zoom, tileIndex(x), tileIndex(y));
 	}
 
 	public MercatorPoint asMercatorPoint() {
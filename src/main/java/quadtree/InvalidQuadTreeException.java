@@ -0,0 +1,19 @@
+package quadtree;
+
+/**
+ * Thrown by {@link QuadTreeParser} when the input is not a valid quadtree path.
+ * The parser is used on the hot path of message consumption, so a single
+ * preallocated instance without stack trace is thrown.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public class InvalidQuadTreeException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	static final InvalidQuadTreeException INSTANCE = new InvalidQuadTreeException();
+
+	private InvalidQuadTreeException() {
+		super("not a valid quadtree path", null, false, false);
+	}
+}
@@ -22,9 +22,29 @@ public class Mercator {
 	}
 
 	public static MercatorPoint latLonToMercator(LatLon ll) {
-		double mx = ll.lon * MERCATOR_SIZE / 360.;
-		double my = Math.log(Math.tan((Math.PI / 4. + ll.lat / 180. * Math.PI / 2.))) * MERCATOR_SIZE / (2. * Math.PI);
-		return new MercatorPoint(mx, my);
+		return new MercatorPoint(lonToMercatorX(ll.lon), latToMercatorY(ll.lat));
+	}
+
+	/**
+	 * Mercator x coordinate of a longitude, without creating intermediate objects.
+	 * 
+	 * @param lon
+	 *            Longitude, in degrees
+	 * @return x, in m
+	 */
+	public static double lonToMercatorX(double lon) {
+		return lon * MERCATOR_SIZE / 360.;
+	}
+
+	/**
+	 * Mercator y coordinate of a latitude, without creating intermediate objects.
+	 * 
+	 * @param lat
+	 *            Latitude, in degrees
+	 * @return y, in m
+	 */
+	public static double latToMercatorY(double lat) {
+		return Math.log(Math.tan((Math.PI / 4. + lat / 180. * Math.PI / 2.))) * MERCATOR_SIZE / (2. * Math.PI);
 	}
 
 	public static LatLon mercatorToLatLon(double x, double y) {
@@ -32,11 +52,32 @@ public class Mercator {
 	}
 
 	public static LatLon mercatorToLatLon(MercatorPoint m) {
-		double lon = m.x / (MERCATOR_SIZE / 360.);
-		double lat = m.y / MERCATOR_SIZE   * 2. * Math.PI;
+		return new LatLon(mercatorYToLat(m.y), mercatorXToLon(m.x));
+	}
+
+	/**
+	 * Longitude of a Mercator x coordinate, without creating intermediate objects.
+	 * 
+	 * @param x
+	 *            in m
+	 * @return longitude, in degrees
+	 */
+	public static double mercatorXToLon(double x) {
+		return x / (MERCATOR_SIZE / 360.);
+	}
+
+	/**
+	 * Latitude of a Mercator y coordinate, without creating intermediate objects.
+	 * 
+	 * @param y
+	 *            in m
+	 * @return latitude, in degrees
+	 */
+	public static double mercatorYToLat(double y) {
+		double lat = y / MERCATOR_SIZE   * 2. * Math.PI;
 		lat = Math.exp(lat);
 		lat = Math.atan(lat) - Math.PI / 4.;
 		lat = lat * 180. / Math.PI * 2;
-		return new LatLon(lat, lon);
+		return lat;
 	}
 }
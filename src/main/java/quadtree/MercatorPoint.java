@@ -10,7 +10,10 @@ package quadtree;
 public class MercatorPoint {
 	final double x;
 	final double y;
-	ImageMapPoint imp = null;
+	/*
+	 * Image points, cached per zoom level
+	 */
+	private ImageMapPoint[] imps = null;
 
 	public MercatorPoint(double x, double y) {
 		this.x = x;
@@ -23,8 +26,11 @@ public class MercatorPoint {
 	}
 
 	public ImageMapPoint asImagePoint(int zoom) {
+		if (imps == null)
+			imps = new ImageMapPoint[32];
+		ImageMapPoint imp = imps[zoom];
 		if (imp == null)
-			imp = new ImageMapPoint(zoom, this);
+			imps[zoom] = imp = new ImageMapPoint(zoom, this);
 		return imp;
 	}
 	
@@ -0,0 +1,100 @@
+package quadtree;
+
+/**
+ * Utility class to pack a tile (zoom, x, y) into a single long value, so that
+ * tiles can be passed around without creating {@link Tile} objects. The zoom
+ * level is stored in the upper 6 bits, x and y each in a signed 29 bit field.
+ * The fields are signed, because {@link ImageMapPoint#getContainingTile()}
+ * returns -1 for points exactly on the left or bottom edge of the map, and the
+ * packed representation should give exactly the same tiles.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public final class PackedTile {
+
+	/**
+	 * Maximum zoom level that can be represented in a packed tile
+	 */
+	public static final int MAX_ZOOM = 28;
+
+	private static final long MASK = (1L << 29) - 1;
+
+	private PackedTile() {
+	}
+
+	public static long pack(int zoom, int x, int y) {
+		return ((long) zoom << 58) | (((long) x & MASK) << 29) | ((long) y & MASK);
+	}
+
+	public static int zoom(long packed) {
+		return (int) (packed >>> 58);
+	}
+
+	public static int x(long packed) {
+		return (int) ((packed << 6) >> 35);
+	}
+
+	public static int y(long packed) {
+		return (int) ((packed << 35) >> 35);
+	}
+
+	public static long of(Tile tile) {
+		return pack(tile.zoom, tile.x, tile.y);
+	}
+
+	public static Tile toTile(long packed) {
+		return new Tile(zoom(packed), x(packed), y(packed));
+	}
+
+	/**
+	 * Write the quadtree path of a packed tile as ASCII digits, exactly zoom bytes,
+	 * the same digits as {@link Tile#getQuadTree()}.
+	 * 
+	 * @param packed
+	 *            packed tile
+	 * @param dst
+	 *            destination array
+	 * @param offset
+	 *            position in dst of the first digit
+	 * @return position in dst after the last digit
+	 */
+	public static int writeQuadTree(long packed, byte[] dst, int offset) {
+		int zoom = zoom(packed);
+		int x = x(packed);
+		int ty = ((1 << zoom) - 1) - y(packed);
+		for (int i = zoom - 1; i >= 0; i--) {
+			dst[offset++] = (byte) ('0' + ((x >>> i) & 1) + (((ty >>> i) & 1) << 1));
+		}
+		return offset;
+	}
+
+	/**
+	 * Write the quadtree path of a packed tile, with a seperator before every
+	 * digit, exactly 2 * zoom chars, the same as {@link Tile#getQuadTree(String)}.
+	 * 
+	 * @param packed
+	 *            packed tile
+	 * @param seperator
+	 *            inserted before every digit
+	 * @param dst
+	 *            destination array
+	 * @param offset
+	 *            position in dst of the first seperator
+	 * @return position in dst after the last digit
+	 */
+	public static int writeQuadTree(long packed, char seperator, char[] dst, int offset) {
+		int zoom = zoom(packed);
+		int x = x(packed);
+		int ty = ((1 << zoom) - 1) - y(packed);
+		for (int i = zoom - 1; i >= 0; i--) {
+			dst[offset++] = seperator;
+			dst[offset++] = (char) ('0' + ((x >>> i) & 1) + (((ty >>> i) & 1) << 1));
+		}
+		return offset;
+	}
+
+	public static String toString(long packed) {
+		return "<" + x(packed) + ", " + y(packed) + " (" + zoom(packed) + ")>";
+	}
+}
@@ -0,0 +1,278 @@
+package quadtree;
+
+/**
+ * Representation of a quadtree path in a single long value. The digits of the
+ * path are stored as Morton interleaved x and y bits, left aligned in the long,
+ * and the zoom level is stored in the lowest 8 bits. The digits are the same
+ * as the ones generated by {@link Tile#getQuadTree(String)}: per level, the x
+ * bit is the low bit and the inverted y bit the high bit of the digit.
+ * 
+ * Because the path is left aligned, a parent and all its descendants share the
+ * same leading bits, so containment, ancestors and common ancestors are simple
+ * bit operations. The natural ordering is the same as the ordering of the
+ * quadtree strings: a parent sorts directly before its children.
+ * 
+ * All operations are also available as static methods on the raw long value,
+ * for use in code that should not create objects.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public final class QuadKey implements Comparable<QuadKey> {
+
+	/**
+	 * Maximum zoom level that can be represented in a quadkey
+	 */
+	public static final int MAX_ZOOM = PackedTile.MAX_ZOOM;
+
+	private static final long ZOOM_MASK = 0xFF;
+
+	/**
+	 * The quadkey of the whole world, zoom level 0
+	 */
+	public static final QuadKey WORLD = new QuadKey(0);
+
+	private final long value;
+
+	private QuadKey(long value) {
+		this.value = value;
+	}
+
+	public static QuadKey fromValue(long value) {
+		return new QuadKey(value);
+	}
+
+	public static QuadKey of(Tile tile) {
+		return new QuadKey(encode(tile.zoom, tile.x, tile.y));
+	}
+
+	public static QuadKey fromPacked(long packed) {
+		return new QuadKey(encode(packed));
+	}
+
+	/**
+	 * Parse a quadtree path, e.g. the quadtree part of a routing key.
+	 * 
+	 * @param quadtree
+	 *            path, e.g. ".1.2.0.2"
+	 * @param sep
+	 *            seperator used in the path, e.g. "."
+	 * @return
+	 */
+	public static QuadKey fromQuadTree(String quadtree, String sep) {
+		return of(new Tile(quadtree, sep));
+	}
+
+	public static QuadKey fromQuadTree(String quadtree) {
+		return fromQuadTree(quadtree, "");
+	}
+
+	/**
+	 * Quadkey value of a tile. x and y are reduced to the zoom level, the same way
+	 * as done by {@link Tile#getQuadTree(String)}.
+	 * 
+	 * @param zoom
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public static long encode(int zoom, int x, int y) {
+		if (zoom == 0)
+			return 0;
+		int mask = (1 << zoom) - 1;
+		int ty = (mask - y) & mask;
+		long morton = spread(x & mask) | (spread(ty) << 1);
+		return (morton << (64 - 2 * zoom)) | zoom;
+	}
+
+	/**
+	 * Quadkey value of a packed tile (see {@link PackedTile}).
+	 */
+	public static long encode(long packed) {
+		return encode(PackedTile.zoom(packed), PackedTile.x(packed), PackedTile.y(packed));
+	}
+
+	public static int zoom(long key) {
+		return (int) (key & ZOOM_MASK);
+	}
+
+	public static int x(long key) {
+		return compact(morton(key));
+	}
+
+	public static int y(long key) {
+		int zoom = zoom(key);
+		return ((1 << zoom) - 1) - compact(morton(key) >>> 1);
+	}
+
+	/**
+	 * Digit (0-3) of the path at a specific level, with level 1 being the first
+	 * digit.
+	 */
+	public static int digit(long key, int level) {
+		return (int) (key >>> (64 - 2 * level)) & 3;
+	}
+
+	public static long ancestor(long key, int zoom) {
+		if (zoom > zoom(key) || zoom < 0)
+			throw new IllegalArgumentException("zoom " + zoom + " not an ancestor of level " + zoom(key));
+		return (key & prefixMask(zoom)) | zoom;
+	}
+
+	public static long parent(long key) {
+		return ancestor(key, zoom(key) - 1);
+	}
+
+	public static long child(long key, int digit) {
+		int zoom = zoom(key) + 1;
+		if (zoom > MAX_ZOOM)
+			throw new IllegalArgumentException("zoom " + zoom + " exceeds maximum zoom level");
+		return (key & ~ZOOM_MASK) | ((long) (digit & 3) << (64 - 2 * zoom)) | zoom;
+	}
+
+	/**
+	 * @return true when other is equal to or a descendant of key
+	 */
+	public static boolean contains(long key, long other) {
+		int zoom = zoom(key);
+		return zoom <= zoom(other) && (other & prefixMask(zoom)) == (key & ~ZOOM_MASK);
+	}
+
+	public static long commonAncestor(long key, long other) {
+		long diff = (key ^ other) & ~ZOOM_MASK;
+		int zoom = Math.min(Long.numberOfLeadingZeros(diff) / 2, Math.min(zoom(key), zoom(other)));
+		return (key & prefixMask(zoom)) | zoom;
+	}
+
+	public static String toQuadTree(long key, String seperator) {
+		int zoom = zoom(key);
+		StringBuilder qt = new StringBuilder(zoom * (1 + seperator.length()));
+		for (int i = 1; i <= zoom; i++) {
+			qt.append(seperator).append((char) ('0' + digit(key, i)));
+		}
+		return qt.toString();
+	}
+
+	/*
+	 * Mask covering the path bits of the first zoom levels
+	 */
+	private static long prefixMask(int zoom) {
+		return zoom == 0 ? 0 : -1L << (64 - 2 * zoom);
+	}
+
+	/*
+	 * Right aligned morton code of the path
+	 */
+	private static long morton(long key) {
+		int zoom = zoom(key);
+		return zoom == 0 ? 0 : key >>> (64 - 2 * zoom);
+	}
+
+	/*
+	 * Spread the bits of v, so that there is a zero bit in between every bit.
+	 */
+	private static long spread(int v) {
+		long x = v & 0xFFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2)) & 0x3333333333333333L;
+		x = (x | (x << 1)) & 0x5555555555555555L;
+		return x;
+	}
+
+	/*
+	 * Inverse of spread: collect every even bit of x.
+	 */
+	private static int compact(long x) {
+		x &= 0x5555555555555555L;
+		x = (x | (x >>> 1)) & 0x3333333333333333L;
+		x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+		return (int) x;
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	public int getZoom() {
+		return zoom(value);
+	}
+
+	public int getDigit(int level) {
+		return digit(value, level);
+	}
+
+	public QuadKey parent() {
+		return new QuadKey(parent(value));
+	}
+
+	public QuadKey ancestorAt(int zoom) {
+		return new QuadKey(ancestor(value, zoom));
+	}
+
+	public QuadKey child(int digit) {
+		return new QuadKey(child(value, digit));
+	}
+
+	/**
+	 * @return the 4 children, ordered by digit
+	 */
+	public QuadKey[] children() {
+		return new QuadKey[] { child(0), child(1), child(2), child(3) };
+	}
+
+	public boolean contains(QuadKey other) {
+		return contains(value, other.value);
+	}
+
+	public QuadKey commonAncestor(QuadKey other) {
+		return new QuadKey(commonAncestor(value, other.value));
+	}
+
+	public Tile toTile() {
+		return new Tile(zoom(value), x(value), y(value));
+	}
+
+	public long toPacked() {
+		return PackedTile.pack(zoom(value), x(value), y(value));
+	}
+
+	public String getQuadTree(String seperator) {
+		return toQuadTree(value, seperator);
+	}
+
+	public String getQuadTree() {
+		return getQuadTree("");
+	}
+
+	@Override
+	public int compareTo(QuadKey other) {
+		return Long.compareUnsigned(value, other.value);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (value ^ (value >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		QuadKey other = (QuadKey) obj;
+		return value == other.value;
+	}
+
+	@Override
+	public String toString() {
+		return "<" + getQuadTree() + " (" + getZoom() + ")>";
+	}
+}
@@ -1,9 +1,11 @@
 package quadtree;
 
+import java.util.PrimitiveIterator;
+
 /**
  * Basic utility to calculate Tile numbers and quadtree paths, based on a
- * latitude and longitude value. This class could be extended with additional
- * function to e.g. determine the optimum zoom level to cover a specific area.
+ * latitude and longitude value. To determine the quadtree paths that cover a
+ * specific area, see {@link RegionCoverer}.
  * 
  * This and other classes in this package are inspired on a python
  * implementation, globalmaptiles.py, developed by Klokan Petr Pridal, klokan at
@@ -18,6 +20,8 @@ package quadtree;
  */
 public class QuadTreeConverter {
 
+	private static volatile boolean fastProjection = false;
+
 	/**
 	 * Determine the Tile that contains a specific lat/lon location, at a specific
 	 * zoom level
@@ -28,8 +32,163 @@ public class QuadTreeConverter {
 	 * @return
 	 */
 	public static Tile latLonToTile(int zoom, double lat, double lon) {
-		LatLon ll = new LatLon(lat, lon);
-		return ll.getContainingTile(zoom);
+		return PackedTile.toTile(encode(zoom, lat, lon));
+	}
+
+	/**
+	 * Determine the Tile that contains a specific lat/lon location, at a specific
+	 * zoom level, without creating any intermediate objects. The result is exactly
+	 * the same tile as returned by {@link LatLon#getContainingTile(int)}, packed in
+	 * a long (see {@link PackedTile}).
+	 * 
+	 * @param zoom
+	 *            Map zoom level, at most {@link PackedTile#MAX_ZOOM}
+	 * @param lat
+	 *            Latitude, in degrees
+	 * @param lon
+	 *            Longitude, in degrees
+	 * @return the packed tile
+	 */
+	public static long encode(int zoom, double lat, double lon) {
+		return encode(zoom, ImageMapPoint.resolution(zoom), lat, lon, fastProjection);
+	}
+
+	/*
+	 * Calculation of encode, with the resolution of the zoom level calculated
+	 * already.
+	 */
+	static long encode(int zoom, double res, double lat, double lon, boolean fast) {
+		int tx = ImageMapPoint.tileIndex((Mercator.lonToMercatorX(lon) - Mercator.X0) / res);
+		int ty = fast ? FastMercator.tileY(zoom, lat)
+				: ImageMapPoint.tileIndex((Mercator.latToMercatorY(lat) - Mercator.Y0) / res);
+		return PackedTile.pack(zoom, tx, ty);
+	}
+
+	/**
+	 * Select the fast projection (see {@link FastMercator}) for the latitude in
+	 * {@link #encode(int, double, double)}, and all conversions based on it. The
+	 * resulting tiles are exactly the same in both modes. Default is false.
+	 * 
+	 * @param fast
+	 */
+	public static void setFastProjection(boolean fast) {
+		fastProjection = fast;
+	}
+
+	public static boolean isFastProjection() {
+		return fastProjection;
+	}
+
+	/**
+	 * Determine the tiles that contain a specific lat/lon location, at every zoom
+	 * level from minZoom up to and including maxZoom. The location is projected
+	 * only once, at maxZoom, and the other tiles are derived from that one. The
+	 * result is the same as calling {@link #encode(int, double, double)} for every
+	 * zoom level.
+	 * 
+	 * @param minZoom
+	 *            coarsest zoom level
+	 * @param maxZoom
+	 *            finest zoom level, at most {@link PackedTile#MAX_ZOOM}
+	 * @param lat
+	 *            Latitude, in degrees
+	 * @param lon
+	 *            Longitude, in degrees
+	 * @param tiles
+	 *            destination for maxZoom - minZoom + 1 packed tiles, starting with
+	 *            minZoom
+	 * @param offset
+	 *            position in tiles of the tile at minZoom
+	 * @return the number of tiles written
+	 */
+	public static int encodeAncestors(int minZoom, int maxZoom, double lat, double lon, long[] tiles, int offset) {
+		long deepest = encode(maxZoom, lat, lon);
+		int x = PackedTile.x(deepest);
+		int y = PackedTile.y(deepest);
+		for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+			// arithmetic shift, so that tile -1 on the edge of the map stays -1
+			tiles[offset++] = PackedTile.pack(zoom, x >> (maxZoom - zoom), y >> (maxZoom - zoom));
+		}
+		return maxZoom - minZoom + 1;
+	}
+
+	public static long[] encodeAncestors(int minZoom, int maxZoom, double lat, double lon) {
+		long[] tiles = new long[maxZoom - minZoom + 1];
+		encodeAncestors(minZoom, maxZoom, lat, lon, tiles, 0);
+		return tiles;
+	}
+
+	/**
+	 * Same as {@link #encodeAncestors(int, int, double, double, long[], int)}, but
+	 * the result are {@link QuadKey} values instead of packed tiles.
+	 */
+	public static int quadKeyAncestors(int minZoom, int maxZoom, double lat, double lon, long[] keys, int offset) {
+		long deepest = QuadKey.encode(encode(maxZoom, lat, lon));
+		for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+			keys[offset++] = QuadKey.ancestor(deepest, zoom);
+		}
+		return maxZoom - minZoom + 1;
+	}
+
+	/**
+	 * Iterate over the packed tiles in a range of columns and rows. Columns wrap
+	 * around at the antimeridian: when minX is larger than maxX, the range runs
+	 * from minX to the eastern edge of the map, and continues at the western edge
+	 * up to maxX. Rows outside the map are skipped.
+	 * 
+	 * @param minX
+	 *            first column
+	 * @param minY
+	 *            first row
+	 * @param maxX
+	 *            last column (inclusive)
+	 * @param maxY
+	 *            last row (inclusive)
+	 * @param zoom
+	 *            Map zoom level
+	 * @return iterator over packed tiles (see {@link PackedTile})
+	 */
+	public static PrimitiveIterator.OfLong tileRange(int minX, int minY, int maxX, int maxY, int zoom) {
+		return new TileRangeIterator(zoom, minX, minY, maxX, maxY);
+	}
+
+	/**
+	 * Iterate over the packed tiles that are (partially) within a radius around a
+	 * location. The radius is converted to map distance with the Mercator scale
+	 * factor at the latitude of the location, so it is only accurate for radii
+	 * that are small compared to the size of the earth.
+	 * 
+	 * @param lat
+	 *            Latitude, in degrees
+	 * @param lon
+	 *            Longitude, in degrees
+	 * @param radius
+	 *            in m
+	 * @param zoom
+	 *            Map zoom level
+	 * @return iterator over packed tiles (see {@link PackedTile})
+	 */
+	public static PrimitiveIterator.OfLong tilesWithinRadius(double lat, double lon, double radius, int zoom) {
+		int size = 1 << zoom;
+		double u = RegionCoverer.u(lon);
+		double v = RegionCoverer.v(lat);
+		double r = radius / (Mercator.MERCATOR_SIZE * Math.cos(Math.toRadians(lat)));
+		int minX = (int) Math.floor((u - r) * size);
+		int maxX = (int) Math.floor((u + r) * size);
+		if (maxX - minX + 1 >= size) {
+			minX = 0;
+			maxX = size - 1;
+		}
+		return new TileRangeIterator(zoom, minX, (int) Math.floor((v - r) * size), maxX,
+				(int) Math.floor((v + r) * size)) {
+			@Override
+			boolean accept(int x, int y) {
+				double du = Math.abs(u - (x + 0.5) / size);
+				du = Math.max(0, Math.min(du, 1 - du) - 0.5 / size);
+				double dv = Math.max(0, Math.abs(v - (y + 0.5) / size) - 0.5 / size);
+				return du * du + dv * dv <= r * r;
+			}
+		};
 	}
 
 	/**
@@ -45,8 +204,7 @@ public class QuadTreeConverter {
 	 * @return
 	 */
 	public static String getQuadTree(int zoom, double lat, double lon) {
-		LatLon ll = new LatLon(lat, lon);
-		return ll.getContainingTile(zoom).getQuadTree();
+		return latLonToTile(zoom, lat, lon).getQuadTree();
 	}
 
 	/**
@@ -65,8 +223,7 @@ public class QuadTreeConverter {
 	 * @return
 	 */
 	public static String getQuadTree(int zoom, double lat, double lon, String seperator) {
-		LatLon ll = new LatLon(lat, lon);
-		return ll.getContainingTile(zoom).getQuadTree(seperator);
+		return latLonToTile(zoom, lat, lon).getQuadTree(seperator);
 	}
 
 	/**
@@ -0,0 +1,107 @@
+package quadtree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single pass parser of quadtree paths, e.g. the quadtree part of a routing
+ * key. The parsers do not create any objects: the result is a packed tile (see
+ * {@link PackedTile}), and invalid input results in the preallocated
+ * {@link InvalidQuadTreeException}. Every occurrence of the seperator is
+ * skipped, the same way as {@link Tile#Tile(String, String)} does.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public class QuadTreeParser {
+
+	/**
+	 * Seperator to use when the path does not contain seperators
+	 */
+	public static final char NO_SEPERATOR = '\uFFFF';
+
+	public static long parse(CharSequence quadtree) {
+		return parse(quadtree, 0, quadtree.length(), NO_SEPERATOR);
+	}
+
+	public static long parse(CharSequence quadtree, char sep) {
+		return parse(quadtree, 0, quadtree.length(), sep);
+	}
+
+	/**
+	 * Parse the characters [from, to) of a quadtree path.
+	 * 
+	 * @param quadtree
+	 *            e.g. a routing key
+	 * @param from
+	 *            first character of the path
+	 * @param to
+	 *            end of the path (exclusive)
+	 * @param sep
+	 *            seperator, or {@link #NO_SEPERATOR}
+	 * @return the packed tile
+	 * @throws InvalidQuadTreeException
+	 *             when the path contains other characters than digits 0-3 and
+	 *             the seperator, or is too long.
+	 */
+	public static long parse(CharSequence quadtree, int from, int to, char sep) {
+		int zoom = 0;
+		int x = 0;
+		int y = 0;
+		for (int i = from; i < to; i++) {
+			char c = quadtree.charAt(i);
+			if (c == sep)
+				continue;
+			int digit = c - '0';
+			if (digit < 0 || digit > 3 || ++zoom > PackedTile.MAX_ZOOM)
+				throw InvalidQuadTreeException.INSTANCE;
+			x = (x << 1) | (digit & 1);
+			y = (y << 1) | (~digit >>> 1 & 1);
+		}
+		return PackedTile.pack(zoom, x, y);
+	}
+
+	/**
+	 * Parse the bytes [from, to) of an ASCII encoded quadtree path.
+	 * 
+	 * @see #parse(CharSequence, int, int, char)
+	 */
+	public static long parse(byte[] quadtree, int from, int to, char sep) {
+		int zoom = 0;
+		int x = 0;
+		int y = 0;
+		for (int i = from; i < to; i++) {
+			int c = quadtree[i] & 0xFF;
+			if (c == sep)
+				continue;
+			int digit = c - '0';
+			if (digit < 0 || digit > 3 || ++zoom > PackedTile.MAX_ZOOM)
+				throw InvalidQuadTreeException.INSTANCE;
+			x = (x << 1) | (digit & 1);
+			y = (y << 1) | (~digit >>> 1 & 1);
+		}
+		return PackedTile.pack(zoom, x, y);
+	}
+
+	/**
+	 * Parse the bytes [from, to) of an ASCII encoded quadtree path. The position
+	 * of the buffer is not changed.
+	 * 
+	 * @see #parse(CharSequence, int, int, char)
+	 */
+	public static long parse(ByteBuffer quadtree, int from, int to, char sep) {
+		int zoom = 0;
+		int x = 0;
+		int y = 0;
+		for (int i = from; i < to; i++) {
+			int c = quadtree.get(i) & 0xFF;
+			if (c == sep)
+				continue;
+			int digit = c - '0';
+			if (digit < 0 || digit > 3 || ++zoom > PackedTile.MAX_ZOOM)
+				throw InvalidQuadTreeException.INSTANCE;
+			x = (x << 1) | (digit & 1);
+			y = (y << 1) | (~digit >>> 1 & 1);
+		}
+		return PackedTile.pack(zoom, x, y);
+	}
+}
@@ -0,0 +1,566 @@
+package quadtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Determine a set of quadtree paths, at mixed zoom levels, that cover an area.
+ * The area can be a bounding box, a polygon or a corridor along a polyline.
+ * 
+ * Coverage starts with the tiles at the minimum zoom level that intersect the
+ * area. Tiles that are only partially covered by the area are split in their
+ * children, coarsest tiles first, until the maximum zoom level is reached or
+ * splitting would exceed the maximum number of cells. Finally, 4 siblings that
+ * are all part of the covering are replaced by their parent.
+ * 
+ * An over-covering (the default) contains every point of the area, but can
+ * contain points outside the area. An interior covering only contains tiles
+ * that are completely within the area.
+ * 
+ * All geometry is done in the Mercator plane, so polygon edges are straight
+ * lines on the map, not great circles. As for the rest of the package, the
+ * behaviour is undefined outside -85&lt;lat&lt;85.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public class RegionCoverer {
+
+	private int minZoom = 0;
+	private int maxZoom = 18;
+	private int maxCells = 8;
+	private boolean interior = false;
+
+	public int getMinZoom() {
+		return minZoom;
+	}
+
+	/**
+	 * @param minZoom
+	 *            the coarsest zoom level in the covering. Note, that the number of
+	 *            tiles at this level that intersect the area can be larger than
+	 *            the maximum number of cells.
+	 */
+	public void setMinZoom(int minZoom) {
+		checkZoom(minZoom);
+		this.minZoom = minZoom;
+	}
+
+	public int getMaxZoom() {
+		return maxZoom;
+	}
+
+	/**
+	 * @param maxZoom
+	 *            the finest zoom level in the covering
+	 */
+	public void setMaxZoom(int maxZoom) {
+		checkZoom(maxZoom);
+		this.maxZoom = maxZoom;
+	}
+
+	public int getMaxCells() {
+		return maxCells;
+	}
+
+	/**
+	 * @param maxCells
+	 *            maximum number of quadtree paths in the covering
+	 */
+	public void setMaxCells(int maxCells) {
+		if (maxCells < 1)
+			throw new IllegalArgumentException("maxCells should be at least 1");
+		this.maxCells = maxCells;
+	}
+
+	public boolean isInterior() {
+		return interior;
+	}
+
+	/**
+	 * @param interior
+	 *            true for an interior covering, false for an over-covering
+	 */
+	public void setInterior(boolean interior) {
+		this.interior = interior;
+	}
+
+	/**
+	 * Cover a bounding box. When west is larger than east, the box crosses the
+	 * antimeridian.
+	 * 
+	 * @param south
+	 *            Latitude of the southern edge, in degrees
+	 * @param west
+	 *            Longitude of the western edge, in degrees
+	 * @param north
+	 *            Latitude of the northern edge, in degrees
+	 * @param east
+	 *            Longitude of the eastern edge, in degrees
+	 * @return the covering, in quadtree order
+	 */
+	public List<QuadKey> coverBoundingBox(double south, double west, double north, double east) {
+		if (west > east) {
+			return cover(new Union(new Box(south, west, north, 180), new Box(south, -180, north, east)));
+		}
+		return cover(new Box(south, west, north, east));
+	}
+
+	/**
+	 * Cover a polygon. The polygon is closed automatically, the last point should
+	 * not be equal to the first.
+	 * 
+	 * @param lat
+	 *            Latitudes of the polygon points, in degrees
+	 * @param lon
+	 *            Longitudes of the polygon points, in degrees
+	 * @return the covering, in quadtree order
+	 */
+	public List<QuadKey> coverPolygon(double[] lat, double[] lon) {
+		return cover(new Polygon(lat, lon));
+	}
+
+	/**
+	 * Cover a corridor of a specific width around a polyline, e.g. a road.
+	 * 
+	 * @param lat
+	 *            Latitudes of the polyline points, in degrees
+	 * @param lon
+	 *            Longitudes of the polyline points, in degrees
+	 * @param width
+	 *            Total width of the corridor, in m
+	 * @return the covering, in quadtree order
+	 */
+	public List<QuadKey> coverCorridor(double[] lat, double[] lon, double width) {
+		return cover(new Corridor(lat, lon, width / 2));
+	}
+
+	/**
+	 * Convert a covering into routing key filters, e.g. "*.*.*.*.1.2.0.#".
+	 * 
+	 * @param prefix
+	 *            filter on the part of the routing key before the quadtree, e.g.
+	 *            "*.*.*.*"
+	 * @param covering
+	 * @return
+	 */
+	public static List<String> toRoutingKeys(String prefix, List<QuadKey> covering) {
+		List<String> keys = new ArrayList<>(covering.size());
+		for (QuadKey key : covering) {
+			keys.add(prefix + key.getQuadTree(".") + ".#");
+		}
+		return keys;
+	}
+
+	List<QuadKey> cover(Region region) {
+		List<Long> result = new ArrayList<>();
+		PriorityQueue<Long> candidates = new PriorityQueue<>(Comparator.comparingInt(QuadKey::zoom));
+		int zoom = Math.min(minZoom, maxZoom);
+		double scale = 1L << zoom;
+		double[] b = region.bounds();
+		int minX = clamp((int) Math.floor(b[0] * scale), zoom);
+		int minY = clamp((int) Math.floor(b[1] * scale), zoom);
+		int maxX = clamp((int) Math.floor(b[2] * scale), zoom);
+		int maxY = clamp((int) Math.floor(b[3] * scale), zoom);
+		for (int x = minX; x <= maxX; x++) {
+			for (int y = minY; y <= maxY; y++) {
+				long key = QuadKey.encode(zoom, x, y);
+				int c = classify(region, key);
+				if (c == CONTAINED)
+					result.add(key);
+				else if (c == PARTIAL)
+					candidates.add(key);
+			}
+		}
+
+		long[] children = new long[4];
+		boolean[] partial = new boolean[4];
+		while (!candidates.isEmpty()) {
+			long key = candidates.poll();
+			int count = result.size() + candidates.size();
+			if (QuadKey.zoom(key) < maxZoom) {
+				int n = 0;
+				for (int d = 0; d < 4; d++) {
+					long child = QuadKey.child(key, d);
+					int c = classify(region, child);
+					if (c != DISJOINT) {
+						partial[n] = c == PARTIAL;
+						children[n++] = child;
+					}
+				}
+				if (count + n <= maxCells) {
+					for (int i = 0; i < n; i++) {
+						if (partial[i])
+							candidates.add(children[i]);
+						else
+							result.add(children[i]);
+					}
+					continue;
+				}
+			}
+			if (!interior)
+				result.add(key);
+		}
+		return normalize(result);
+	}
+
+	/*
+	 * Replace 4 siblings by their parent, as long as the parent is not coarser
+	 * than the minimum zoom level.
+	 */
+	private List<QuadKey> normalize(List<Long> keys) {
+		Set<Long> set = new HashSet<>(keys);
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (Long key : new ArrayList<>(set)) {
+				if (!set.contains(key) || QuadKey.zoom(key) <= minZoom)
+					continue;
+				long parent = QuadKey.parent(key);
+				boolean complete = true;
+				for (int d = 0; d < 4 && complete; d++)
+					complete = set.contains(QuadKey.child(parent, d));
+				if (complete) {
+					for (int d = 0; d < 4; d++)
+						set.remove(QuadKey.child(parent, d));
+					set.add(parent);
+					merged = true;
+				}
+			}
+		}
+		List<QuadKey> result = new ArrayList<>(set.size());
+		for (Long key : set)
+			result.add(QuadKey.fromValue(key));
+		Collections.sort(result);
+		return result;
+	}
+
+	private static int clamp(int i, int zoom) {
+		return Math.max(0, Math.min((1 << zoom) - 1, i));
+	}
+
+	private static void checkZoom(int zoom) {
+		if (zoom < 0 || zoom > QuadKey.MAX_ZOOM)
+			throw new IllegalArgumentException("zoom should be in [0, " + QuadKey.MAX_ZOOM + "]");
+	}
+
+	private static final int DISJOINT = 0;
+	private static final int PARTIAL = 1;
+	private static final int CONTAINED = 2;
+
+	private static int classify(Region region, long key) {
+		int zoom = QuadKey.zoom(key);
+		double size = 1. / (1L << zoom);
+		double minU = QuadKey.x(key) * size;
+		double minV = QuadKey.y(key) * size;
+		double maxU = minU + size;
+		double maxV = minV + size;
+		if (region.contains(minU, minV, maxU, maxV))
+			return CONTAINED;
+		if (region.intersects(minU, minV, maxU, maxV))
+			return PARTIAL;
+		return DISJOINT;
+	}
+
+	/*
+	 * Normalized map coordinates: u runs from 0 (lon -180) to 1 (lon 180), v from
+	 * 0 (south) to 1 (north), so that a tile (zoom, x, y) covers [x, x + 1] * [y, y
+	 * + 1] / 2^zoom.
+	 */
+	static double u(double lon) {
+		return (Mercator.lonToMercatorX(lon) - Mercator.X0) / Mercator.MERCATOR_SIZE;
+	}
+
+	static double v(double lat) {
+		return (Mercator.latToMercatorY(lat) - Mercator.Y0) / Mercator.MERCATOR_SIZE;
+	}
+
+	/**
+	 * Area to cover, in normalized map coordinates. The tests may be
+	 * conservative: contains may return false for a rectangle that is inside the
+	 * area, and intersects may return true for a rectangle outside the area, at
+	 * the cost of a less optimal covering.
+	 */
+	interface Region {
+		/**
+		 * @return minU, minV, maxU, maxV
+		 */
+		double[] bounds();
+
+		boolean intersects(double minU, double minV, double maxU, double maxV);
+
+		boolean contains(double minU, double minV, double maxU, double maxV);
+	}
+
+	static class Box implements Region {
+		final double minU, minV, maxU, maxV;
+
+		Box(double south, double west, double north, double east) {
+			minU = u(west);
+			minV = v(Math.min(south, north));
+			maxU = u(east);
+			maxV = v(Math.max(south, north));
+		}
+
+		@Override
+		public double[] bounds() {
+			return new double[] { minU, minV, maxU, maxV };
+		}
+
+		@Override
+		public boolean intersects(double minU, double minV, double maxU, double maxV) {
+			return minU <= this.maxU && maxU >= this.minU && minV <= this.maxV && maxV >= this.minV;
+		}
+
+		@Override
+		public boolean contains(double minU, double minV, double maxU, double maxV) {
+			return minU >= this.minU && maxU <= this.maxU && minV >= this.minV && maxV <= this.maxV;
+		}
+	}
+
+	static class Union implements Region {
+		final Region[] regions;
+
+		Union(Region... regions) {
+			this.regions = regions;
+		}
+
+		@Override
+		public double[] bounds() {
+			double[] b = regions[0].bounds();
+			for (int i = 1; i < regions.length; i++) {
+				double[] r = regions[i].bounds();
+				b[0] = Math.min(b[0], r[0]);
+				b[1] = Math.min(b[1], r[1]);
+				b[2] = Math.max(b[2], r[2]);
+				b[3] = Math.max(b[3], r[3]);
+			}
+			return b;
+		}
+
+		@Override
+		public boolean intersects(double minU, double minV, double maxU, double maxV) {
+			for (Region r : regions)
+				if (r.intersects(minU, minV, maxU, maxV))
+					return true;
+			return false;
+		}
+
+		@Override
+		public boolean contains(double minU, double minV, double maxU, double maxV) {
+			for (Region r : regions)
+				if (r.contains(minU, minV, maxU, maxV))
+					return true;
+			return false;
+		}
+	}
+
+	static class Polygon implements Region {
+		final double[] u;
+		final double[] v;
+
+		Polygon(double[] lat, double[] lon) {
+			if (lat.length != lon.length || lat.length < 3)
+				throw new IllegalArgumentException("a polygon needs at least 3 points");
+			u = new double[lat.length];
+			v = new double[lat.length];
+			for (int i = 0; i < lat.length; i++) {
+				u[i] = u(lon[i]);
+				v[i] = v(lat[i]);
+			}
+		}
+
+		@Override
+		public double[] bounds() {
+			double[] b = { u[0], v[0], u[0], v[0] };
+			for (int i = 1; i < u.length; i++) {
+				b[0] = Math.min(b[0], u[i]);
+				b[1] = Math.min(b[1], v[i]);
+				b[2] = Math.max(b[2], u[i]);
+				b[3] = Math.max(b[3], v[i]);
+			}
+			return b;
+		}
+
+		@Override
+		public boolean intersects(double minU, double minV, double maxU, double maxV) {
+			if (edgeHits(minU, minV, maxU, maxV))
+				return true;
+			// either the rectangle is completely inside, or completely outside
+			return inside((minU + maxU) / 2, (minV + maxV) / 2);
+		}
+
+		@Override
+		public boolean contains(double minU, double minV, double maxU, double maxV) {
+			return !edgeHits(minU, minV, maxU, maxV) && inside((minU + maxU) / 2, (minV + maxV) / 2);
+		}
+
+		private boolean edgeHits(double minU, double minV, double maxU, double maxV) {
+			for (int i = 0, j = u.length - 1; i < u.length; j = i++) {
+				if (segmentHitsRect(u[j], v[j], u[i], v[i], minU, minV, maxU, maxV))
+					return true;
+			}
+			return false;
+		}
+
+		/*
+		 * Even-odd rule point in polygon test
+		 */
+		private boolean inside(double pu, double pv) {
+			boolean in = false;
+			for (int i = 0, j = u.length - 1; i < u.length; j = i++) {
+				if ((v[i] > pv) != (v[j] > pv) && pu < (u[j] - u[i]) * (pv - v[i]) / (v[j] - v[i]) + u[i])
+					in = !in;
+			}
+			return in;
+		}
+	}
+
+	static class Corridor implements Region {
+		final double[] u;
+		final double[] v;
+		/*
+		 * Half width per segment, in normalized coordinates, using the largest and
+		 * smallest Mercator scale factor along the segment
+		 */
+		final double[] maxRadius;
+		final double[] minRadius;
+
+		Corridor(double[] lat, double[] lon, double halfWidth) {
+			if (lat.length != lon.length || lat.length < 1)
+				throw new IllegalArgumentException("a corridor needs at least 1 point");
+			int n = lat.length;
+			u = new double[n];
+			v = new double[n];
+			for (int i = 0; i < n; i++) {
+				u[i] = u(lon[i]);
+				v[i] = v(lat[i]);
+			}
+			int segments = Math.max(1, n - 1);
+			maxRadius = new double[segments];
+			minRadius = new double[segments];
+			double r = halfWidth / Mercator.MERCATOR_SIZE;
+			for (int i = 0; i < segments; i++) {
+				double a = Math.abs(lat[i]);
+				double b = Math.abs(lat[Math.min(i + 1, n - 1)]);
+				double maxLat = Math.max(a, b);
+				double minLat = Math.signum(lat[i]) * Math.signum(lat[Math.min(i + 1, n - 1)]) < 0 ? 0
+						: Math.min(a, b);
+				maxRadius[i] = r / Math.cos(Math.toRadians(maxLat));
+				minRadius[i] = r / Math.cos(Math.toRadians(minLat));
+			}
+		}
+
+		private int end(int segment) {
+			return Math.min(segment + 1, u.length - 1);
+		}
+
+		@Override
+		public double[] bounds() {
+			double[] b = { u[0], v[0], u[0], v[0] };
+			double r = 0;
+			for (int i = 0; i < u.length; i++) {
+				b[0] = Math.min(b[0], u[i]);
+				b[1] = Math.min(b[1], v[i]);
+				b[2] = Math.max(b[2], u[i]);
+				b[3] = Math.max(b[3], v[i]);
+			}
+			for (double m : maxRadius)
+				r = Math.max(r, m);
+			b[0] -= r;
+			b[1] -= r;
+			b[2] += r;
+			b[3] += r;
+			return b;
+		}
+
+		@Override
+		public boolean intersects(double minU, double minV, double maxU, double maxV) {
+			for (int i = 0; i < maxRadius.length; i++) {
+				int j = end(i);
+				if (segmentRectDistance(u[i], v[i], u[j], v[j], minU, minV, maxU, maxV) <= maxRadius[i])
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean contains(double minU, double minV, double maxU, double maxV) {
+			// The corridor around a single segment is convex, so a rectangle is inside
+			// when all corners are close enough to that segment.
+			for (int i = 0; i < minRadius.length; i++) {
+				int j = end(i);
+				double r = minRadius[i];
+				if (segmentPointDistance(u[i], v[i], u[j], v[j], minU, minV) <= r
+						&& segmentPointDistance(u[i], v[i], u[j], v[j], maxU, minV) <= r
+						&& segmentPointDistance(u[i], v[i], u[j], v[j], minU, maxV) <= r
+						&& segmentPointDistance(u[i], v[i], u[j], v[j], maxU, maxV) <= r)
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * Liang-Barsky clipping of segment (u0,v0)-(u1,v1) against a closed rectangle
+	 */
+	static boolean segmentHitsRect(double u0, double v0, double u1, double v1, double minU, double minV,
+			double maxU, double maxV) {
+		double du = u1 - u0;
+		double dv = v1 - v0;
+		double[] p = { -du, du, -dv, dv };
+		double[] q = { u0 - minU, maxU - u0, v0 - minV, maxV - v0 };
+		double t0 = 0;
+		double t1 = 1;
+		for (int i = 0; i < 4; i++) {
+			if (p[i] == 0) {
+				if (q[i] < 0)
+					return false;
+			} else {
+				double t = q[i] / p[i];
+				if (p[i] < 0) {
+					if (t > t1)
+						return false;
+					t0 = Math.max(t0, t);
+				} else {
+					if (t < t0)
+						return false;
+					t1 = Math.min(t1, t);
+				}
+			}
+		}
+		return true;
+	}
+
+	static double segmentPointDistance(double u0, double v0, double u1, double v1, double pu, double pv) {
+		double du = u1 - u0;
+		double dv = v1 - v0;
+		double len = du * du + dv * dv;
+		double t = len == 0 ? 0 : Math.max(0, Math.min(1, ((pu - u0) * du + (pv - v0) * dv) / len));
+		return Math.hypot(u0 + t * du - pu, v0 + t * dv - pv);
+	}
+
+	static double segmentRectDistance(double u0, double v0, double u1, double v1, double minU, double minV,
+			double maxU, double maxV) {
+		if (segmentHitsRect(u0, v0, u1, v1, minU, minV, maxU, maxV))
+			return 0;
+		double d = Math.min(pointRectDistance(u0, v0, minU, minV, maxU, maxV),
+				pointRectDistance(u1, v1, minU, minV, maxU, maxV));
+		d = Math.min(d, segmentPointDistance(u0, v0, u1, v1, minU, minV));
+		d = Math.min(d, segmentPointDistance(u0, v0, u1, v1, maxU, minV));
+		d = Math.min(d, segmentPointDistance(u0, v0, u1, v1, minU, maxV));
+		d = Math.min(d, segmentPointDistance(u0, v0, u1, v1, maxU, maxV));
+		return d;
+	}
+
+	static double pointRectDistance(double pu, double pv, double minU, double minV, double maxU, double maxV) {
+		double du = Math.max(0, Math.max(minU - pu, pu - maxU));
+		double dv = Math.max(0, Math.max(minV - pv, pv - maxV));
+		return Math.hypot(du, dv);
+	}
+}
@@ -1,5 +1,7 @@
 package quadtree;
 
+import java.util.PrimitiveIterator;
+
 /**
  * Simple representation of a tile of a map. A tile has an x and y value, and
  * always relates to a zoom level. The number is equal to the tile numbering
@@ -24,54 +26,32 @@ public class Tile {
 	}
 
 	public Tile(String quadtree, String sep) {
-		String qt = quadtree.replace(sep, "");
-		if (!qt.matches("^[0123]*$"))
+		String qt = sep.length() > 1 ? quadtree.replace(sep, "") : quadtree;
+		long packed;
+		try {
+			packed = QuadTreeParser.parse(qt, sep.length() == 1 ? sep.charAt(0) : QuadTreeParser.NO_SEPERATOR);
+		} catch (InvalidQuadTreeException e) {
 			throw new RuntimeException(quadtree + " not a valid quadtree path");
-		this.zoom = qt.length();
-		int x = 0;
-		int y = 0;
-		for (char c : qt.toCharArray()) {
-			x = x << 1;
-			y = y << 1;
-			switch (c) {
-			case '0':
-				y += 1;
-				break;
-			case '1':
-				x += 1;
-				y += 1;
-				break;
-			case '2':
-				break;
-			case '3':
-				x += 1;
-				break;
-			default:
-				throw new RuntimeException();
-			}
 		}
-		this.x = x;
-		this.y = y;
+		this.zoom = PackedTile.zoom(packed);
+		this.x = PackedTile.x(packed);
+		this.y = PackedTile.y(packed);
 	}
 
 	public LatLon getUpperLeftCorner() {
-		return new ImageMapPoint(this.zoom, x * Mercator.TILE_SIZE, y * Mercator.TILE_SIZE).asMercatorPoint()
-				.asLatLon();
+		return new LatLon(TileEdges.latitude(zoom, y), TileEdges.longitude(zoom, x));
 	}
 
 	public LatLon getLowerLeftCorner() {
-		return new ImageMapPoint(this.zoom, x * Mercator.TILE_SIZE, (y + 1) * Mercator.TILE_SIZE).asMercatorPoint()
-				.asLatLon();
+		return new LatLon(TileEdges.latitude(zoom, y + 1), TileEdges.longitude(zoom, x));
 	}
 
 	public LatLon getUpperRightCorner() {
-		return new ImageMapPoint(this.zoom, (x + 1) * Mercator.TILE_SIZE, y * Mercator.TILE_SIZE).asMercatorPoint()
-				.asLatLon();
+		return new LatLon(TileEdges.latitude(zoom, y), TileEdges.longitude(zoom, x + 1));
 	}
 
 	public LatLon getLowerRightCorner() {
-		return new ImageMapPoint(this.zoom, (x + 1) * Mercator.TILE_SIZE, (y + 1) * Mercator.TILE_SIZE)
-				.asMercatorPoint().asLatLon();
+		return new LatLon(TileEdges.latitude(zoom, y + 1), TileEdges.longitude(zoom, x + 1));
 	}
 
 	public LatLon[] getCorners() {
@@ -79,8 +59,52 @@ public class Tile {
 				getLowerLeftCorner() };
 	}
 
+	/**
+	 * @return the corners with the minimum and maximum latitude and longitude
+	 */
+	public LatLon[] getBounds() {
+		return new LatLon[] { getUpperLeftCorner(), getLowerRightCorner() };
+	}
+
+	/**
+	 * @param bounds
+	 *            array of at least 4 elements, filled with minimum latitude,
+	 *            minimum longitude, maximum latitude and maximum longitude.
+	 * @return bounds
+	 */
+	public double[] getBounds(double[] bounds) {
+		return TileEdges.bounds(zoom, x, y, bounds);
+	}
+
+	/**
+	 * @return the center of the tile on the map, which is the corner of 4 tiles at
+	 *         the next zoom level
+	 */
+	public LatLon getCenter() {
+		return new LatLon(TileEdges.latitude(zoom + 1, 2 * y + 1), TileEdges.longitude(zoom + 1, 2 * x + 1));
+	}
+
+	/**
+	 * Iterate over the tiles within k rows and columns of this tile (the k-ring),
+	 * excluding this tile. For k = 1, these are the 8 neighbours. Columns wrap
+	 * around at the antimeridian, rows outside the map are skipped.
+	 * 
+	 * @param k
+	 * @return iterator over packed tiles (see {@link PackedTile})
+	 */
+	public PrimitiveIterator.OfLong neighbours(int k) {
+		int size = 1 << zoom;
+		int cx = Math.floorMod(x, size);
+		return new TileRangeIterator(zoom, x - k, y - k, x + k, y + k) {
+			@Override
+			boolean accept(int x, int y) {
+				return x != cx || y != Tile.this.y;
+			}
+		};
+	}
+
 	public String getQuadTree(String seperator) {
-		StringBuffer qt = new StringBuffer("");
+		StringBuilder qt = new StringBuilder(zoom * (1 + seperator.length()));
 		int ty = ((1 << zoom) - 1) - y;
 		for (int i = zoom; i > 0; i--) {
 			int digit = 0;
@@ -91,7 +115,7 @@ public class Tile {
 			if ((ty & mask) != 0) {
 				digit += 2;
 			}
-			qt.append(seperator + digit);
+			qt.append(seperator).append(digit);
 		}
 		return qt.toString();
 	}
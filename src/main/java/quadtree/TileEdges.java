@@ -0,0 +1,130 @@
+package quadtree;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lookup tables with the latitude of every row edge and the longitude of every
+ * column edge of the tiles at a zoom level. The latitude of a tile edge only
+ * depends on zoom and row, and the longitude only on zoom and column, so tile
+ * corners, bounds and centers can be determined without trigonometry.
+ * 
+ * The tables are built the first time a zoom level is used, and only up to a
+ * configurable maximum zoom level. Above that level, the edges are calculated.
+ * Both give exactly the same values as the {@link ImageMapPoint} to
+ * {@link MercatorPoint} to {@link LatLon} conversion.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+public final class TileEdges {
+
+	/**
+	 * Default maximum zoom level for which tables are built. The tables for zoom
+	 * 18 take 2 * 2MB.
+	 */
+	public static final int DEFAULT_MAX_TABLE_ZOOM = 18;
+
+	private static volatile int maxTableZoom = DEFAULT_MAX_TABLE_ZOOM;
+
+	private static final AtomicReferenceArray<double[]> LATITUDES = new AtomicReferenceArray<>(
+			PackedTile.MAX_ZOOM + 2);
+	private static final AtomicReferenceArray<double[]> LONGITUDES = new AtomicReferenceArray<>(
+			PackedTile.MAX_ZOOM + 2);
+
+	private TileEdges() {
+	}
+
+	public static int getMaxTableZoom() {
+		return maxTableZoom;
+	}
+
+	/**
+	 * @param zoom
+	 *            the maximum zoom level for which lookup tables are built. Tables
+	 *            that have been built before are kept.
+	 */
+	public static void setMaxTableZoom(int zoom) {
+		if (zoom < 0 || zoom > PackedTile.MAX_ZOOM + 1)
+			throw new IllegalArgumentException("zoom should be in [0, " + (PackedTile.MAX_ZOOM + 1) + "]");
+		maxTableZoom = zoom;
+	}
+
+	/**
+	 * Latitude of the edge between row - 1 and row at a zoom level. Row 0 is the
+	 * southern edge of the map, row 2^zoom the northern edge.
+	 * 
+	 * @param zoom
+	 * @param row
+	 * @return latitude, in degrees
+	 */
+	public static double latitude(int zoom, int row) {
+		if (zoom <= maxTableZoom && row >= 0 && row <= 1 << zoom) {
+			return table(LATITUDES, zoom, true)[row];
+		}
+		return calculateLatitude(zoom, row);
+	}
+
+	/**
+	 * Longitude of the edge between column - 1 and column at a zoom level. Column 0
+	 * is the western edge of the map, column 2^zoom the eastern edge.
+	 * 
+	 * @param zoom
+	 * @param column
+	 * @return longitude, in degrees
+	 */
+	public static double longitude(int zoom, int column) {
+		if (zoom <= maxTableZoom && column >= 0 && column <= 1 << zoom) {
+			return table(LONGITUDES, zoom, false)[column];
+		}
+		return calculateLongitude(zoom, column);
+	}
+
+	/**
+	 * Bounds of a packed tile.
+	 * 
+	 * @param packed
+	 *            the packed tile (see {@link PackedTile})
+	 * @param bounds
+	 *            array of at least 4 elements, filled with minimum latitude,
+	 *            minimum longitude, maximum latitude and maximum longitude.
+	 * @return bounds
+	 */
+	public static double[] bounds(long packed, double[] bounds) {
+		return bounds(PackedTile.zoom(packed), PackedTile.x(packed), PackedTile.y(packed), bounds);
+	}
+
+	static double[] bounds(int zoom, int x, int y, double[] bounds) {
+		bounds[0] = latitude(zoom, y);
+		bounds[1] = longitude(zoom, x);
+		bounds[2] = latitude(zoom, y + 1);
+		bounds[3] = longitude(zoom, x + 1);
+		return bounds;
+	}
+
+	static double calculateLatitude(int zoom, int row) {
+		double res = ImageMapPoint.resolution(zoom);
+		return Mercator.mercatorYToLat(row * (double) Mercator.TILE_SIZE * res + Mercator.Y0);
+	}
+
+	static double calculateLongitude(int zoom, int column) {
+		double res = ImageMapPoint.resolution(zoom);
+		return Mercator.mercatorXToLon(column * (double) Mercator.TILE_SIZE * res + Mercator.X0);
+	}
+
+	/*
+	 * Get or build the table for a zoom level. Two threads may build the same
+	 * table at the same time, but the results are equal, so the first one wins.
+	 */
+	private static double[] table(AtomicReferenceArray<double[]> tables, int zoom, boolean latitude) {
+		double[] table = tables.get(zoom);
+		if (table == null) {
+			table = new double[(1 << zoom) + 1];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = latitude ? calculateLatitude(zoom, i) : calculateLongitude(zoom, i);
+			}
+			if (!tables.compareAndSet(zoom, null, table))
+				table = tables.get(zoom);
+		}
+		return table;
+	}
+}
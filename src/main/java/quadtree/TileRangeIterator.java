@@ -0,0 +1,100 @@
+package quadtree;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Iterator over the packed tiles (see {@link PackedTile}) in a rectangular range
+ * of columns and rows at a zoom level, column by column. Columns wrap around
+ * at the antimeridian, rows are clamped to the map. Every tile is returned at
+ * most once, also when the range is wider than the map. Tiles are generated
+ * while iterating, no list of tiles is created.
+ * 
+ * @copyright (c) Tass International BV
+ *
+ */
+class TileRangeIterator implements PrimitiveIterator.OfLong {
+	final int zoom;
+	final int size;
+	private final int startX;
+	private final int columns;
+	private final int minY;
+	private final int maxY;
+
+	private int column = 0;
+	private int y;
+	private long next;
+	private boolean hasNext;
+	private boolean started = false;
+
+	/**
+	 * @param zoom
+	 * @param minX
+	 *            first column. When minX is larger than maxX, the range crosses
+	 *            the antimeridian.
+	 * @param minY
+	 *            first row
+	 * @param maxX
+	 *            last column (inclusive)
+	 * @param maxY
+	 *            last row (inclusive)
+	 */
+	TileRangeIterator(int zoom, int minX, int minY, int maxX, int maxY) {
+		this.zoom = zoom;
+		this.size = 1 << zoom;
+		long width = (long) maxX - minX + 1;
+		if (width <= 0)
+			width += size;
+		this.columns = (int) Math.max(0, Math.min(size, width));
+		this.startX = Math.floorMod(minX, size);
+		this.minY = Math.max(0, minY);
+		this.maxY = Math.min(size - 1, maxY);
+		this.y = this.minY;
+	}
+
+	/**
+	 * Filter on the tiles in the range. Default accepts all tiles.
+	 */
+	boolean accept(int x, int y) {
+		return true;
+	}
+
+	private void advance() {
+		hasNext = false;
+		while (column < columns && minY <= maxY) {
+			int x = (startX + column) & (size - 1);
+			int ty = y;
+			if (++y > maxY) {
+				y = minY;
+				column++;
+			}
+			if (accept(x, ty)) {
+				next = PackedTile.pack(zoom, x, ty);
+				hasNext = true;
+				return;
+			}
+		}
+	}
+
+	/*
+	 * The first tile is looked up lazily, as accept may depend on state of a
+	 * subclass that is not initialized yet in the constructor.
+	 */
+	@Override
+	public boolean hasNext() {
+		if (!started) {
+			started = true;
+			advance();
+		}
+		return hasNext;
+	}
+
+	@Override
+	public long nextLong() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		long result = next;
+		advance();
+		return result;
+	}
+}
@@ -0,0 +1,35 @@
+package intercor.if2.client;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Threads for the dispatch modes of {@link IF2Consumer} that give every
+ * delivery a thread of its own. This version is for JDK 21 and later, and
+ * starts a virtual thread per task, so handlers that block do not hold an OS
+ * thread.
+ *
+ * @copyright (c) Tass International BV
+ *
+ */
+final class Dispatchers {
+
+	private Dispatchers() {
+	}
+
+	/**
+	 * @return true when tasks run on virtual threads
+	 */
+	static boolean isVirtual() {
+		return true;
+	}
+
+	/**
+	 * @param name
+	 *            prefix of the thread names
+	 * @return an executor that starts every task right away
+	 */
+	static ExecutorService perTask(String name) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + " ", 1).factory());
+	}
+}
@@ -0,0 +1,66 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AckTrackerTest {
+
+	@Test
+	public void testOutOfOrderBatches() throws Exception {
+		List<String> calls = new ArrayList<>();
+		AckTracker acks = new AckTracker(TestChannels.recordingChannel(calls), 3);
+		for (long tag = 1; tag <= 8; tag++)
+			acks.delivered(tag);
+
+		acks.handled(2, true);
+		acks.handled(3, true);
+		assertTrue(calls.isEmpty());
+		acks.handled(1, true);
+		assertEquals(Arrays.asList("ack 3 true"), calls);
+
+		acks.handled(5, false);
+		acks.handled(4, true);
+		acks.handled(6, true);
+		assertEquals(Arrays.asList("ack 3 true", "nack 5", "ack 6 true"), calls);
+
+		// the tail of the burst is acked although the batch is not complete
+		acks.handled(8, true);
+		acks.handled(7, true);
+		assertEquals(Arrays.asList("ack 3 true", "nack 5", "ack 6 true", "ack 8 true"), calls);
+		assertEquals(0, acks.unhandled());
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		List<String> calls = new ArrayList<>();
+		AckTracker acks = new AckTracker(TestChannels.recordingChannel(calls), 1);
+		int before = acks.delivered(1);
+		acks.delivered(2);
+		acks.handled(before, 1, true);
+		assertEquals(Arrays.asList("ack 1 true"), calls);
+
+		// delivery tags continue above the old ones after recovery, deliveries of
+		// before are ignored
+		acks.reset();
+		assertEquals(0, acks.unhandled());
+		int after = acks.delivered(3);
+		acks.delivered(4);
+		acks.handled(before, 2, true);
+		assertEquals(2, acks.unhandled());
+		acks.handled(after, 4, true);
+		assertEquals(Arrays.asList("ack 1 true"), calls);
+		acks.handled(after, 3, true);
+		assertEquals(Arrays.asList("ack 1 true", "ack 4 true"), calls);
+		assertEquals(0, acks.unhandled());
+
+		// and keep working after a second recovery
+		acks.reset();
+		acks.handled(acks.delivered(5), 5, true);
+		assertEquals(Arrays.asList("ack 1 true", "ack 4 true", "ack 5 true"), calls);
+	}
+}
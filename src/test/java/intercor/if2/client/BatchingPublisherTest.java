@@ -0,0 +1,57 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class BatchingPublisherTest {
+
+	@Test
+	public void testFlushPolicy() throws Exception {
+		AtomicLong published = new AtomicLong();
+		IF2Producer producer = new IF2Producer();
+		producer.channel = TestChannels.countingChannel(published);
+		Datum data = new Datum(51.481939, 5.640488, 18, "DENM", "1_2_2", "RWS", "3");
+		try (BatchingPublisher batcher = new BatchingPublisher(producer, 3, 1 << 20, 50)) {
+			CompletableFuture<?> last = null;
+			for (int i = 0; i < 7; i++)
+				last = batcher.submit(data);
+			assertEquals(6, published.get());
+			assertEquals(2, batcher.getStatistics().getFullFlushes());
+			assertFalse(last.isDone());
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (published.get() < 7 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(7, published.get());
+			assertEquals(1, batcher.getStatistics().getLingerFlushes());
+			assertEquals(3, batcher.getStatistics().getBatches());
+			assertEquals(3, batcher.getStatistics().getMaxBatchSize());
+		}
+		// properties are built once per datum
+		assertSame(producer.properties(data), producer.properties(data));
+	}
+
+	@Test
+	public void testSubmitAfterClose() throws Exception {
+		AtomicLong published = new AtomicLong();
+		IF2Producer producer = new IF2Producer();
+		producer.channel = TestChannels.countingChannel(published);
+		Datum data = new Datum(51.481939, 5.640488, 18, "DENM", "1_2_2", "RWS", "3");
+		BatchingPublisher batcher = new BatchingPublisher(producer, 3, 1 << 20, 50);
+		batcher.close();
+		CompletableFuture<Void> future = batcher.submit(data);
+		try {
+			future.get();
+			fail("message submitted after close");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals(0, published.get());
+	}
+}
@@ -0,0 +1,72 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class BindingSetTest {
+
+	@Test
+	public void testDominated() {
+		BindingSet set = new BindingSet(false);
+		BindingSet.Change change = set.add("*.*.*.*.1.2.0.2.0.3.#");
+		assertEquals(Arrays.asList("*.*.*.*.1.2.0.2.0.3.#"), change.getAdded());
+		change = set.add("*.*.*.*.1.2.0.2.#");
+		assertEquals(Arrays.asList("*.*.*.*.1.2.0.2.#"), change.getAdded());
+		assertEquals(Arrays.asList("*.*.*.*.1.2.0.2.0.3.#"), change.getRemoved());
+		// covered by the coarser filter, nothing to bind
+		assertTrue(set.add("DENM.1_2_2.RWS.3.1.2.0.2.1.#").isEmpty());
+		assertTrue(set.add("DENM.1_2_2.RWS.3.1.2.0.2.1").isEmpty());
+		// different quadtree path
+		assertEquals(Arrays.asList("DENM.1_2_2.RWS.3.1.3.#"), set.add("DENM.1_2_2.RWS.3.1.3.#").getAdded());
+		// a more specific lead does not cover a wildcard
+		BindingSet other = new BindingSet(false);
+		other.add("DENM.*.*.*.1.#");
+		assertEquals(Arrays.asList("*.*.*.*.1.2.#"), other.add("*.*.*.*.1.2.#").getAdded());
+
+		change = set.remove("*.*.*.*.1.2.0.2.#");
+		assertEquals(new HashSet<>(Arrays.asList("*.*.*.*.1.2.0.2.0.3.#", "DENM.1_2_2.RWS.3.1.2.0.2.1.#")),
+				new HashSet<>(change.getAdded()));
+		assertEquals(Arrays.asList("*.*.*.*.1.2.0.2.#"), change.getRemoved());
+		assertEquals(3, set.getBindings().size());
+		assertEquals(4, set.getFilters().size());
+	}
+
+	@Test
+	public void testMergeSiblings() {
+		BindingSet set = new BindingSet(true);
+		for (int d = 0; d < 3; d++)
+			set.add("*.*.*.*.1.2." + d + ".#");
+		assertEquals(3, set.getBindings().size());
+		BindingSet.Change change = set.add("*.*.*.*.1.2.3.#");
+		assertEquals(Arrays.asList("*.*.*.*.1.2.#"), change.getAdded());
+		assertEquals(3, change.getRemoved().size());
+		assertEquals(Collections.singleton("*.*.*.*.1.2.#"), set.getBindings());
+		// merges cascade upwards
+		for (int d = 0; d < 4; d++)
+			for (int e = 0; e < 4; e++)
+				set.add("*.*.*.*.1." + d + "." + e + ".#");
+		assertEquals(Collections.singleton("*.*.*.*.1.#"), set.getBindings());
+
+		BindingSet unmerged = new BindingSet(false);
+		for (int d = 0; d < 4; d++)
+			unmerged.add("*.*.*.*.1.2." + d + ".#");
+		assertEquals(4, unmerged.getBindings().size());
+	}
+
+	@Test
+	public void testOpaque() {
+		BindingSet set = new BindingSet(true);
+		set.add("*.1_2_2.*.*.#");
+		set.add("DENM.#");
+		assertEquals(2, set.getBindings().size());
+		BindingSet.Change change = set.add("#");
+		assertEquals(Arrays.asList("#"), change.getAdded());
+		assertEquals(2, change.getRemoved().size());
+		assertTrue(set.add("CAM.*.*.*.0.#").isEmpty());
+	}
+}
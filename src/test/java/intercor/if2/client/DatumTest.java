@@ -0,0 +1,27 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import quadtree.QuadTreeConverter;
+
+public class DatumTest {
+
+	@Test
+	public void testRoutingKey() {
+		Datum d = new Datum(51.481939, 5.640488, 18, "DENM", "1_2_2", "RWS", "3");
+		String expect = "DENM.1_2_2.RWS.3" + QuadTreeConverter.getQuadTree(18, 51.481939, 5.640488, ".");
+		assertEquals(expect, d.getRoutingKey());
+		assertSame(d.getRoutingKey(), d.getRoutingKey());
+
+		// another datum from the same tile gets the cached key
+		Datum same = new Datum(51.481939, 5.640488, 18, "DENM", "1_2_2", "RWS", "3");
+		assertSame(d.getRoutingKey(), same.getRoutingKey());
+
+		Datum other = new Datum(51.481939, 5.640488, 18, "DENM", "1_2_2", "NL_NB", "3");
+		assertEquals("DENM.1_2_2.NL_NB.3" + QuadTreeConverter.getQuadTree(18, 51.481939, 5.640488, "."),
+				other.getRoutingKey());
+		assertEquals("DENM.1_2_2.RWS.3", new Datum(0, 0, 0, "DENM", "1_2_2", "RWS", "3").getRoutingKey());
+	}
+}
@@ -0,0 +1,64 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testBuckets() {
+		for (long v = 0; v < 100000; v++) {
+			int bucket = Histogram.bucket(v);
+			long lower = Histogram.lowerBound(bucket);
+			assertTrue(lower <= v);
+			// buckets of at most 1/64 of their values
+			assertTrue(v - lower <= v / 64);
+			assertTrue(Histogram.lowerBound(bucket + 1) > v);
+			// the middle of the bucket is within 1% of every value in it
+			long mid = Histogram.midpoint(bucket);
+			assertTrue(Math.abs(mid - v) <= v / 100);
+			assertTrue(mid >= lower && mid < Histogram.lowerBound(bucket + 1));
+		}
+		assertEquals(127L << 56, Histogram.lowerBound(Histogram.bucket(Long.MAX_VALUE)));
+		assertEquals((127L << 56) + (1L << 55), Histogram.midpoint(Histogram.bucket(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.percentile(50));
+		long[] values = new long[10000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 1000 + i;
+			histogram.record(values[i]);
+		}
+		assertEquals(values.length, histogram.count());
+		assertEquals(10999, histogram.max());
+		// the 5000th and 9900th value, within 1%
+		assertEquals(5999, histogram.percentile(50), 60);
+		assertEquals(10899, histogram.percentile(99), 109);
+		assertEquals(10999, histogram.percentile(100), 110);
+		assertTrue(histogram.percentile(100) <= 10999);
+		histogram.reset();
+		assertEquals(0, histogram.count());
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		Histogram histogram = new Histogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 100000; i++)
+					histogram.record(ThreadLocalRandom.current().nextLong(1_000_000));
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(400000, histogram.count());
+	}
+}
@@ -0,0 +1,259 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Channel;
+
+public class IF2ConsumerTest {
+
+	private LocalBroker broker;
+	private IF2Consumer consumer;
+	private IF2Producer producer;
+
+	@Before
+	public void setUp() {
+		broker = LocalBroker.get(getClass().getSimpleName() + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() {
+		if (producer != null)
+			producer.disconnect();
+		if (consumer != null)
+			consumer.disconnect();
+		broker.close();
+	}
+
+	private void connect(String dispatch, int prefetch, int concurrency) throws Exception {
+		Map<String, Object> props = new HashMap<>();
+		props.put(IF2Client.LOCAL_BROKER, broker.getName());
+		props.put(IF2Client.EXCHANGE, "DENM");
+		props.put(IF2Client.VERBOSE, false);
+		props.put(IF2Client.JMX, false);
+		props.put(IF2Consumer.DISPATCH, dispatch);
+		props.put(IF2Consumer.PREFETCH, prefetch);
+		props.put(IF2Consumer.MAX_CONCURRENCY, concurrency);
+		consumer = new IF2Consumer(new HashMap<>(props));
+		producer = new IF2Producer(new HashMap<>(props));
+		consumer.connect();
+		producer.connect();
+	}
+
+	private void publish(int n, int keys) throws Exception {
+		for (int i = 0; i < n; i++)
+			producer.publishAsync(new Datum(51.44, 5.46, 10, "DENM", "1_2_2", "P" + (i % keys), "3")).get(1,
+					TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testVirtualHandlesBlockingHandlersConcurrently() throws Exception {
+		// the prefetch limit only lets all messages through when they are acked
+		connect(IF2Consumer.VIRTUAL, 5, 100);
+		int n = 40;
+		CountDownLatch started = new CountDownLatch(5);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch handled = new CountDownLatch(n);
+		consumer.subscribe("#", message -> {
+			started.countDown();
+			release.await();
+			handled.countDown();
+		});
+		publish(n, n);
+		// five handlers block at the same time
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		release.countDown();
+		assertTrue(handled.await(2, TimeUnit.SECONDS));
+		assertEquals(n, consumer.getMetrics().getConsumedMessages());
+	}
+
+	@Test
+	public void testMaxConcurrency() throws Exception {
+		connect(IF2Consumer.VIRTUAL, 0, 3);
+		int n = 30;
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger max = new AtomicInteger();
+		CountDownLatch handled = new CountDownLatch(n);
+		consumer.subscribe("#", message -> {
+			max.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(5);
+			running.decrementAndGet();
+			handled.countDown();
+		});
+		publish(n, n);
+		assertTrue(handled.await(2, TimeUnit.SECONDS));
+		assertTrue(max.get() <= 3);
+	}
+
+	@Test
+	public void testVirtualKeyKeepsOrderPerKey() throws Exception {
+		connect(IF2Consumer.VIRTUAL_KEY, 0, 100);
+		int n = 60;
+		Map<String, Integer> last = new ConcurrentHashMap<>();
+		AtomicInteger outOfOrder = new AtomicInteger();
+		AtomicInteger concurrent = new AtomicInteger();
+		Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+		CountDownLatch handled = new CountDownLatch(n);
+		consumer.subscribe("#", message -> {
+			String key = message.getEnvelope().getRoutingKey();
+			int seq = (int) message.getEnvelope().getDeliveryTag();
+			if (running.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet() > 1)
+				concurrent.incrementAndGet();
+			Integer previous = last.put(key, seq);
+			if (previous != null && previous > seq)
+				outOfOrder.incrementAndGet();
+			Thread.sleep(1);
+			running.get(key).decrementAndGet();
+			handled.countDown();
+		});
+		publish(n, 3);
+		assertTrue(handled.await(2, TimeUnit.SECONDS));
+		assertEquals(3, last.size());
+		assertEquals(0, outOfOrder.get());
+		assertEquals(0, concurrent.get());
+	}
+
+	@Test
+	public void testHandlerThrowingError() throws Exception {
+		// with a prefetch of one, a delivery that is never acknowledged stops the rest
+		connect(IF2Consumer.VIRTUAL, 1, 100);
+		int n = 5;
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch handled = new CountDownLatch(n - 1);
+		consumer.subscribe("#", message -> {
+			if (calls.incrementAndGet() == 1)
+				throw new AssertionError("test");
+			handled.countDown();
+		});
+		Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((t, e) -> {
+		});
+		try {
+			publish(n, n);
+			assertTrue(handled.await(2, TimeUnit.SECONDS));
+			assertEquals(1, consumer.getMetrics().getHandlerFailures());
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+	}
+
+	@Test
+	public void testDisconnectWhileHandling() throws Exception {
+		connect(IF2Consumer.VIRTUAL, 0, 100);
+		int n = 5;
+		CountDownLatch started = new CountDownLatch(n);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(n);
+		consumer.subscribe("#", message -> {
+			started.countDown();
+			try {
+				release.await();
+			} finally {
+				finished.countDown();
+			}
+		});
+		publish(n, n);
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+		Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((t, e) -> uncaught.add(e));
+		try {
+			consumer.disconnect();
+			// the handlers finish after the channel is closed, their acks are dropped
+			release.countDown();
+			assertTrue(finished.await(1, TimeUnit.SECONDS));
+			Thread.sleep(50);
+			assertEquals(Collections.emptyList(), uncaught);
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+	}
+
+	@Test
+	public void testFailedBindingIsUndone() throws Exception {
+		connect(IF2Consumer.POOL, 0, 1);
+		IF2MessageHandler handler = message -> {
+		};
+		consumer.subscribe("DENM.#", handler);
+		// the channel of the consumer fails to change bindings when asked to
+		Channel channel = consumer.channel;
+		AtomicBoolean failing = new AtomicBoolean(true);
+		consumer.channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+				new Class<?>[] { Channel.class }, (proxy, method, args) -> {
+					if (failing.get() && method.getName().startsWith("queue"))
+						throw new IOException("test");
+					try {
+						return method.invoke(channel, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		try {
+			consumer.subscribe("SPAT.#", handler);
+			fail("binding did not fail");
+		} catch (IOException e) {
+		}
+		failing.set(false);
+		consumer.subscribe("SPAT.#", handler);
+		assertEquals(2, broker.bindings());
+
+		failing.set(true);
+		try {
+			consumer.unsubscribe("SPAT.#");
+			fail("unbinding did not fail");
+		} catch (IOException e) {
+		}
+		failing.set(false);
+		consumer.unsubscribe("SPAT.#");
+		assertEquals(1, broker.bindings());
+	}
+
+	@Test
+	public void testHandlerMatchingTwice() throws Exception {
+		connect(IF2Consumer.POOL, 0, 1);
+		AtomicInteger first = new AtomicInteger();
+		CountDownLatch handled = new CountDownLatch(2);
+		IF2MessageHandler twice = message -> {
+			first.incrementAndGet();
+			handled.countDown();
+		};
+		consumer.subscribe("DENM.#", twice);
+		consumer.subscribe("#", twice);
+		consumer.subscribe("#", message -> handled.countDown());
+		publish(1, 1);
+		assertTrue(handled.await(1, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		// every handler is called once per message
+		assertEquals(1, first.get());
+	}
+
+	@Test
+	public void testUnknownDispatch() throws Exception {
+		connect("FAST", 0, 1);
+		try {
+			consumer.subscribe("#", message -> {
+			});
+			fail("unknown dispatch mode accepted");
+		} catch (IllegalArgumentException e) {
+			// no queue is left behind
+			assertEquals(0, broker.queues());
+		}
+	}
+}
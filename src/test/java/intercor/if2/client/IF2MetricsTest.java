@@ -0,0 +1,68 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class IF2MetricsTest {
+
+	@Test
+	public void testCounts() {
+		IF2Metrics metrics = new IF2Metrics();
+		metrics.published("DENM", "DENM.1_2_2.RWS.3.1.2", 100);
+		metrics.published("DENM", "DENM.1_2_2.TASS.3", 50);
+		metrics.published("CAM", "CAM.1.RWS.3", 10);
+		metrics.confirmed(2_000_000);
+		metrics.handled(5_000, false);
+		assertEquals(3, metrics.getPublishedMessages());
+		assertEquals(160, metrics.getPublishedBytes());
+		assertEquals(1, metrics.getConfirmed());
+		assertEquals(2000, metrics.getConfirmLatencyMax());
+		assertEquals(1, metrics.getHandlerFailures());
+		Map<String, Long> providers = metrics.getPublishedPerProvider();
+		assertEquals(Long.valueOf(2), providers.get("RWS"));
+		assertEquals(Long.valueOf(1), providers.get("TASS"));
+		assertEquals(Long.valueOf(2), metrics.getPublishedPerExchange().get("DENM"));
+		assertEquals("", IF2Metrics.provider("DENM.1"));
+	}
+
+	@Test
+	public void testManyProviders() {
+		IF2Metrics metrics = new IF2Metrics();
+		for (int i = 0; i < 100; i++) {
+			for (int p = 0; p <= i % 40; p++)
+				metrics.consumed("DENM", "DENM.1_2_2.P" + p + ".3.1.2", 1);
+		}
+		metrics.consumed("DENM", "DENM.1_2_2", 1);
+		metrics.consumed("DENM", "DENM.1_2_2.", 1);
+		metrics.consumed("DENM", "DENM.1_2_2.P1", 1);
+		Map<String, Long> providers = metrics.getConsumedPerProvider();
+		assertEquals(41, providers.size());
+		assertEquals(Long.valueOf(100), providers.get("P0"));
+		assertEquals(Long.valueOf(98), providers.get("P1"));
+		assertEquals(Long.valueOf(2), providers.get("P39"));
+		assertEquals(Long.valueOf(2), providers.get(""));
+		assertTrue(metrics.getPublishedPerProvider().isEmpty());
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		IF2Metrics metrics = new IF2Metrics();
+		metrics.gauges(() -> 7, () -> 0, () -> 0, () -> 0);
+		metrics.register("IF2Producer");
+		ObjectName name = metrics.getName();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertTrue(server.isRegistered(name));
+		assertEquals(7L, server.getAttribute(name, "InFlight"));
+		assertNotNull(server.getAttribute(name, "PublishedPerProvider"));
+		metrics.unregister();
+		assertFalse(server.isRegistered(name));
+		assertNull(metrics.getName());
+	}
+}
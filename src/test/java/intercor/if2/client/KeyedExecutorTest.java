@@ -0,0 +1,121 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class KeyedExecutorTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testOrderPerKey() throws Exception {
+		KeyedExecutor keyed = new KeyedExecutor(executor);
+		List<Integer> a = Collections.synchronizedList(new ArrayList<>());
+		List<Integer> b = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(2000);
+		for (int i = 0; i < 1000; i++) {
+			int n = i;
+			keyed.execute("a", () -> {
+				a.add(n);
+				done.countDown();
+			});
+			keyed.execute("b", () -> {
+				b.add(n);
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, (int) a.get(i));
+			assertEquals(i, (int) b.get(i));
+		}
+		// the last task may still be removing its partition
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (keyed.partitions() > 0 && System.nanoTime() < deadline)
+			Thread.sleep(1);
+		assertEquals(0, keyed.partitions());
+	}
+
+	@Test
+	public void testKeysRunConcurrently() throws Exception {
+		KeyedExecutor keyed = new KeyedExecutor(executor);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch other = new CountDownLatch(1);
+		CountDownLatch same = new CountDownLatch(1);
+		keyed.execute("a", () -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		keyed.execute("a", same::countDown);
+		keyed.execute("b", other::countDown);
+		assertTrue(other.await(1, TimeUnit.SECONDS));
+		assertFalse(same.await(50, TimeUnit.MILLISECONDS));
+		blocked.countDown();
+		assertTrue(same.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testFailingTask() throws Exception {
+		KeyedExecutor keyed = new KeyedExecutor(executor);
+		CountDownLatch next = new CountDownLatch(1);
+		Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((t, e) -> {
+		});
+		try {
+			keyed.execute("a", () -> {
+				throw new IllegalStateException("test");
+			});
+			keyed.execute("a", next::countDown);
+			assertTrue(next.await(1, TimeUnit.SECONDS));
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+	}
+
+	@Test
+	public void testTaskThrowingError() throws Exception {
+		KeyedExecutor keyed = new KeyedExecutor(executor);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch next = new CountDownLatch(1);
+		Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((t, e) -> {
+		});
+		try {
+			keyed.execute("a", () -> {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new AssertionError("test");
+			});
+			keyed.execute("a", next::countDown);
+			blocked.countDown();
+			assertTrue(next.await(1, TimeUnit.SECONDS));
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+			while (keyed.partitions() > 0 && System.nanoTime() < deadline)
+				Thread.sleep(1);
+			assertEquals(0, keyed.partitions());
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+	}
+}
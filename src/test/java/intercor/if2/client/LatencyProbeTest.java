@@ -0,0 +1,99 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.impl.LongStringHelper;
+
+public class LatencyProbeTest {
+
+	private static IF2Message message(String key, BasicProperties properties) {
+		return new IF2Message(new Envelope(1, false, "DENM", key), properties, new byte[0]);
+	}
+
+	/*
+	 * The properties as delivered by a broker, with strings in the headers as
+	 * LongString
+	 */
+	private static BasicProperties delivered(BasicProperties properties) {
+		Map<String, Object> headers = new HashMap<>(properties.getHeaders());
+		headers.put(LatencyProbe.SOURCE, LongStringHelper.asLongString(headers.get(LatencyProbe.SOURCE).toString()));
+		return properties.builder().headers(headers).build();
+	}
+
+	@Test
+	public void testStamp() {
+		Map<String, Object> headers = new HashMap<>();
+		headers.put("lat", 51.4);
+		BasicProperties original = new BasicProperties.Builder().headers(headers).expiration("10000").build();
+		BasicProperties stamped = LatencyProbe.stamp(original, "test", 7);
+		assertEquals(51.4, stamped.getHeaders().get("lat"));
+		assertEquals(7L, stamped.getHeaders().get(LatencyProbe.SEQUENCE));
+		assertEquals("10000", stamped.getExpiration());
+		// the original properties are shared between publications, and not changed
+		assertFalse(original.getHeaders().containsKey(LatencyProbe.TIMESTAMP));
+
+		LatencyProbe probe = new LatencyProbe(4);
+		long sent = (Long) stamped.getHeaders().get(LatencyProbe.TIMESTAMP);
+		assertTrue(probe.record(message("DENM.1_2_2.RWS.3.1.2.0.2.0", stamped), sent + 5_000_000));
+		assertFalse(probe.record(message("DENM.1_2_2.RWS.3.1.2.0.2.0", original), sent));
+		assertEquals(1, probe.count());
+		assertEquals(5_000_000, probe.max());
+		assertEquals(5_000_000, probe.percentiles(50).get("DENM:1202"), 5_000_000 / 8);
+	}
+
+	@Test
+	public void testSequenceGaps() {
+		LatencyProbe probe = new LatencyProbe(2);
+		BasicProperties base = new BasicProperties.Builder().build();
+		String a = "DENM.1_2_2.RWS.3.1.2";
+		String b = "DENM.1_2_2.RWS.3.1.3";
+		// the first message seen starts the sequence
+		for (long seq : new long[] { 5, 6, 8, 9 })
+			probe.record(message(a, LatencyProbe.stamp(base, "p1", seq)), LatencyProbe.now());
+		for (long seq : new long[] { 1, 2, 3 })
+			probe.record(message(b, LatencyProbe.stamp(base, "p1", seq)), LatencyProbe.now());
+		// same key, other producer
+		probe.record(message(a, LatencyProbe.stamp(base, "p2", 1)), LatencyProbe.now());
+		assertEquals(1, probe.lost());
+		assertEquals(0, probe.late());
+		// the missing message arrives late
+		probe.record(message(a, LatencyProbe.stamp(base, "p1", 7)), LatencyProbe.now());
+		assertEquals(0, probe.lost());
+		assertEquals(1, probe.late());
+	}
+
+	@Test
+	public void testBrokerHeaders() {
+		// a broker delivers the source as a new LongString with every message
+		LatencyProbe probe = new LatencyProbe(2);
+		BasicProperties base = new BasicProperties.Builder().build();
+		String key = "DENM.1_2_2.RWS.3.1.2";
+		for (long seq : new long[] { 1, 2, 4 })
+			probe.record(message(key, delivered(LatencyProbe.stamp(base, "p1", seq))), LatencyProbe.now());
+		assertEquals(1, probe.lost());
+		assertEquals(1, probe.percentiles(50).size());
+
+		// areas without latencies since the reset are left out
+		probe.reset();
+		assertEquals(0, probe.count());
+		assertTrue(probe.percentiles(50).isEmpty());
+		probe.record(message(key, delivered(LatencyProbe.stamp(base, "p1", 5))), LatencyProbe.now());
+		assertEquals(1, probe.count());
+		assertEquals(1, probe.lost());
+		assertEquals(1, probe.percentiles(50).size());
+	}
+
+	@Test
+	public void testArea() {
+		assertEquals("DENM:120", LatencyProbe.area("DENM", "DENM.1_2_2.RWS.3.1.2.0.2.0", 3));
+		assertEquals("DENM:12", LatencyProbe.area("DENM", "DENM.1_2_2.RWS.3.1.2", 3));
+		assertEquals("DENM:", LatencyProbe.area("DENM", "DENM.1_2_2.RWS.3", 3));
+	}
+}
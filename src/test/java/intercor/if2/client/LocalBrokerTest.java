@@ -0,0 +1,302 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+public class LocalBrokerTest {
+
+	private static final BasicProperties EMPTY = new BasicProperties();
+
+	private LocalBroker broker;
+	private Connection connection;
+	private Channel channel;
+
+	@Before
+	public void setUp() throws IOException {
+		broker = LocalBroker.get(getClass().getSimpleName() + System.nanoTime());
+		connection = broker.newConnection();
+		channel = connection.createChannel();
+	}
+
+	@After
+	public void tearDown() {
+		broker.close();
+	}
+
+	/*
+	 * Consume a queue, putting the routing key of every delivery in the result.
+	 */
+	private String consume(Channel channel, String queue, boolean autoAck, BlockingQueue<Envelope> result)
+			throws IOException {
+		return channel.basicConsume(queue, autoAck, new DefaultConsumer(channel) {
+			@Override
+			public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties,
+					byte[] body) {
+				result.add(envelope);
+			}
+		});
+	}
+
+	private String declare(Map<String, Object> args) throws IOException {
+		return channel.queueDeclare("", false, true, true, args).getQueue();
+	}
+
+	@Test
+	public void testTopicRouting() throws Exception {
+		String star = declare(null);
+		String hash = declare(null);
+		channel.queueBind(star, "DENM", "DENM.*.RWS.#");
+		channel.queueBind(hash, "DENM", "#.1.2");
+		// a second matching binding still delivers once
+		channel.queueBind(hash, "DENM", "DENM.#");
+		BlockingQueue<Envelope> a = new LinkedBlockingQueue<>();
+		BlockingQueue<Envelope> b = new LinkedBlockingQueue<>();
+		consume(channel, star, true, a);
+		consume(channel, hash, true, b);
+		channel.basicPublish("DENM", "DENM.1_2_2.RWS.3.1.2", EMPTY, new byte[0]);
+		channel.basicPublish("DENM", "DENM.1_2_2.TASS.3.0.1.2", EMPTY, new byte[0]);
+		channel.basicPublish("SPAT", "DENM.1_2_2.RWS.3.1.2", EMPTY, new byte[0]);
+		assertEquals("DENM.1_2_2.RWS.3.1.2", a.poll(1, TimeUnit.SECONDS).getRoutingKey());
+		assertEquals("DENM.1_2_2.RWS.3.1.2", b.poll(1, TimeUnit.SECONDS).getRoutingKey());
+		assertEquals("DENM.1_2_2.TASS.3.0.1.2", b.poll(1, TimeUnit.SECONDS).getRoutingKey());
+		assertNull(a.poll(50, TimeUnit.MILLISECONDS));
+		assertNull(b.poll(0, TimeUnit.MILLISECONDS));
+		assertEquals(3, broker.published());
+		assertEquals(1, broker.unroutable());
+
+		channel.queueUnbind(hash, "DENM", "DENM.#");
+		assertEquals(2, broker.bindings());
+	}
+
+	@Test
+	public void testMaxLength() throws Exception {
+		Map<String, Object> args = new HashMap<>();
+		args.put("x-max-length", 2);
+		String queue = declare(args);
+		channel.queueBind(queue, "DENM", "#");
+		for (int i = 0; i < 3; i++)
+			channel.basicPublish("DENM", "key." + i, EMPTY, new byte[0]);
+		assertEquals(2, broker.queueSize(queue));
+		assertEquals(1, broker.dropped());
+		BlockingQueue<Envelope> received = new LinkedBlockingQueue<>();
+		consume(channel, queue, true, received);
+		assertEquals("key.1", received.poll(1, TimeUnit.SECONDS).getRoutingKey());
+		assertEquals("key.2", received.poll(1, TimeUnit.SECONDS).getRoutingKey());
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		Map<String, Object> args = new HashMap<>();
+		args.put("x-message-ttl", 20);
+		String queue = declare(args);
+		channel.queueBind(queue, "DENM", "#");
+		channel.basicPublish("DENM", "old", EMPTY, new byte[0]);
+		Thread.sleep(50);
+		channel.basicPublish("DENM", "new", EMPTY, new byte[0]);
+		assertEquals(1, broker.queueSize(queue));
+		assertEquals(1, broker.expired());
+
+		// the expiration property of a message is used when the queue has no ttl
+		String other = declare(null);
+		channel.queueBind(other, "SPAT", "#");
+		channel.basicPublish("SPAT", "short", new BasicProperties.Builder().expiration("0").build(), new byte[0]);
+		assertEquals(0, broker.queueSize(other));
+		assertEquals(2, broker.expired());
+	}
+
+	@Test
+	public void testPrefetchAndRequeue() throws Exception {
+		String queue = channel.queueDeclare("work", false, false, false, null).getQueue();
+		channel.queueBind(queue, "DENM", "#");
+		Channel first = connection.createChannel();
+		first.basicQos(1);
+		BlockingQueue<Envelope> received = new LinkedBlockingQueue<>();
+		consume(first, queue, false, received);
+		channel.basicPublish("DENM", "a", EMPTY, new byte[0]);
+		channel.basicPublish("DENM", "b", EMPTY, new byte[0]);
+		Envelope a = received.poll(1, TimeUnit.SECONDS);
+		assertEquals("a", a.getRoutingKey());
+		// b waits for the ack of a
+		assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+		first.basicAck(a.getDeliveryTag(), false);
+		Envelope b = received.poll(1, TimeUnit.SECONDS);
+		assertEquals("b", b.getRoutingKey());
+		assertFalse(b.isRedeliver());
+
+		// b is not acknowledged, and is delivered again to the next consumer
+		first.close();
+		assertFalse(first.isOpen());
+		BlockingQueue<Envelope> again = new LinkedBlockingQueue<>();
+		consume(channel, queue, true, again);
+		Envelope redelivered = again.poll(1, TimeUnit.SECONDS);
+		assertEquals("b", redelivered.getRoutingKey());
+		assertTrue(redelivered.isRedeliver());
+	}
+
+	@Test(timeout = 10000)
+	public void testPublishOnTwoChannels() throws Exception {
+		// every channel publishes to the queue consumed by the other one
+		Channel a = connection.createChannel();
+		Channel b = connection.createChannel();
+		String toA = declare(null);
+		String toB = declare(null);
+		channel.queueBind(toA, "A", "#");
+		channel.queueBind(toB, "B", "#");
+		BlockingQueue<Envelope> received = new LinkedBlockingQueue<>();
+		consume(a, toA, true, received);
+		consume(b, toB, true, received);
+		int n = 20000;
+		Thread other = new Thread(() -> {
+			try {
+				for (int i = 0; i < n; i++)
+					b.basicPublish("A", "key", EMPTY, new byte[0]);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+		});
+		// a deadlock fails the test, instead of keeping the build from ending
+		other.setDaemon(true);
+		other.start();
+		for (int i = 0; i < n; i++)
+			a.basicPublish("B", "key", EMPTY, new byte[0]);
+		other.join();
+		for (int i = 0; i < 2 * n; i++)
+			assertNotNull(received.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testUnknownTagClosesChannel() throws Exception {
+		try {
+			channel.basicAck(42, false);
+			fail("unknown delivery tag accepted");
+		} catch (IOException e) {
+			assertFalse(channel.isOpen());
+		}
+	}
+
+	@Test
+	public void testExclusiveQueueDeletedWithConnection() throws Exception {
+		String queue = declare(null);
+		channel.queueBind(queue, "DENM", "#");
+		connection.close();
+		assertEquals(-1, broker.queueSize(queue));
+		assertEquals(0, broker.bindings());
+	}
+
+	@Test
+	public void testPoolConnections() throws Exception {
+		Map<String, Object> props = new HashMap<>();
+		props.put(IF2Client.LOCAL_BROKER, broker.getName());
+		props.put(IF2Client.VERBOSE, false);
+		props.put(IF2Client.JMX, false);
+		props.put(IF2Producer.CONNECTIONS, 2);
+		props.put(IF2Producer.CHANNELS, 4);
+		IF2Producer producer = new IF2Producer(props);
+		try {
+			producer.connect();
+			// the connection of this test, and both of the producer
+			assertEquals(3, broker.connections());
+			for (int i = 0; i < 20; i++)
+				producer.publishAsync(new Datum(51 + i * 0.1, 5, 18, "DENM", "1_2_2", "RWS", "3")).get(1,
+						TimeUnit.SECONDS);
+			assertEquals(20, broker.published());
+		} finally {
+			producer.disconnect();
+		}
+		assertEquals(1, broker.connections());
+	}
+
+	@Test
+	public void testDeadPoolConnection() throws Exception {
+		Map<String, Object> props = new HashMap<>();
+		props.put(IF2Client.LOCAL_BROKER, broker.getName());
+		props.put(IF2Client.VERBOSE, false);
+		props.put(IF2Client.JMX, false);
+		props.put(IF2Producer.CONNECTIONS, 2);
+		props.put(IF2Producer.CHANNELS, 2);
+		List<Connection> extra = new ArrayList<>();
+		IF2Producer producer = new IF2Producer(props) {
+			@Override
+			protected Connection newConnection() throws Exception {
+				Connection connection = super.newConnection();
+				extra.add(connection);
+				return connection;
+			}
+		};
+		try {
+			producer.connect();
+			// the channel on the extra connection is down, the one on the primary is not
+			extra.get(0).abort();
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < 20; i++)
+				futures.add(producer.publishAsync(new Datum(51 + i * 0.1, 5, 18, "DENM", "1_2_2", "RWS", "3")));
+			int confirmed = 0;
+			boolean buffered = false;
+			boolean confirmedAfterBuffered = false;
+			for (CompletableFuture<Void> future : futures) {
+				try {
+					future.get(100, TimeUnit.MILLISECONDS);
+					confirmed++;
+					confirmedAfterBuffered |= buffered;
+				} catch (TimeoutException e) {
+					buffered = true;
+				}
+			}
+			assertTrue(confirmedAfterBuffered);
+			assertEquals(20 - confirmed, producer.getBuffered());
+			assertEquals(confirmed, broker.published());
+		} finally {
+			producer.disconnect();
+		}
+	}
+
+	@Test
+	public void testProducerAndConsumer() throws Exception {
+		Map<String, Object> props = new HashMap<>();
+		props.put(IF2Client.LOCAL_BROKER, broker.getName());
+		props.put(IF2Client.EXCHANGE, "DENM");
+		props.put(IF2Client.VERBOSE, false);
+		props.put(IF2Client.JMX, false);
+		props.put(IF2Client.PROBE, true);
+		IF2Consumer consumer = new IF2Consumer(new HashMap<>(props));
+		IF2Producer producer = new IF2Producer(new HashMap<>(props));
+		try {
+			consumer.connect();
+			producer.connect();
+			Datum rws = new Datum(51.4416, 5.4697, 10, "DENM", "1_2_2", "RWS", "3");
+			Datum tass = new Datum(51.4416, 5.4697, 10, "DENM", "1_2_2", "TASS", "3");
+			BlockingQueue<IF2Message> received = new LinkedBlockingQueue<>();
+			consumer.subscribe("DENM.*.RWS.#", received::add);
+			producer.publishAsync(tass).get(1, TimeUnit.SECONDS);
+			producer.publishAsync(rws).get(1, TimeUnit.SECONDS);
+			IF2Message message = received.poll(1, TimeUnit.SECONDS);
+			assertEquals(rws.getRoutingKey(), message.getEnvelope().getRoutingKey());
+			assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+			assertEquals(1, consumer.getProbe().count());
+			assertEquals(2, producer.getMetrics().getConfirmed());
+		} finally {
+			producer.disconnect();
+			consumer.disconnect();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PublishBufferTest {
+
+	private static OutgoingMessage message(int i) {
+		return new OutgoingMessage("DENM", Integer.toString(i), null, new byte[0], 0, 0, 0);
+	}
+
+	@Test
+	public void testDropOldest() {
+		PublishBuffer buffer = new PublishBuffer(3, PublishBuffer.DROP_OLDEST);
+		assertEquals(4, buffer.capacity());
+		List<OutgoingMessage> messages = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			messages.add(message(i));
+			buffer.add(messages.get(i));
+		}
+		assertEquals(4, buffer.size());
+		assertEquals(2, buffer.dropped());
+		assertTrue(messages.get(0).future.isCompletedExceptionally());
+		assertTrue(messages.get(1).future.isCompletedExceptionally());
+		for (int i = 2; i < 6; i++)
+			assertSame(messages.get(i), buffer.poll());
+		assertNull(buffer.poll());
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void testDropNewest() {
+		PublishBuffer buffer = new PublishBuffer(2, PublishBuffer.DROP_NEWEST);
+		OutgoingMessage first = message(0);
+		buffer.add(first);
+		buffer.add(message(1));
+		OutgoingMessage last = message(2);
+		buffer.add(last);
+		assertTrue(last.future.isCompletedExceptionally());
+		assertFalse(first.future.isDone());
+		assertSame(first, buffer.poll());
+		assertEquals(1, buffer.dropped());
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		PublishBuffer buffer = new PublishBuffer(2, PublishBuffer.BLOCK);
+		buffer.add(message(0));
+		buffer.add(message(1));
+		CountDownLatch added = new CountDownLatch(1);
+		Thread thread = new Thread(() -> {
+			buffer.add(message(2));
+			added.countDown();
+		});
+		thread.start();
+		assertFalse(added.await(50, TimeUnit.MILLISECONDS));
+		assertEquals("0", buffer.poll().key);
+		assertTrue(added.await(5, TimeUnit.SECONDS));
+		assertEquals("1", buffer.poll().key);
+		assertEquals("2", buffer.poll().key);
+	}
+
+	@Test
+	public void testConcurrentOrder() throws Exception {
+		int producers = 4;
+		int count = 20000;
+		PublishBuffer buffer = new PublishBuffer(64, PublishBuffer.BLOCK);
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			int producer = p;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < count; i++)
+					buffer.add(message(producer * count + i));
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		int[] last = new int[producers];
+		Arrays.fill(last, -1);
+		int received = 0;
+		while (received < producers * count) {
+			OutgoingMessage message = buffer.poll();
+			if (message == null)
+				continue;
+			int value = Integer.parseInt(message.key);
+			int producer = value / count;
+			// messages of one producer come out in the order they went in
+			assertTrue(value % count > last[producer]);
+			last[producer] = value % count;
+			received++;
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.dropped());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownPolicy() {
+		new PublishBuffer(2, "DROP_ALL");
+	}
+}
@@ -0,0 +1,170 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class PublishJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final IF2Producer producer = new IF2Producer();
+
+	private static OutgoingMessage message(int i) {
+		return producer.message(new Datum(51.4 + i * 0.001, 5.6, 18, "DENM", "1_2_2", "RWS", "3"));
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+		File dir = folder.newFolder();
+		PublishJournal journal = new PublishJournal(dir, 1 << 16);
+		List<OutgoingMessage> messages = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			OutgoingMessage message = message(i);
+			journal.append(message);
+			messages.add(message);
+		}
+		assertEquals(Arrays.asList(1L, 2L, 3L),
+				Arrays.asList(messages.get(0).journalSeq, messages.get(1).journalSeq, messages.get(2).journalSeq));
+		journal.done(messages.get(0));
+		journal.done(messages.get(2));
+		journal.close();
+
+		// everything above the watermark is published again
+		journal = new PublishJournal(dir, 1 << 16);
+		assertEquals(Arrays.asList(2L, 3L), journal.pendingSequences());
+		OutgoingMessage replayed = journal.nextPending();
+		OutgoingMessage original = messages.get(1);
+		assertEquals(2, replayed.journalSeq);
+		assertEquals(original.exchange, replayed.exchange);
+		assertEquals(original.key, replayed.key);
+		assertEquals(original.lat, replayed.lat, 0);
+		assertEquals(original.zoom, replayed.zoom);
+		assertEquals(original.properties.getExpiration(), replayed.properties.getExpiration());
+		assertEquals(original.properties.getHeaders(), replayed.properties.getHeaders());
+		assertArrayEquals(original.body, replayed.body);
+
+		// new records continue the sequence
+		OutgoingMessage next = message(3);
+		journal.append(next);
+		assertEquals(4, next.journalSeq);
+		journal.done(replayed);
+		journal.done(journal.nextPending());
+		journal.done(next);
+		assertNull(journal.nextPending());
+		journal.close();
+
+		journal = new PublishJournal(dir, 1 << 16);
+		assertEquals(0, journal.pendingCount());
+		assertEquals(1, journal.segmentCount());
+		journal.close();
+	}
+
+	@Test
+	public void testFailedAppend() throws Exception {
+		File dir = folder.newFolder();
+		PublishJournal journal = new PublishJournal(dir, 1 << 20);
+		OutgoingMessage first = message(0);
+		journal.append(first);
+		char[] chars = new char[40000];
+		Arrays.fill(chars, 'x');
+		Map<String, Object> headers = new HashMap<>();
+		headers.put("long", new String(chars));
+		BasicProperties properties = new BasicProperties.Builder().headers(headers).build();
+		OutgoingMessage tooLong = new OutgoingMessage("DENM", "key", properties, new byte[0], 51.4, 5.6, 18);
+		try {
+			journal.append(tooLong);
+			fail("string of 40000 bytes journaled");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		OutgoingMessage next = message(1);
+		journal.append(next);
+		journal.close();
+
+		// the record after the failed one is found again
+		journal = new PublishJournal(dir, 1 << 20);
+		assertEquals(Arrays.asList(first.journalSeq, next.journalSeq), journal.pendingSequences());
+		journal.nextPending();
+		assertEquals(next.key, journal.nextPending().key);
+		journal.close();
+	}
+
+	@Test
+	public void testRollover() throws Exception {
+		PublishJournal journal = new PublishJournal(folder.newFolder(), 512);
+		List<OutgoingMessage> messages = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			OutgoingMessage message = message(i);
+			journal.append(message);
+			messages.add(message);
+		}
+		assertTrue(journal.segmentCount() > 5);
+		// out of order confirmation deletes segments once the watermark passes them
+		for (int i = messages.size() - 1; i > 0; i--)
+			journal.done(messages.get(i));
+		assertTrue(journal.segmentCount() > 5);
+		journal.done(messages.get(0));
+		assertEquals(1, journal.segmentCount());
+		journal.close();
+	}
+
+	@Test
+	public void testFailed() throws Exception {
+		PublishJournal journal = new PublishJournal(folder.newFolder(), 1 << 16);
+		OutgoingMessage message = message(0);
+		journal.append(message);
+		assertNull(journal.nextPending());
+		journal.failed(message);
+		OutgoingMessage again = journal.nextPending();
+		assertEquals(message.key, again.key);
+		assertEquals(message.journalPosition, again.journalPosition);
+		journal.close();
+	}
+
+	@Test
+	public void testUnreadable() throws Exception {
+		File dir = folder.newFolder();
+		PublishJournal journal = new PublishJournal(dir, 4096);
+		OutgoingMessage first = message(0);
+		OutgoingMessage second = message(1);
+		journal.append(first);
+		journal.append(second);
+		journal.close();
+
+		// the exchange of the first record no longer fits in the segment
+		File[] segments = dir.listFiles((d, name) -> name.endsWith(".seg"));
+		assertEquals(1, segments.length);
+		try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+			file.seek(first.journalPosition + 12);
+			file.writeShort(Short.MAX_VALUE);
+		}
+
+		journal = new PublishJournal(dir, 4096);
+		AtomicInteger unreadable = new AtomicInteger();
+		journal.onUnreadable(e -> unreadable.incrementAndGet());
+		OutgoingMessage next = journal.nextPending();
+		assertEquals(1, unreadable.get());
+		assertEquals(second.key, next.key);
+		// the dropped record does not hold back the watermark
+		journal.done(next);
+		journal.close();
+		journal = new PublishJournal(dir, 4096);
+		assertEquals(0, journal.pendingCount());
+		journal.close();
+	}
+}
@@ -0,0 +1,42 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.ShutdownSignalException;
+
+public class PublisherConfirmsTest {
+
+	@Test
+	public void testConfirmRanges() throws Exception {
+		AtomicLong published = new AtomicLong();
+		PublisherConfirms confirms = new PublisherConfirms(TestChannels.countingChannel(published), 10);
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Void>[] futures = new CompletableFuture[5];
+		for (int i = 0; i < futures.length; i++)
+			futures[i] = confirms.publish(new OutgoingMessage("DENM", "key", null, new byte[0], 0, 0, 0));
+		assertEquals(5, confirms.inFlight());
+
+		confirms.handleAck(3, true);
+		assertTrue(futures[0].isDone() && futures[1].isDone() && futures[2].isDone());
+		assertFalse(futures[3].isDone());
+		futures[2].get();
+
+		confirms.handleNack(5, false);
+		assertFalse(futures[3].isDone());
+		try {
+			futures[4].get();
+			fail("message 5 was rejected");
+		} catch (ExecutionException e) {
+		}
+
+		confirms.shutdownCompleted(new ShutdownSignalException(false, false, null, null));
+		assertTrue(futures[3].isCompletedExceptionally());
+		assertEquals(0, confirms.inFlight());
+	}
+}
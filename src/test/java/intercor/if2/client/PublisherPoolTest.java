@@ -0,0 +1,141 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.RecoveryListener;
+
+public class PublisherPoolTest {
+
+	private LocalBroker broker;
+	private Connection primary;
+
+	@Before
+	public void setUp() {
+		broker = LocalBroker.get(getClass().getSimpleName() + System.nanoTime());
+		primary = broker.newConnection();
+	}
+
+	@After
+	public void tearDown() {
+		broker.close();
+	}
+
+	private PublisherPool pool(int connections, int channels, int window, String assignment) throws Exception {
+		return new PublisherPool(primary, broker::newConnection, connections, channels, window, assignment, 10,
+				new IF2Metrics(), () -> {
+				});
+	}
+
+	private static OutgoingMessage message(double lat, double lon) {
+		return new OutgoingMessage("DENM", "key", new BasicProperties(), new byte[0], lat, lon, 18);
+	}
+
+	@Test
+	public void testQuadtreeAssignment() throws Exception {
+		PublisherPool pool = pool(1, 4, 10, PublisherPool.QUADTREE);
+		Map<PublisherConfirms, Integer> used = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			double lat = 50 + i * 0.1;
+			PublisherConfirms confirms = pool.select(lat, 5, 18);
+			// the same area, at any zoom level from the assignment zoom on
+			assertSame(confirms, pool.select(lat, 5, 18));
+			assertSame(confirms, pool.select(lat, 5, 12));
+			used.merge(confirms, 1, Integer::sum);
+		}
+		assertEquals(4, used.size());
+		pool.close();
+	}
+
+	@Test
+	public void testRoundRobinAssignment() throws Exception {
+		PublisherPool pool = pool(2, 4, 10, PublisherPool.ROUND_ROBIN);
+		Map<PublisherConfirms, Integer> used = new HashMap<>();
+		for (int i = 0; i < 100; i++)
+			used.merge(pool.select(51.44, 5.46, 18), 1, Integer::sum);
+		assertEquals(4, used.size());
+		for (int n : used.values())
+			assertEquals(25, n);
+		pool.close();
+	}
+
+	@Test
+	public void testWindowPerChannel() throws Exception {
+		// channels that never confirm
+		Connection connection = TestChannels.recoverableConnection(new ArrayList<>(), new ArrayList<>());
+		PublisherPool pool = new PublisherPool(connection, () -> connection, 1, 2, 1, PublisherPool.ROUND_ROBIN,
+				10, new IF2Metrics(), () -> {
+				});
+		PublisherConfirms first = pool.select(51.44, 5.46, 18);
+		PublisherConfirms second = pool.select(51.44, 5.46, 18);
+		assertNotSame(first, second);
+		first.publish(message(51.44, 5.46));
+		// the window of the first channel is full, the second one still has room
+		second.publish(message(51.44, 5.46));
+		assertEquals(2, pool.inFlight());
+
+		CompletableFuture<Void> blocked = new CompletableFuture<>();
+		Thread thread = new Thread(() -> {
+			OutgoingMessage message = message(51.44, 5.46);
+			first.publish(message);
+			message.future.whenComplete((v, e) -> blocked.completeExceptionally(e));
+		});
+		thread.start();
+		thread.join(50);
+		assertTrue(thread.isAlive());
+		thread.interrupt();
+		thread.join(1000);
+		assertFalse(thread.isAlive());
+		assertTrue(blocked.isCompletedExceptionally());
+		assertEquals(2, pool.inFlight());
+	}
+
+	@Test
+	public void testCloseKeepsPrimaryConnection() throws Exception {
+		PublisherPool pool = pool(3, 6, 10, PublisherPool.ROUND_ROBIN);
+		assertEquals(3, broker.connections());
+		List<PublisherConfirms> channels = new ArrayList<>();
+		for (int i = 0; i < 6; i++)
+			channels.add(pool.select(51.44, 5.46, 18));
+		pool.select(51.44, 5.46, 18).publish(message(51.44, 5.46)).get(1, TimeUnit.SECONDS);
+		pool.close();
+		assertTrue(primary.isOpen());
+		assertEquals(1, broker.connections());
+		for (PublisherConfirms confirms : channels)
+			assertFalse(confirms.getChannel().isOpen());
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		List<RecoveryListener> primaryListeners = new ArrayList<>();
+		List<RecoveryListener> connectionListeners = new ArrayList<>();
+		List<RecoveryListener> channelListeners = new ArrayList<>();
+		Connection primary = TestChannels.recoverableConnection(primaryListeners, channelListeners);
+		IF2Metrics metrics = new IF2Metrics();
+		AtomicInteger recovered = new AtomicInteger();
+		new PublisherPool(primary, () -> TestChannels.recoverableConnection(connectionListeners, channelListeners),
+				2, 4, 10, PublisherPool.QUADTREE, 10, metrics, recovered::incrementAndGet);
+		// the client listens to the primary connection itself
+		assertEquals(0, primaryListeners.size());
+		assertEquals(1, connectionListeners.size());
+		assertEquals(4, channelListeners.size());
+		connectionListeners.get(0).handleRecovery(null);
+		assertEquals(1, metrics.getReconnects());
+		for (RecoveryListener listener : channelListeners)
+			listener.handleRecovery(null);
+		assertEquals(4, recovered.get());
+	}
+}
@@ -0,0 +1,56 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+
+import quadtree.QuadTreeConverter;
+
+public class RoutingKeyTest {
+
+	@Test
+	public void testParse() {
+		Datum d = new Datum(51.481939, 5.640488, 18, "DENM", "1_2_2", "RWS", "3");
+		RoutingKey key = new RoutingKey(d.getRoutingKey());
+		assertEquals("DENM", key.getMessageType());
+		assertEquals("1_2_2", key.getMessageVersion());
+		assertEquals("RWS", key.getProvider());
+		assertEquals("3", key.getSubtype());
+		assertEquals(18, key.getZoom());
+		assertEquals(QuadTreeConverter.encode(18, 51.481939, 5.640488), key.getTile());
+
+		RoutingKey world = new RoutingKey("DENM.1_2_2.RWS.3");
+		assertEquals("3", world.getSubtype());
+		assertEquals(0, world.getZoom());
+		try {
+			new RoutingKey("DENM.1_2_2");
+			fail("too few fields");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testMessage() throws Exception {
+		Map<String, Object> headers = new HashMap<>();
+		headers.put("lat", 51.481939);
+		headers.put("lon", 5.640488);
+		BasicProperties props = new BasicProperties.Builder().headers(headers).build();
+		byte[] body = { 1, 2, 3 };
+		IF2Message message = new IF2Message(new Envelope(1, false, "DENM", "DENM.1_2_2.RWS.3.1.2"), props, body);
+		assertEquals(51.481939, message.getLat(), 0);
+		assertEquals(5.640488, message.getLon(), 0);
+		assertEquals("RWS", message.getRoutingKey().getProvider());
+		ByteBuffer payload = message.getPayload();
+		assertTrue(payload.isReadOnly());
+		assertEquals(3, payload.remaining());
+		assertEquals(2, payload.get(1));
+		assertTrue(Double.isNaN(new IF2Message(new Envelope(1, false, "DENM", "a.b.c.d"), null, body).getLat()));
+	}
+}
@@ -0,0 +1,112 @@
+package intercor.if2.client;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+
+/**
+ * Stand-in channels for tests that do not need a broker.
+ */
+class TestChannels {
+
+	/**
+	 * @return an open channel that records acks and nacks, e.g. "ack 5 true"
+	 */
+	static Channel recordingChannel(List<String> calls) {
+		return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "basicAck":
+						calls.add("ack " + args[0] + " " + args[1]);
+						return null;
+					case "basicNack":
+						calls.add("nack " + args[0]);
+						return null;
+					case "isOpen":
+						return true;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * @return an open channel that only counts publications
+	 */
+	static Channel countingChannel(AtomicLong published) {
+		return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getNextPublishSeqNo":
+						return published.get() + 1;
+					case "basicPublish":
+						published.incrementAndGet();
+						return null;
+					case "isOpen":
+						return true;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * @return an open, recoverable connection, that keeps the recovery listeners
+	 *         of itself and of its channels
+	 */
+	static Connection recoverableConnection(List<RecoveryListener> connectionListeners,
+			List<RecoveryListener> channelListeners) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class, Recoverable.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "createChannel":
+						return recoverableChannel(channelListeners);
+					case "addRecoveryListener":
+						connectionListeners.add((RecoveryListener) args[0]);
+						return null;
+					case "isOpen":
+						return true;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return null;
+					}
+				});
+	}
+
+	private static Channel recoverableChannel(List<RecoveryListener> listeners) {
+		return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+				new Class<?>[] { Channel.class, Recoverable.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "addRecoveryListener":
+						listeners.add((RecoveryListener) args[0]);
+						return null;
+					case "getNextPublishSeqNo":
+						return 1L;
+					case "isOpen":
+						return true;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,87 @@
+package intercor.if2.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TopicMatcherTest {
+
+	private static Set<String> match(TopicMatcher<String> matcher, String key) {
+		Set<String> result = new LinkedHashSet<>();
+		matcher.match(key, result);
+		return result;
+	}
+
+	@Test
+	public void testWildcards() {
+		TopicMatcher<String> matcher = new TopicMatcher<>();
+		matcher.add("DENM.1_2_2.RWS.3.1.2", "exact");
+		matcher.add("*.*.*.*.1.2.#", "tile");
+		matcher.add("*.*.RWS.*.#", "provider");
+		matcher.add("#", "all");
+		matcher.add("DENM.*", "two");
+		assertEquals(5, matcher.size());
+
+		assertEquals(new HashSet<>(Arrays.asList("exact", "tile", "provider", "all")),
+				match(matcher, "DENM.1_2_2.RWS.3.1.2"));
+		assertEquals(new HashSet<>(Arrays.asList("tile", "provider", "all")),
+				match(matcher, "DENM.1_2_2.RWS.3.1.2.0.3"));
+		assertEquals(new HashSet<>(Arrays.asList("all")), match(matcher, "DENM.1_2_2.TASS.3.1.3"));
+		assertEquals(new HashSet<>(Arrays.asList("provider", "all")), match(matcher, "DENM.1_2_2.RWS.3"));
+		assertEquals(new HashSet<>(Arrays.asList("two", "all")), match(matcher, "DENM.x"));
+		assertFalse(match(matcher, "CAM.x").contains("two"));
+	}
+
+	@Test
+	public void testHash() {
+		TopicMatcher<String> matcher = new TopicMatcher<>();
+		matcher.add("a.#.z", "a-z");
+		assertTrue(matcher.matches("a.z"));
+		assertTrue(matcher.matches("a.b.c.z"));
+		assertFalse(matcher.matches("a.b.c"));
+		assertFalse(matcher.matches("b.z"));
+	}
+
+	@Test
+	public void testRemove() {
+		TopicMatcher<String> matcher = new TopicMatcher<>();
+		matcher.add("*.*.RWS.*.#", "h1");
+		matcher.add("*.*.RWS.*.#", "h2");
+		matcher.add("*.*.*.*.1.#", "h1");
+		assertEquals(new HashSet<>(Arrays.asList("h1", "h2")), match(matcher, "DENM.1_2_2.RWS.3.1"));
+
+		assertTrue(matcher.remove("*.*.RWS.*.#", "h1"));
+		assertFalse(matcher.remove("*.*.RWS.*.#", "h1"));
+		assertFalse(matcher.remove("*.*.TASS.*.#", "h2"));
+		assertEquals(new HashSet<>(Arrays.asList("h1", "h2")), match(matcher, "DENM.1_2_2.RWS.3.1"));
+
+		assertTrue(matcher.remove("*.*.*.*.1.#", "h1"));
+		assertEquals(new HashSet<>(Arrays.asList("h2")), match(matcher, "DENM.1_2_2.RWS.3.1"));
+		assertTrue(matcher.remove("*.*.RWS.*.#", "h2"));
+		assertEquals(0, matcher.size());
+		assertFalse(matcher.matches("DENM.1_2_2.RWS.3.1"));
+	}
+
+	@Test
+	public void testManyWords() {
+		TopicMatcher<String> matcher = new TopicMatcher<>();
+		for (int i = 0; i < 200; i++)
+			matcher.add("DENM." + i + ".RWS", "w" + i);
+		for (int i = 0; i < 200; i += 2)
+			assertTrue(matcher.remove("DENM." + i + ".RWS", "w" + i));
+		for (int i = 0; i < 200; i++) {
+			Set<String> expected = i % 2 == 0 ? new HashSet<>() : new HashSet<>(Arrays.asList("w" + i));
+			assertEquals(expected, match(matcher, "DENM." + i + ".RWS"));
+		}
+		// words that only start with a bound word do not match
+		assertTrue(match(matcher, "DENM.1.RWSX").isEmpty());
+		assertTrue(match(matcher, "DENM.1999.RWS").isEmpty());
+		assertTrue(match(matcher, "DENM.1").isEmpty());
+		assertEquals(100, matcher.size());
+	}
+}
@@ -0,0 +1,42 @@
+package quadtree;
+
+import static org.junit.Assert.*;
+
+import java.nio.DoubleBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BulkQuadTreeConverterTest {
+
+	@Test
+	public void testMatchesScalarConverter() {
+		int n = BulkQuadTreeConverter.PARALLEL_THRESHOLD * 3 + 17;
+		Random random = new Random(42);
+		double[] lat = new double[n];
+		double[] lon = new double[n];
+		for (int i = 0; i < n; i++) {
+			lat[i] = random.nextDouble() * 170 - 85;
+			lon[i] = random.nextDouble() * 360 - 180;
+		}
+		lon[0] = -180;
+		lat[1] = 0;
+		int zoom = 18;
+		long[] tiles = new long[n];
+		byte[] digits = new byte[n * zoom];
+		BulkQuadTreeConverter.encode(zoom, lat, lon, tiles);
+		BulkQuadTreeConverter.quadTrees(zoom, lat, lon, digits);
+		for (int i = 0; i < n; i++) {
+			assertEquals(QuadTreeConverter.encode(zoom, lat[i], lon[i]), tiles[i]);
+			assertEquals(QuadTreeConverter.getQuadTree(zoom, lat[i], lon[i]), new String(digits, i * zoom, zoom));
+		}
+
+		long[] fromBuffers = new long[n - 5];
+		DoubleBuffer latBuffer = DoubleBuffer.wrap(lat);
+		latBuffer.position(5);
+		BulkQuadTreeConverter.encode(zoom, latBuffer, DoubleBuffer.wrap(lon, 5, n - 5), fromBuffers);
+		for (int i = 0; i < n - 5; i++) {
+			assertEquals(tiles[i + 5], fromBuffers[i]);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package quadtree;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Differential test of the fast projection against the exact projection.
+ */
+public class FastMercatorTest {
+
+	@Test
+	public void testDenseGrid() {
+		for (int zoom = 0; zoom <= 22; zoom++) {
+			for (double lat = -87; lat <= 87; lat += 0.00173) {
+				assertEquals("lat " + lat + " zoom " + zoom, FastMercator.exactTileY(zoom, lat),
+						FastMercator.tileY(zoom, lat));
+			}
+		}
+	}
+
+	@Test
+	public void testTileEdges() {
+		for (int zoom = 0; zoom <= PackedTile.MAX_ZOOM; zoom++) {
+			int size = 1 << zoom;
+			for (int i = 0; i <= 4096; i++) {
+				int row = (int) ((long) size * i / 4096);
+				double edge = TileEdges.calculateLatitude(zoom, row);
+				for (double lat : new double[] { edge, Math.nextUp(edge), Math.nextDown(edge), edge + 1E-9,
+						edge - 1E-9 }) {
+					assertEquals("lat " + lat + " zoom " + zoom, FastMercator.exactTileY(zoom, lat),
+							FastMercator.tileY(zoom, lat));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testConverterMode() {
+		QuadTreeConverter.setFastProjection(true);
+		try {
+			assertEquals("1202021311313133", QuadTreeConverter.getQuadTree(16, 51.46769695622339, 5.625));
+			for (double lat = -85; lat <= 85; lat += 0.0137) {
+				QuadTreeConverter.setFastProjection(true);
+				long fast = QuadTreeConverter.encode(18, lat, 5.625);
+				QuadTreeConverter.setFastProjection(false);
+				assertEquals(QuadTreeConverter.encode(18, lat, 5.625), fast);
+			}
+			assertEquals(FastMercator.exactTileY(10, Double.NaN), FastMercator.tileY(10, Double.NaN));
+			assertEquals(FastMercator.exactTileY(10, 89), FastMercator.tileY(10, 89));
+		} finally {
+			QuadTreeConverter.setFastProjection(false);
+		}
+	}
+}
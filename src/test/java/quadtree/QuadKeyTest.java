@@ -0,0 +1,75 @@
+package quadtree;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class QuadKeyTest {
+
+	@Test
+	public void testTileRoundTrip() {
+		Tile t = new Tile(16, 33791, 43732);
+		QuadKey key = QuadKey.of(t);
+		assertEquals(16, key.getZoom());
+		assertEquals(t, key.toTile());
+		assertEquals(t.getQuadTree(), key.getQuadTree());
+		assertEquals(t.getQuadTree("."), key.getQuadTree("."));
+		assertEquals(key, QuadKey.fromQuadTree(".1.2.0.2.0.2.1.3.1.1.3.1.3.1.3.3", "."));
+		assertEquals(key, QuadKey.fromPacked(PackedTile.of(t)));
+		assertEquals(PackedTile.of(t), key.toPacked());
+		assertEquals("", QuadKey.WORLD.getQuadTree("."));
+	}
+
+	@Test
+	public void testMatchesTileQuadTree() {
+		for (int zoom = 0; zoom <= 12; zoom++) {
+			for (double lat = -85; lat <= 85; lat += 3.1) {
+				for (double lon = -179.5; lon <= 180; lon += 4.7) {
+					Tile t = QuadTreeConverter.latLonToTile(zoom, lat, lon);
+					QuadKey key = QuadKey.of(t);
+					assertEquals(t.getQuadTree("."), key.getQuadTree("."));
+					assertEquals(t, key.toTile());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testPrefixAlgebra() {
+		QuadKey key = QuadKey.fromQuadTree("1202021311313133");
+		QuadKey parent = key.parent();
+		assertEquals("120202131131313", parent.getQuadTree());
+		assertEquals("1202", key.ancestorAt(4).getQuadTree());
+		assertEquals(QuadKey.WORLD, key.ancestorAt(0));
+		assertTrue(parent.contains(key));
+		assertTrue(key.contains(key));
+		assertFalse(key.contains(parent));
+		assertTrue(QuadKey.WORLD.contains(key));
+
+		QuadKey[] children = parent.children();
+		assertEquals(key, children[3]);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(parent, children[i].parent());
+			assertEquals("120202131131313" + i, children[i].getQuadTree());
+		}
+
+		QuadKey other = QuadKey.fromQuadTree("1202031");
+		assertEquals("12020", key.commonAncestor(other).getQuadTree());
+		assertEquals(other.ancestorAt(5), other.commonAncestor(key));
+		assertEquals(parent, parent.commonAncestor(key));
+	}
+
+	@Test
+	public void testOrdering() {
+		String[] paths = { "13", "1", "120", "", "12", "121", "0333", "2" };
+		QuadKey[] keys = new QuadKey[paths.length];
+		for (int i = 0; i < paths.length; i++)
+			keys[i] = QuadKey.fromQuadTree(paths[i]);
+		Arrays.sort(paths);
+		Arrays.sort(keys);
+		for (int i = 0; i < paths.length; i++)
+			assertEquals(paths[i], keys[i].getQuadTree());
+	}
+}
@@ -7,6 +7,8 @@ package quadtree;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 public class QuadTreeTest {
@@ -78,4 +80,96 @@ public class QuadTreeTest {
 		assertEquals(t, t2);
 
 	}
+
+	@Test
+	public void testEncodeMatchesContainingTile() {
+		for (int zoom = 0; zoom <= 22; zoom++) {
+			for (double lat = -85; lat <= 85; lat += 0.731) {
+				for (double lon = -180; lon <= 180; lon += 1.137) {
+					Tile expect = new LatLon(lat, lon).getContainingTile(zoom);
+					assertEquals(expect, PackedTile.toTile(QuadTreeConverter.encode(zoom, lat, lon)));
+				}
+			}
+		}
+		// edge of the map and an exact tile edge end up in the lower tile
+		assertEquals(new Tile(16, -1, 32767), PackedTile.toTile(QuadTreeConverter.encode(16, 0, -180)));
+		assertEquals(new LatLon(0, 0).getContainingTile(10),
+				PackedTile.toTile(QuadTreeConverter.encode(10, 0, 0)));
+		assertEquals(new Tile(16, 33791, 43732), QuadTreeConverter.latLonToTile(16, 51.46769695622339, 5.625));
+	}
+
+	@Test
+	public void testQuadTreeParser() {
+		long expect = PackedTile.pack(16, 33791, 43732);
+		String key = "DENM.1_2_2.RWS.3.1.2.0.2.0.2.1.3.1.1.3.1.3.1.3.3";
+		int start = key.indexOf(".1.2");
+		assertEquals(expect, QuadTreeParser.parse(key, start, key.length(), '.'));
+		assertEquals(expect, QuadTreeParser.parse("1202021311313133"));
+		byte[] bytes = key.getBytes();
+		assertEquals(expect, QuadTreeParser.parse(bytes, start, bytes.length, '.'));
+		assertEquals(expect, QuadTreeParser.parse(ByteBuffer.wrap(bytes), start, bytes.length, '.'));
+		assertEquals(PackedTile.pack(0, 0, 0), QuadTreeParser.parse("", '.'));
+
+		try {
+			QuadTreeParser.parse(key, '.');
+			fail("DENM is not a quadtree path");
+		} catch (InvalidQuadTreeException e) {
+		}
+		try {
+			new Tile("1.4", ".");
+			fail("4 is not a quadtree digit");
+		} catch (RuntimeException e) {
+			assertEquals("1.4 not a valid quadtree path", e.getMessage());
+		}
+		assertEquals(new Tile(16, 33791, 43732), new Tile("1--2--0--2--0--2--1--3--1--1--3--1--3--1--3--3", "--"));
+	}
+
+	@Test
+	public void testTileEdgesMatchImagePointConversion() {
+		for (int zoom = 0; zoom <= 20; zoom++) {
+			int n = 1 << zoom;
+			for (int i = 0; i <= 64; i++) {
+				int edge = (int) ((long) n * i / 64);
+				LatLon ll = new ImageMapPoint(zoom, edge * Mercator.TILE_SIZE, edge * Mercator.TILE_SIZE)
+						.asMercatorPoint().asLatLon();
+				assertEquals(ll.lat, TileEdges.latitude(zoom, edge), 0);
+				assertEquals(ll.lon, TileEdges.longitude(zoom, edge), 0);
+			}
+		}
+		Tile t = new LatLon(55, 25).getContainingTile(16);
+		double[] bounds = t.getBounds(new double[4]);
+		assertEquals(54.99967515853579, bounds[0], 1E-6);
+		assertEquals(24.99938964843749, bounds[1], 1E-6);
+		assertEquals(55.0028258097932, bounds[2], 1E-6);
+		assertEquals(25.004882812499986, bounds[3], 1E-6);
+		LatLon center = t.getCenter();
+		assertEquals(t, center.getContainingTile(16));
+		assertEquals((bounds[1] + bounds[3]) / 2, center.lon, 1E-9);
+	}
+
+	@Test
+	public void testAncestors() {
+		long[] tiles = new long[9];
+		long[] keys = new long[9];
+		for (double lat = -85; lat <= 85; lat += 1.37) {
+			for (double lon = -180; lon <= 180; lon += 2.71) {
+				QuadTreeConverter.encodeAncestors(10, 18, lat, lon, tiles, 0);
+				QuadTreeConverter.quadKeyAncestors(10, 18, lat, lon, keys, 0);
+				for (int zoom = 10; zoom <= 18; zoom++) {
+					assertEquals(QuadTreeConverter.encode(zoom, lat, lon), tiles[zoom - 10]);
+					assertEquals(QuadTreeConverter.getQuadTree(zoom, lat, lon),
+							QuadKey.fromValue(keys[zoom - 10]).getQuadTree());
+				}
+			}
+		}
+		assertEquals(QuadTreeConverter.encode(12, 0, -180), QuadTreeConverter.encodeAncestors(12, 16, 0, -180)[0]);
+	}
+
+	@Test
+	public void testImagePointPerZoom() {
+		MercatorPoint mp = new LatLon(51.46769695622339, 5.625).asMercatorPoint();
+		assertEquals(new Tile(16, 33791, 43732), mp.getContainingTile(16));
+		assertEquals(new Tile(10, 33791 >> 6, 43732 >> 6), mp.getContainingTile(10));
+		assertEquals(10, mp.asImagePoint(10).zoom);
+	}
 }
@@ -0,0 +1,102 @@
+package quadtree;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RegionCovererTest {
+
+	private static boolean covers(List<QuadKey> covering, double lat, double lon) {
+		QuadKey key = QuadKey.fromPacked(QuadTreeConverter.encode(QuadKey.MAX_ZOOM, lat, lon));
+		for (QuadKey k : covering) {
+			if (k.contains(key))
+				return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void testBoundingBoxOverCovering() {
+		RegionCoverer coverer = new RegionCoverer();
+		coverer.setMaxCells(8);
+		coverer.setMaxZoom(16);
+		List<QuadKey> covering = coverer.coverBoundingBox(51.43, 5.45, 51.49, 5.68);
+		assertTrue(covering.size() <= 8);
+		Random random = new Random(1);
+		for (int i = 0; i < 1000; i++) {
+			double lat = 51.43 + random.nextDouble() * 0.06;
+			double lon = 5.45 + random.nextDouble() * 0.23;
+			assertTrue(covers(covering, lat, lon));
+		}
+		// both Helmond and Eindhoven samples are inside the box
+		assertTrue(covers(covering, 51.481939, 5.640488));
+		assertTrue(covers(covering, 51.437941, 5.472308));
+	}
+
+	@Test
+	public void testInteriorCovering() {
+		RegionCoverer coverer = new RegionCoverer();
+		coverer.setInterior(true);
+		coverer.setMaxCells(50);
+		coverer.setMaxZoom(14);
+		List<QuadKey> covering = coverer.coverBoundingBox(51.43, 5.45, 51.49, 5.68);
+		assertFalse(covering.isEmpty());
+		assertTrue(covering.size() <= 50);
+		for (QuadKey key : covering) {
+			for (LatLon c : key.toTile().getCorners()) {
+				assertTrue(c.lat >= 51.43 && c.lat <= 51.49);
+				assertTrue(c.lon >= 5.45 && c.lon <= 5.68);
+			}
+		}
+	}
+
+	@Test
+	public void testTileIsCoveredBySingleKey() {
+		Tile t = new Tile("1202020");
+		LatLon[] corners = t.getCorners();
+		double eps = 1E-9;
+		RegionCoverer coverer = new RegionCoverer();
+		coverer.setInterior(true);
+		coverer.setMaxCells(100);
+		coverer.setMaxZoom(12);
+		List<QuadKey> covering = coverer.coverBoundingBox(corners[0].lat - eps, corners[0].lon - eps,
+				corners[2].lat + eps, corners[2].lon + eps);
+		assertEquals(1, covering.size());
+		assertEquals("1202020", covering.get(0).getQuadTree());
+	}
+
+	@Test
+	public void testAntimeridian() {
+		RegionCoverer coverer = new RegionCoverer();
+		List<QuadKey> covering = coverer.coverBoundingBox(-10, 170, 10, -170);
+		assertTrue(covers(covering, 0, 175));
+		assertTrue(covers(covering, 0, -175));
+		assertFalse(covers(covering, 0, 0));
+	}
+
+	@Test
+	public void testPolygonAndCorridor() {
+		double[] lat = { 51.43, 51.49, 51.45 };
+		double[] lon = { 5.45, 5.50, 5.68 };
+		RegionCoverer coverer = new RegionCoverer();
+		coverer.setMaxCells(12);
+		List<QuadKey> polygon = coverer.coverPolygon(lat, lon);
+		assertTrue(polygon.size() <= 12);
+		assertTrue(covers(polygon, 51.45, 5.52));
+		for (int i = 0; i < lat.length; i++)
+			assertTrue(covers(polygon, lat[i], lon[i]));
+
+		coverer.setMaxCells(30);
+		List<QuadKey> corridor = coverer.coverCorridor(lat, lon, 100);
+		assertTrue(corridor.size() <= 30);
+		for (double t = 0; t <= 1; t += 0.01) {
+			assertTrue(covers(corridor, lat[0] + t * (lat[1] - lat[0]), lon[0] + t * (lon[1] - lon[0])));
+		}
+		assertFalse(covers(corridor, 51.9, 5.0));
+		assertEquals("*.*.*.*" + corridor.get(0).getQuadTree(".") + ".#",
+				RegionCoverer.toRoutingKeys("*.*.*.*", corridor).get(0));
+	}
+}
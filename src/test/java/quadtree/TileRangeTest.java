@@ -0,0 +1,63 @@
+package quadtree;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TileRangeTest {
+
+	private static Set<Long> collect(PrimitiveIterator.OfLong it) {
+		Set<Long> tiles = new HashSet<>();
+		while (it.hasNext())
+			assertTrue(tiles.add(it.nextLong()));
+		return tiles;
+	}
+
+	@Test
+	public void testNeighbours() {
+		Tile t = new Tile(16, 33791, 43732);
+		Set<Long> ring = collect(t.neighbours(1));
+		assertEquals(8, ring.size());
+		assertFalse(ring.contains(PackedTile.of(t)));
+		assertTrue(ring.contains(PackedTile.pack(16, 33790, 43731)));
+		assertTrue(ring.contains(PackedTile.pack(16, 33792, 43733)));
+		assertEquals(24, collect(t.neighbours(2)).size());
+	}
+
+	@Test
+	public void testWrapAndClamp() {
+		Tile corner = new Tile(4, 0, 0);
+		Set<Long> ring = collect(corner.neighbours(1));
+		assertEquals(5, ring.size());
+		assertTrue(ring.contains(PackedTile.pack(4, 15, 0)));
+		assertTrue(ring.contains(PackedTile.pack(4, 15, 1)));
+
+		assertEquals(3, collect(new Tile(1, 0, 0).neighbours(3)).size());
+
+		Set<Long> range = collect(QuadTreeConverter.tileRange(14, 2, 1, 3, 4));
+		assertEquals(4 * 2, range.size());
+		assertTrue(range.contains(PackedTile.pack(4, 15, 3)));
+		assertTrue(range.contains(PackedTile.pack(4, 0, 2)));
+	}
+
+	@Test
+	public void testRadius() {
+		double lat = 51.46769695622339;
+		double lon = 5.625;
+		Set<Long> tiles = collect(QuadTreeConverter.tilesWithinRadius(lat, lon, 1000, 16));
+		assertTrue(tiles.contains(QuadTreeConverter.encode(16, lat, lon)));
+		// a tile at zoom 16 is about 380m wide at this latitude
+		assertTrue(tiles.size() > 16 && tiles.size() < 64);
+		// tiles around a point 900m north are within range, 1500m north are not
+		double dlat = 1 / 111.2;
+		assertTrue(tiles.contains(QuadTreeConverter.encode(16, lat + 0.9 * dlat, lon)));
+		assertFalse(tiles.contains(QuadTreeConverter.encode(16, lat + 1.5 * dlat, lon)));
+
+		Set<Long> wrapped = collect(QuadTreeConverter.tilesWithinRadius(0, 179.999, 5000, 10));
+		assertTrue(wrapped.contains(QuadTreeConverter.encode(10, 0, -179.999)));
+	}
+}